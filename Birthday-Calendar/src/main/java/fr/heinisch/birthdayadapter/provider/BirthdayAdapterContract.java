@@ -33,6 +33,44 @@ public class BirthdayAdapterContract {
         String ACCOUNT_GROUP = "account_group";
     }
 
+    interface EventsMirrorColumns {
+        String UID = "uid";
+        String EVENT_ID = "event_id";
+        String CALENDAR_ID = "calendar_id";
+        String CONTACT_ID = "contact_id";
+        String FINGERPRINT = "fingerprint";
+        String REMINDERS = "reminders";
+        String EVENT_TYPE = "event_type";
+    }
+
+    interface SyncHistoryColumns {
+        String STARTED_AT = "started_at";
+        String FULL_SCAN = "full_scan";
+        String COMPLETE = "complete";
+        String DURATION_MS = "duration_ms";
+        String GROUP_LOAD_MS = "group_load_ms";
+        String CONTACT_SCAN_MS = "contact_scan_ms";
+        String CALENDAR_LOAD_MS = "calendar_load_ms";
+        String PLANNING_MS = "planning_ms";
+        String BATCH_APPLY_MS = "batch_apply_ms";
+        String DELETE_MS = "delete_ms";
+        String ROWS_READ = "rows_read";
+        String ROWS_KEPT = "rows_kept";
+        String OPERATIONS_WRITTEN = "operations_written";
+        String BATCHES = "batches";
+        String PEAK_HEAP = "peak_heap";
+    }
+
+    interface SyncJournalColumns {
+        String STARTED_AT = "started_at";
+        String UPDATED_AT = "updated_at";
+        String REQUESTS = "requests";
+        String PHASE = "phase";
+        String BATCHES = "batches";
+        String OPERATIONS = "operations";
+        String ATTEMPTS = "attempts";
+    }
+
     public static final String CONTENT_AUTHORITY = BuildConfig.APPLICATION_ID;
 
     private static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
@@ -64,6 +102,27 @@ public class BirthdayAdapterContract {
 
     }
 
+    /**
+     * Local copy of the events written to the birthday calendar. It is only accessed by the sync
+     * through {@link EventsMirrorHelper} and not exported by the provider.
+     */
+    public static class EventsMirror implements EventsMirrorColumns {
+    }
+
+    /**
+     * Metrics of the most recent syncs, written by the sync and shown in the settings through
+     * {@link SyncHistoryHelper}. Not exported by the provider.
+     */
+    public static class SyncHistory implements SyncHistoryColumns, BaseColumns {
+    }
+
+    /**
+     * Progress of the current and the most recent syncs, so an interrupted sync can be resumed
+     * through {@link SyncJournalHelper}. Not exported by the provider.
+     */
+    public static class SyncJournal implements SyncJournalColumns, BaseColumns {
+    }
+
     private BirthdayAdapterContract() {
     }
 }
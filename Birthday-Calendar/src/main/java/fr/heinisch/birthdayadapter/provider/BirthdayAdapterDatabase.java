@@ -30,10 +30,15 @@ import fr.heinisch.birthdayadapter.util.Log;
 
 public class BirthdayAdapterDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "birthdayadapter.db";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 3;
+
+    private static BirthdayAdapterDatabase sInstance;
 
     public interface Tables {
         String ACCOUNT_BLACKLIST = "account_blacklist";
+        String EVENTS_MIRROR = "events_mirror";
+        String SYNC_HISTORY = "sync_history";
+        String SYNC_JOURNAL = "sync_journal";
     }
 
     private static final String CREATE_ACCOUNT_BLACKLIST = "CREATE TABLE IF NOT EXISTS "
@@ -42,7 +47,60 @@ public class BirthdayAdapterDatabase extends SQLiteOpenHelper {
             + BirthdayAdapterContract.AccountBlacklistColumns.ACCOUNT_TYPE + " TEXT, "
             + BirthdayAdapterContract.AccountBlacklistColumns.ACCOUNT_GROUP + " TEXT)";
 
-    BirthdayAdapterDatabase(Context context) {
+    private static final String CREATE_EVENTS_MIRROR = "CREATE TABLE IF NOT EXISTS "
+            + Tables.EVENTS_MIRROR + "("
+            + BirthdayAdapterContract.EventsMirrorColumns.UID + " TEXT PRIMARY KEY, "
+            + BirthdayAdapterContract.EventsMirrorColumns.EVENT_ID + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.EventsMirrorColumns.CALENDAR_ID + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.EventsMirrorColumns.CONTACT_ID + " TEXT, "
+            + BirthdayAdapterContract.EventsMirrorColumns.FINGERPRINT + " INTEGER, "
+            + BirthdayAdapterContract.EventsMirrorColumns.REMINDERS + " TEXT, "
+            + BirthdayAdapterContract.EventsMirrorColumns.EVENT_TYPE + " INTEGER)";
+
+    private static final String CREATE_EVENTS_MIRROR_CONTACT_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Tables.EVENTS_MIRROR + "_contact_idx ON " + Tables.EVENTS_MIRROR + "("
+            + BirthdayAdapterContract.EventsMirrorColumns.CONTACT_ID + ")";
+
+    private static final String CREATE_SYNC_HISTORY = "CREATE TABLE IF NOT EXISTS "
+            + Tables.SYNC_HISTORY + "(" + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + BirthdayAdapterContract.SyncHistoryColumns.STARTED_AT + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncHistoryColumns.FULL_SCAN + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncHistoryColumns.COMPLETE + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncHistoryColumns.DURATION_MS + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncHistoryColumns.GROUP_LOAD_MS + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncHistoryColumns.CONTACT_SCAN_MS + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncHistoryColumns.CALENDAR_LOAD_MS + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncHistoryColumns.PLANNING_MS + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncHistoryColumns.BATCH_APPLY_MS + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncHistoryColumns.DELETE_MS + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncHistoryColumns.ROWS_READ + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncHistoryColumns.OPERATIONS_WRITTEN + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncHistoryColumns.BATCHES + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncHistoryColumns.PEAK_HEAP + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncHistoryColumns.ROWS_KEPT + " INTEGER NOT NULL)";
+
+    private static final String CREATE_SYNC_JOURNAL = "CREATE TABLE IF NOT EXISTS "
+            + Tables.SYNC_JOURNAL + "(" + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + BirthdayAdapterContract.SyncJournalColumns.STARTED_AT + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncJournalColumns.UPDATED_AT + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncJournalColumns.REQUESTS + " TEXT NOT NULL, "
+            + BirthdayAdapterContract.SyncJournalColumns.PHASE + " INTEGER NOT NULL, "
+            + BirthdayAdapterContract.SyncJournalColumns.BATCHES + " INTEGER NOT NULL DEFAULT 0, "
+            + BirthdayAdapterContract.SyncJournalColumns.OPERATIONS + " INTEGER NOT NULL DEFAULT 0, "
+            + BirthdayAdapterContract.SyncJournalColumns.ATTEMPTS + " INTEGER NOT NULL DEFAULT 1)";
+
+    /**
+     * The provider and the sync share one instance, so there is only one connection to the
+     * database file.
+     */
+    static synchronized BirthdayAdapterDatabase getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BirthdayAdapterDatabase(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BirthdayAdapterDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
@@ -51,6 +109,10 @@ public class BirthdayAdapterDatabase extends SQLiteOpenHelper {
         Log.w(Constants.TAG, "Creating database...");
 
         db.execSQL(CREATE_ACCOUNT_BLACKLIST);
+        db.execSQL(CREATE_EVENTS_MIRROR);
+        db.execSQL(CREATE_EVENTS_MIRROR_CONTACT_INDEX);
+        db.execSQL(CREATE_SYNC_HISTORY);
+        db.execSQL(CREATE_SYNC_JOURNAL);
     }
 
     @Override
@@ -60,9 +122,13 @@ public class BirthdayAdapterDatabase extends SQLiteOpenHelper {
         if (oldVersion < 2) {
             db.execSQL("ALTER TABLE " + Tables.ACCOUNT_BLACKLIST + " ADD COLUMN "
                     + BirthdayAdapterContract.AccountBlacklistColumns.ACCOUNT_GROUP + " TEXT");
-        } else {
-            db.execSQL("DROP TABLE IF EXISTS " + Tables.ACCOUNT_BLACKLIST);
-            onCreate(db);
+        }
+        if (oldVersion < 3) {
+            // The mirror starts empty, the next sync rebuilds it from the calendar
+            db.execSQL(CREATE_EVENTS_MIRROR);
+            db.execSQL(CREATE_EVENTS_MIRROR_CONTACT_INDEX);
+            db.execSQL(CREATE_SYNC_HISTORY);
+            db.execSQL(CREATE_SYNC_JOURNAL);
         }
     }
 }
\ No newline at end of file
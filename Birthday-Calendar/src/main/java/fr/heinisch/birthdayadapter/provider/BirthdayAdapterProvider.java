@@ -21,8 +21,11 @@
 package fr.heinisch.birthdayadapter.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteConstraintException;
@@ -35,6 +38,8 @@ import android.text.TextUtils;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.ArrayList;
+
 import fr.heinisch.birthdayadapter.util.Constants;
 import fr.heinisch.birthdayadapter.util.Log;
 
@@ -60,6 +65,9 @@ public class BirthdayAdapterProvider extends ContentProvider {
 
     private BirthdayAdapterDatabase mBirthdayAdapterDatabase;
 
+    // Set while a bulk operation runs on the thread, its changes are notified once at the end
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<>();
+
     /**
      * {@inheritDoc}
      */
@@ -67,7 +75,7 @@ public class BirthdayAdapterProvider extends ContentProvider {
     public boolean onCreate() {
         final Context context = getContext();
         if (context != null) {
-            mBirthdayAdapterDatabase = new BirthdayAdapterDatabase(context);
+            mBirthdayAdapterDatabase = BirthdayAdapterDatabase.getInstance(context);
             return true;
         }
         return false;
@@ -114,14 +122,70 @@ public class BirthdayAdapterProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        final Context context = getContext();
-        if (context != null) {
-            context.getContentResolver().notifyChange(uri, null);
-        }
+        notifyChange(uri);
 
         return rowUri;
     }
 
+    /**
+     * Inserts all rows in one transaction with a single change notification.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        if (sUriMatcher.match(uri) != ACCOUNT_BLACKLIST) {
+            throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+        Log.d(Constants.TAG, "bulkInsert(uri=" + uri + ", count=" + values.length + ")");
+
+        final SQLiteDatabase db = mBirthdayAdapterDatabase.getWritableDatabase();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues rowValues : values) {
+                try {
+                    db.insertOrThrow(BirthdayAdapterDatabase.Tables.ACCOUNT_BLACKLIST, null, rowValues);
+                    count++;
+                } catch (SQLiteConstraintException e) {
+                    Log.e(Constants.TAG, "Constraint exception on insert! Entry already existing?");
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (count > 0) {
+            notifyChange(uri);
+        }
+        return count;
+    }
+
+    /**
+     * Applies all operations in one transaction, which is rolled back if one of them fails, with a
+     * single change notification.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mBirthdayAdapterDatabase.getWritableDatabase();
+        ContentProviderResult[] results;
+        mApplyingBatch.set(Boolean.TRUE);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mApplyingBatch.remove();
+        }
+
+        if (!operations.isEmpty()) {
+            notifyChange(BirthdayAdapterContract.AccountBlacklist.CONTENT_URI);
+        }
+        return results;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -186,12 +250,21 @@ public class BirthdayAdapterProvider extends ContentProvider {
         }
 
         // notify of changes in db
+        notifyChange(uri);
+
+        return count;
+    }
+
+    private void notifyChange(@NonNull Uri uri) {
+        if (mApplyingBatch.get() != null) {
+            return;
+        }
+        // The only table of the provider is the blacklist
+        ProviderHelper.invalidateAccountBlacklist();
         final Context context = getContext();
         if (context != null) {
             context.getContentResolver().notifyChange(uri, null);
         }
-
-        return count;
     }
 
     /**
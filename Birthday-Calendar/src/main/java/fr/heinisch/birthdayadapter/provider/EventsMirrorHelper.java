@@ -0,0 +1,256 @@
+package fr.heinisch.birthdayadapter.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.heinisch.birthdayadapter.core.EventUid;
+import fr.heinisch.birthdayadapter.provider.BirthdayAdapterContract.EventsMirror;
+
+/**
+ * Access to the local mirror of the birthday calendar. The mirror maps the UID of every event
+ * written by the sync to its calendar _ID, so the sync can diff and delete events without
+ * scanning the calendar provider.
+ */
+public class EventsMirrorHelper {
+
+    // Keeps "IN (...)" selections well below SQLite's limit on expression depth and length
+    private static final int IN_CLAUSE_CHUNK_SIZE = 500;
+
+    /**
+     * Event type of events written by older versions, which did not store it.
+     */
+    public static final int UNKNOWN_TYPE = -1;
+
+    /**
+     * State of a single event in the birthday calendar.
+     */
+    public static class Entry {
+        public final long eventId;
+        public final String contactTag;
+        public final long fingerprint;
+        public final String reminders;
+        public final int eventType;
+
+        /**
+         * @param contactTag  id of the contact the event was created for, empty if unknown
+         * @param fingerprint hash of the event content, see the sync for its definition
+         * @param reminders   sorted, comma separated reminder minutes, empty if the event has none
+         * @param eventType   type of the contact event, {@link #UNKNOWN_TYPE} if unknown
+         */
+        public Entry(long eventId, String contactTag, long fingerprint, String reminders, int eventType) {
+            this.eventId = eventId;
+            this.contactTag = contactTag;
+            this.fingerprint = fingerprint;
+            this.reminders = reminders;
+            this.eventType = eventType;
+        }
+    }
+
+    /**
+     * Returns true if the mirror does not know any event of the given calendar, e.g. after an
+     * upgrade or after the calendar has been recreated.
+     */
+    public static boolean isEmpty(Context context, long calendarId) {
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getReadableDatabase();
+        return DatabaseUtils.queryNumEntries(db, BirthdayAdapterDatabase.Tables.EVENTS_MIRROR,
+                EventsMirror.CALENDAR_ID + " = ?", new String[]{String.valueOf(calendarId)}) == 0;
+    }
+
+    /**
+     * Loads the mirrored events of the given calendar keyed by UID.
+     *
+     * @param contactIdClauses "contact_id IN (...)" selections restricting the result, null for all events
+     */
+    public static HashMap<String, Entry> load(Context context, long calendarId, List<String> contactIdClauses) {
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getReadableDatabase();
+        HashMap<String, Entry> entries = new HashMap<>();
+
+        String selection = EventsMirror.CALENDAR_ID + " = ?";
+        String[] selectionArgs = new String[]{String.valueOf(calendarId)};
+        String[] projection = new String[]{EventsMirror.UID, EventsMirror.EVENT_ID, EventsMirror.CONTACT_ID,
+                EventsMirror.FINGERPRINT, EventsMirror.REMINDERS, EventsMirror.EVENT_TYPE};
+
+        if (contactIdClauses == null) {
+            readEntries(db, projection, selection, selectionArgs, entries);
+        } else {
+            for (String clause : contactIdClauses) {
+                readEntries(db, projection, selection + " AND " + clause, selectionArgs, entries);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Loads the mirrored yearly events of the given years keyed by UID. Recurring events are not
+     * bound to a year and never included.
+     */
+    public static HashMap<String, Entry> loadYears(Context context, long calendarId, Collection<Integer> years) {
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getReadableDatabase();
+        HashMap<String, Entry> entries = new HashMap<>();
+
+        String selection = EventsMirror.CALENDAR_ID + " = ? AND " + EventsMirror.UID + " LIKE ?";
+        String[] projection = new String[]{EventsMirror.UID, EventsMirror.EVENT_ID, EventsMirror.CONTACT_ID,
+                EventsMirror.FINGERPRINT, EventsMirror.REMINDERS, EventsMirror.EVENT_TYPE};
+        for (int year : years) {
+            // The year is the last part of the UID
+            readEntries(db, projection, selection, new String[]{String.valueOf(calendarId), "%:" + year}, entries);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the number of mirrored events.
+     *
+     * @param recurring whether to count the recurring events or the yearly events
+     */
+    public static long countEvents(Context context, boolean recurring) {
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getReadableDatabase();
+        return DatabaseUtils.queryNumEntries(db, BirthdayAdapterDatabase.Tables.EVENTS_MIRROR,
+                EventsMirror.UID + (recurring ? " LIKE ?" : " NOT LIKE ?"),
+                new String[]{"%:" + EventUid.RECURRING_SUFFIX});
+    }
+
+    private static void readEntries(SQLiteDatabase db, String[] projection, String selection, String[] selectionArgs,
+                                    HashMap<String, Entry> entries) {
+        try (Cursor cursor = db.query(BirthdayAdapterDatabase.Tables.EVENTS_MIRROR, projection, selection, selectionArgs,
+                null, null, null)) {
+            while (cursor.moveToNext()) {
+                String contactTag = cursor.getString(2);
+                String reminders = cursor.getString(4);
+                entries.put(cursor.getString(0), new Entry(cursor.getLong(1), contactTag == null ? "" : contactTag,
+                        cursor.getLong(3), reminders == null ? "" : reminders,
+                        cursor.isNull(5) ? UNKNOWN_TYPE : cursor.getInt(5)));
+            }
+        }
+    }
+
+    /**
+     * Replaces the whole mirror with the given events, used after the events have been read from
+     * the calendar itself.
+     */
+    public static void replaceAll(Context context, long calendarId, Map<String, Entry> entries) {
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(BirthdayAdapterDatabase.Tables.EVENTS_MIRROR, null, null);
+            writeEntries(db, calendarId, entries);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Inserts or replaces the given events.
+     */
+    public static void putAll(Context context, long calendarId, Map<String, Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            writeEntries(db, calendarId, entries);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void writeEntries(SQLiteDatabase db, long calendarId, Map<String, Entry> entries) {
+        ContentValues values = new ContentValues();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry event = entry.getValue();
+            values.clear();
+            values.put(EventsMirror.UID, entry.getKey());
+            values.put(EventsMirror.EVENT_ID, event.eventId);
+            values.put(EventsMirror.CALENDAR_ID, calendarId);
+            values.put(EventsMirror.CONTACT_ID, event.contactTag);
+            values.put(EventsMirror.FINGERPRINT, event.fingerprint);
+            values.put(EventsMirror.REMINDERS, event.reminders);
+            if (event.eventType != UNKNOWN_TYPE) {
+                values.put(EventsMirror.EVENT_TYPE, event.eventType);
+            }
+            db.insertWithOnConflict(BirthdayAdapterDatabase.Tables.EVENTS_MIRROR, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        }
+    }
+
+    /**
+     * Sets the reminders of the given events, keyed by event id.
+     */
+    public static void updateReminders(Context context, Map<Long, String> remindersByEventId) {
+        if (remindersByEventId.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            String[] selectionArgs = new String[1];
+            for (Map.Entry<Long, String> entry : remindersByEventId.entrySet()) {
+                values.put(EventsMirror.REMINDERS, entry.getValue());
+                selectionArgs[0] = String.valueOf(entry.getKey());
+                db.update(BirthdayAdapterDatabase.Tables.EVENTS_MIRROR, values, EventsMirror.EVENT_ID + " = ?", selectionArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Removes the events with the given UIDs.
+     */
+    public static void delete(Context context, Collection<String> uids) {
+        if (uids.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            String[] chunk = new String[Math.min(uids.size(), IN_CLAUSE_CHUNK_SIZE)];
+            int count = 0;
+            for (String uid : uids) {
+                chunk[count++] = uid;
+                if (count == chunk.length) {
+                    deleteChunk(db, chunk);
+                    count = 0;
+                }
+            }
+            if (count > 0) {
+                String[] rest = new String[count];
+                System.arraycopy(chunk, 0, rest, 0, count);
+                deleteChunk(db, rest);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void deleteChunk(SQLiteDatabase db, String[] uids) {
+        StringBuilder selection = new StringBuilder(EventsMirror.UID).append(" IN (");
+        for (int i = 0; i < uids.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+        db.delete(BirthdayAdapterDatabase.Tables.EVENTS_MIRROR, selection.toString(), uids);
+    }
+
+    /**
+     * Forgets all events, e.g. after the birthday calendar has been cleared or deleted.
+     */
+    public static void clear(Context context) {
+        BirthdayAdapterDatabase.getInstance(context).getWritableDatabase()
+                .delete(BirthdayAdapterDatabase.Tables.EVENTS_MIRROR, null, null);
+    }
+}
@@ -21,76 +21,213 @@
 package fr.heinisch.birthdayadapter.provider;
 
 import android.accounts.Account;
-import android.content.ContentValues;
+import android.content.ContentProviderOperation;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.os.RemoteException;
+
+import fr.heinisch.birthdayadapter.core.AccountBlacklist;
+import fr.heinisch.birthdayadapter.util.Constants;
+import fr.heinisch.birthdayadapter.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ProviderHelper {
 
-    public static void setAccountBlacklist(Context context, HashMap<Account, HashSet<String>> blacklist) {
-        // clear table
-        context.getContentResolver().delete(BirthdayAdapterContract.AccountBlacklist.CONTENT_URI, null, null);
-
-        ArrayList<ContentValues> valuesList = new ArrayList<>();
+    // Saves run one after another, a save replaced before it started is skipped
+    private static final ExecutorService sBlacklistExecutor = Executors.newSingleThreadExecutor();
+    private static final AtomicReference<HashMap<Account, HashSet<String>>> sPendingBlacklist = new AtomicReference<>();
+
+    /**
+     * Saves the blacklist in the background. Blacklists passed before an earlier one has been
+     * saved replace it, so a burst of changes is written once.
+     *
+     * @param onSaved run on the background thread after the blacklist has been saved, if it
+     *                changed; may be null
+     */
+    public static void setAccountBlacklistAsync(Context context, HashMap<Account, HashSet<String>> blacklist,
+                                                Runnable onSaved) {
+        final Context appContext = context.getApplicationContext();
+        sPendingBlacklist.set(blacklist);
+        sBlacklistExecutor.execute(() -> {
+            HashMap<Account, HashSet<String>> pending = sPendingBlacklist.getAndSet(null);
+            if (pending == null) {
+                return;
+            }
+            if (setAccountBlacklist(appContext, pending) > 0 && onSaved != null) {
+                onSaved.run();
+            }
+        });
+    }
 
+    /**
+     * Writes the blacklist, touching only the rows which differ from the stored ones. All changes
+     * are applied in one transaction with a single change notification.
+     *
+     * @return the number of inserted and deleted rows
+     */
+    public static int setAccountBlacklist(Context context, HashMap<Account, HashSet<String>> blacklist) {
+        // Rows to store, as type, name and group. A null group blacklists the whole account,
+        // blacklisted groups are always kept, even if the whole account is blacklisted.
+        HashSet<List<String>> wantedRows = new HashSet<>();
         for (Map.Entry<Account, HashSet<String>> entry : blacklist.entrySet()) {
             Account acc = entry.getKey();
-            HashSet<String> groups = entry.getValue();
-
-            boolean accountIsBlacklisted = groups.contains(null);
-            if (accountIsBlacklisted) {
-                // account is blacklisted without specific groups
-                ContentValues values = new ContentValues();
-                values.put(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_NAME, acc.name);
-                values.put(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_TYPE, acc.type);
-                values.putNull(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_GROUP);
-                valuesList.add(values);
+            for (String group : entry.getValue()) {
+                wantedRows.add(Arrays.asList(acc.type, acc.name, group));
             }
+        }
 
-            // Always save blacklisted groups, even if the whole account is blacklisted
-            for (String group : groups) {
-                if (group != null) {
-                    ContentValues values = new ContentValues();
-                    values.put(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_NAME, acc.name);
-                    values.put(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_TYPE, acc.type);
-                    values.put(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_GROUP, group);
-                    valuesList.add(values);
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        try (Cursor cursor = getAccountBlacklistCursor(context)) {
+            if (cursor != null) {
+                int idColumn = cursor.getColumnIndexOrThrow(BirthdayAdapterContract.AccountBlacklist._ID);
+                int nameColumn = cursor.getColumnIndexOrThrow(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_NAME);
+                int typeColumn = cursor.getColumnIndexOrThrow(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_TYPE);
+                int groupColumn = cursor.getColumnIndexOrThrow(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_GROUP);
+                while (cursor.moveToNext()) {
+                    List<String> row = Arrays.asList(cursor.getString(typeColumn), cursor.getString(nameColumn),
+                            cursor.getString(groupColumn));
+                    // Rows still wanted are kept, duplicates and rows no longer wanted are deleted
+                    if (!wantedRows.remove(row)) {
+                        operations.add(ContentProviderOperation.newDelete(
+                                BirthdayAdapterContract.AccountBlacklist.buildUri(cursor.getString(idColumn))).build());
+                    }
                 }
             }
         }
 
-        ContentValues[] values = new ContentValues[valuesList.size()];
-        valuesList.toArray(values);
+        for (List<String> row : wantedRows) {
+            operations.add(ContentProviderOperation.newInsert(BirthdayAdapterContract.AccountBlacklist.CONTENT_URI)
+                    .withValue(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_TYPE, row.get(0))
+                    .withValue(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_NAME, row.get(1))
+                    .withValue(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_GROUP, row.get(2))
+                    .build());
+        }
 
-        // insert as bulk operation
-        context.getContentResolver().bulkInsert(BirthdayAdapterContract.AccountBlacklist.CONTENT_URI, values);
+        if (operations.isEmpty()) {
+            return 0;
+        }
+        try {
+            context.getContentResolver().applyBatch(BirthdayAdapterContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(Constants.TAG, "Error saving account blacklist!", e);
+            return 0;
+        }
+        Log.d(Constants.TAG, "Account blacklist saved, " + operations.size() + " rows changed");
+        return operations.size();
     }
 
-    public static HashMap<Account, HashSet<String>> getAccountBlacklist(Context context) {
-        HashMap<Account, HashSet<String>> hashMap = new HashMap<>();
-        Cursor cursor = getAccountBlacklistCursor(context);
+    /**
+     * Blacklist as stored at one version of the blacklist table. It is immutable and shared by
+     * all readers until the table changes.
+     */
+    public static final class AccountBlacklistSnapshot {
+        private final int mVersion;
+        private final Map<Account, Set<String>> mBlacklist;
+        // Compact forms for the per-row checks of the sync, with and without group filtering
+        private final AccountBlacklist mFilter;
+        private final AccountBlacklist mGroupFilter;
+
+        private AccountBlacklistSnapshot(int version, HashMap<Account, HashSet<String>> blacklist) {
+            mVersion = version;
+            HashMap<Account, Set<String>> groups = new HashMap<>();
+            mFilter = new AccountBlacklist(false);
+            mGroupFilter = new AccountBlacklist(true);
+            for (Map.Entry<Account, HashSet<String>> entry : blacklist.entrySet()) {
+                Account acc = entry.getKey();
+                groups.put(acc, Collections.unmodifiableSet(entry.getValue()));
+                for (String group : entry.getValue()) {
+                    mFilter.add(acc.type, acc.name, group);
+                    mGroupFilter.add(acc.type, acc.name, group);
+                }
+            }
+            mBlacklist = Collections.unmodifiableMap(groups);
+        }
 
-        try {
-            while (cursor != null && cursor.moveToNext()) {
-                Account acc = new Account(
-                        cursor.getString(cursor.getColumnIndexOrThrow(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_NAME)),
-                        cursor.getString(cursor.getColumnIndexOrThrow(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_TYPE)));
-                String group = cursor.getString(cursor.getColumnIndexOrThrow(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_GROUP));
+        public int getVersion() {
+            return mVersion;
+        }
 
-                HashSet<String> groups = hashMap.computeIfAbsent(acc, k -> new HashSet<>());
+        /**
+         * Returns the blacklisted groups by account, a null group blacklists the whole account.
+         */
+        public Map<Account, Set<String>> getBlacklist() {
+            return mBlacklist;
+        }
 
-                groups.add(group);
-            }
-        } finally {
-            if (cursor != null && !cursor.isClosed())
-                cursor.close();
+        /**
+         * Returns the blacklist in the form checked by the sync for every contact row. It must
+         * not be modified.
+         */
+        public AccountBlacklist getFilter(boolean groupFilteringEnabled) {
+            return groupFilteringEnabled ? mGroupFilter : mFilter;
+        }
+    }
+
+    // Incremented by every change of the blacklist table, see invalidateAccountBlacklist()
+    private static final AtomicInteger sBlacklistVersion = new AtomicInteger();
+    private static volatile AccountBlacklistSnapshot sBlacklistSnapshot;
+
+    /**
+     * Drops the cached blacklist. Called by {@link BirthdayAdapterProvider} whenever it notifies
+     * a change of the blacklist table.
+     */
+    static void invalidateAccountBlacklist() {
+        sBlacklistVersion.incrementAndGet();
+        sBlacklistSnapshot = null;
+    }
+
+    /**
+     * Returns the current blacklist, which is only read from the database after it changed.
+     */
+    public static AccountBlacklistSnapshot getAccountBlacklistSnapshot(Context context) {
+        AccountBlacklistSnapshot snapshot = sBlacklistSnapshot;
+        int version = sBlacklistVersion.get();
+        if (snapshot != null && snapshot.getVersion() == version) {
+            return snapshot;
+        }
+
+        snapshot = new AccountBlacklistSnapshot(version, readAccountBlacklist(context));
+        // A change while reading leaves the version behind, the next call reads again
+        if (sBlacklistVersion.get() == version) {
+            sBlacklistSnapshot = snapshot;
         }
+        return snapshot;
+    }
+
+    /**
+     * Returns the blacklisted groups by account, a null group blacklists the whole account.
+     */
+    public static Map<Account, Set<String>> getAccountBlacklist(Context context) {
+        return getAccountBlacklistSnapshot(context).getBlacklist();
+    }
 
+    private static HashMap<Account, HashSet<String>> readAccountBlacklist(Context context) {
+        HashMap<Account, HashSet<String>> hashMap = new HashMap<>();
+        try (Cursor cursor = getAccountBlacklistCursor(context)) {
+            if (cursor == null) {
+                return hashMap;
+            }
+            int nameColumn = cursor.getColumnIndexOrThrow(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_NAME);
+            int typeColumn = cursor.getColumnIndexOrThrow(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_TYPE);
+            int groupColumn = cursor.getColumnIndexOrThrow(BirthdayAdapterContract.AccountBlacklist.ACCOUNT_GROUP);
+            while (cursor.moveToNext()) {
+                Account acc = new Account(cursor.getString(nameColumn), cursor.getString(typeColumn));
+                hashMap.computeIfAbsent(acc, k -> new HashSet<>()).add(cursor.getString(groupColumn));
+            }
+        }
         return hashMap;
     }
 
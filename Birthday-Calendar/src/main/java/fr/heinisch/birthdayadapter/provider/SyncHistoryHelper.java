@@ -0,0 +1,110 @@
+package fr.heinisch.birthdayadapter.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.heinisch.birthdayadapter.provider.BirthdayAdapterContract.SyncHistory;
+
+/**
+ * Access to the metrics of past syncs. Only the most recent runs are kept.
+ */
+public class SyncHistoryHelper {
+
+    public static final int MAX_RUNS = 30;
+
+    private static final String[] PROJECTION = new String[]{
+            SyncHistory.STARTED_AT,
+            SyncHistory.FULL_SCAN,
+            SyncHistory.COMPLETE,
+            SyncHistory.DURATION_MS,
+            SyncHistory.GROUP_LOAD_MS,
+            SyncHistory.CONTACT_SCAN_MS,
+            SyncHistory.CALENDAR_LOAD_MS,
+            SyncHistory.PLANNING_MS,
+            SyncHistory.BATCH_APPLY_MS,
+            SyncHistory.DELETE_MS,
+            SyncHistory.ROWS_READ,
+            SyncHistory.OPERATIONS_WRITTEN,
+            SyncHistory.BATCHES,
+            SyncHistory.PEAK_HEAP,
+            SyncHistory.ROWS_KEPT
+    };
+
+    /**
+     * Metrics of a single sync, durations in milliseconds.
+     */
+    public static class Run {
+        public final long startedAt;
+        public final boolean fullScan;
+        public final boolean complete;
+        public final long durationMs;
+        public final long groupLoadMs;
+        public final long contactScanMs;
+        public final long calendarLoadMs;
+        public final long planningMs;
+        public final long batchApplyMs;
+        public final long deleteMs;
+        public final long rowsRead;
+        public final long operationsWritten;
+        public final long batches;
+        public final long peakHeap;
+        public final long rowsKept;
+
+        private Run(Cursor cursor) {
+            startedAt = cursor.getLong(0);
+            fullScan = cursor.getInt(1) != 0;
+            complete = cursor.getInt(2) != 0;
+            durationMs = cursor.getLong(3);
+            groupLoadMs = cursor.getLong(4);
+            contactScanMs = cursor.getLong(5);
+            calendarLoadMs = cursor.getLong(6);
+            planningMs = cursor.getLong(7);
+            batchApplyMs = cursor.getLong(8);
+            deleteMs = cursor.getLong(9);
+            rowsRead = cursor.getLong(10);
+            operationsWritten = cursor.getLong(11);
+            batches = cursor.getLong(12);
+            peakHeap = cursor.getLong(13);
+            rowsKept = cursor.getLong(14);
+        }
+    }
+
+    /**
+     * Adds a run and drops the oldest runs beyond {@link #MAX_RUNS}.
+     *
+     * @param values columns of {@link SyncHistory}
+     */
+    public static void insert(Context context, ContentValues values) {
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.insert(BirthdayAdapterDatabase.Tables.SYNC_HISTORY, null, values);
+            db.delete(BirthdayAdapterDatabase.Tables.SYNC_HISTORY, SyncHistory._ID + " NOT IN (SELECT "
+                    + SyncHistory._ID + " FROM " + BirthdayAdapterDatabase.Tables.SYNC_HISTORY
+                    + " ORDER BY " + SyncHistory._ID + " DESC LIMIT " + MAX_RUNS + ")", null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the most recent runs, newest first.
+     */
+    public static List<Run> getRecent(Context context, int limit) {
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getReadableDatabase();
+        List<Run> runs = new ArrayList<>();
+        try (Cursor cursor = db.query(BirthdayAdapterDatabase.Tables.SYNC_HISTORY, PROJECTION, null, null,
+                null, null, SyncHistory._ID + " DESC", String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                runs.add(new Run(cursor));
+            }
+        }
+        return runs;
+    }
+}
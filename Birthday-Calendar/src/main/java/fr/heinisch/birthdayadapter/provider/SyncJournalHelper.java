@@ -0,0 +1,150 @@
+package fr.heinisch.birthdayadapter.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import fr.heinisch.birthdayadapter.provider.BirthdayAdapterContract.SyncJournal;
+
+/**
+ * Access to the journal of the syncs. A sync is journaled from its start until it has run to
+ * completion, so a sync which was stopped half-way can be resumed by the next one. Only the most
+ * recent finished entries are kept.
+ */
+public class SyncJournalHelper {
+
+    public static final int MAX_ENTRIES = 30;
+
+    // Phases of an entry, ordered by progress
+    public static final int PHASE_STARTED = 0;
+    // A full resync builds the new events in the shadow calendar
+    public static final int PHASE_REBUILDING = 1;
+    public static final int PHASE_FINISHED = 2;
+    // Given up on after too many attempts
+    public static final int PHASE_ABANDONED = 3;
+
+    private static final String[] PROJECTION = new String[]{
+            SyncJournal._ID,
+            SyncJournal.STARTED_AT,
+            SyncJournal.REQUESTS,
+            SyncJournal.PHASE,
+            SyncJournal.BATCHES,
+            SyncJournal.OPERATIONS,
+            SyncJournal.ATTEMPTS
+    };
+
+    /**
+     * A journaled sync.
+     */
+    public static class Entry {
+        public final long id;
+        public final long startedAt;
+        // Comma separated worker actions
+        public final String requests;
+        public final int phase;
+        // Batches committed to the calendar, and the writes in them
+        public final int batches;
+        public final int operations;
+        public final int attempts;
+
+        private Entry(Cursor cursor) {
+            id = cursor.getLong(0);
+            startedAt = cursor.getLong(1);
+            requests = cursor.getString(2);
+            phase = cursor.getInt(3);
+            batches = cursor.getInt(4);
+            operations = cursor.getInt(5);
+            attempts = cursor.getInt(6);
+        }
+    }
+
+    /**
+     * Returns the most recent sync which has not run to completion, or null if there is none.
+     */
+    public static Entry getUnfinished(Context context) {
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getReadableDatabase();
+        try (Cursor cursor = db.query(BirthdayAdapterDatabase.Tables.SYNC_JOURNAL, PROJECTION,
+                SyncJournal.PHASE + " < ?", new String[]{String.valueOf(PHASE_FINISHED)},
+                null, null, SyncJournal._ID + " DESC", "1")) {
+            return cursor.moveToFirst() ? new Entry(cursor) : null;
+        }
+    }
+
+    /**
+     * Adds the entry of a new sync and drops the oldest finished entries beyond {@link #MAX_ENTRIES}.
+     *
+     * @return the id of the entry
+     */
+    public static long insert(Context context, String requests) {
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(SyncJournal.STARTED_AT, now);
+        values.put(SyncJournal.UPDATED_AT, now);
+        values.put(SyncJournal.REQUESTS, requests);
+        values.put(SyncJournal.PHASE, PHASE_STARTED);
+
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long id = db.insertOrThrow(BirthdayAdapterDatabase.Tables.SYNC_JOURNAL, null, values);
+            db.delete(BirthdayAdapterDatabase.Tables.SYNC_JOURNAL, SyncJournal.PHASE + " >= " + PHASE_FINISHED
+                    + " AND " + SyncJournal._ID + " NOT IN (SELECT " + SyncJournal._ID + " FROM "
+                    + BirthdayAdapterDatabase.Tables.SYNC_JOURNAL + " ORDER BY " + SyncJournal._ID
+                    + " DESC LIMIT " + MAX_ENTRIES + ")", null);
+            db.setTransactionSuccessful();
+            return id;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Takes up an unfinished entry again for another attempt.
+     *
+     * @param requests the requests of the entry merged with those of the resuming sync
+     */
+    public static void resume(Context context, long id, String requests) {
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getWritableDatabase();
+        db.execSQL("UPDATE " + BirthdayAdapterDatabase.Tables.SYNC_JOURNAL + " SET "
+                        + SyncJournal.ATTEMPTS + " = " + SyncJournal.ATTEMPTS + " + 1, "
+                        + SyncJournal.REQUESTS + " = ?, " + SyncJournal.UPDATED_AT + " = ? WHERE "
+                        + SyncJournal._ID + " = ?",
+                new Object[]{requests, System.currentTimeMillis(), id});
+    }
+
+    /**
+     * Moves the entry on to the given phase.
+     */
+    public static void setPhase(Context context, long id, int phase) {
+        ContentValues values = new ContentValues();
+        values.put(SyncJournal.PHASE, phase);
+        values.put(SyncJournal.UPDATED_AT, System.currentTimeMillis());
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getWritableDatabase();
+        db.update(BirthdayAdapterDatabase.Tables.SYNC_JOURNAL, values, SyncJournal._ID + " = ?",
+                new String[]{String.valueOf(id)});
+    }
+
+    /**
+     * Counts a batch which has been committed to the calendar. The changes recording the batch,
+     * e.g. in the events mirror, are committed in the same transaction as the count, so the
+     * journal never claims a batch whose changes were lost.
+     *
+     * @param changes writes to this database, run inside the transaction
+     */
+    public static void commitBatch(Context context, long id, int operations, Runnable changes) {
+        SQLiteDatabase db = BirthdayAdapterDatabase.getInstance(context).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            changes.run();
+            db.execSQL("UPDATE " + BirthdayAdapterDatabase.Tables.SYNC_JOURNAL + " SET "
+                            + SyncJournal.BATCHES + " = " + SyncJournal.BATCHES + " + 1, "
+                            + SyncJournal.OPERATIONS + " = " + SyncJournal.OPERATIONS + " + ?, "
+                            + SyncJournal.UPDATED_AT + " = ? WHERE " + SyncJournal._ID + " = ?",
+                    new Object[]{operations, System.currentTimeMillis(), id});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -1,9 +1,6 @@
 package fr.heinisch.birthdayadapter.service;
 
-import static fr.heinisch.birthdayadapter.util.VersionHelper.isFullVersionUnlocked;
-
 import android.Manifest;
-import android.accounts.Account;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -16,118 +13,165 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.net.Uri;
 import android.os.Build;
 import android.os.OperationCanceledException;
-import android.provider.BaseColumns;
+import android.os.SystemClock;
 import android.provider.CalendarContract;
 import android.provider.ContactsContract;
-import android.text.TextUtils;
-import android.text.format.DateUtils;
 
 import androidx.annotation.NonNull;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
-import androidx.preference.PreferenceManager;
 import androidx.work.ForegroundInfo;
-import androidx.work.Worker;
+import androidx.work.ListenableWorker;
 import androidx.work.WorkerParameters;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import fr.heinisch.birthdayadapter.R;
-import fr.heinisch.birthdayadapter.provider.ProviderHelper;
+import fr.heinisch.birthdayadapter.core.EventContent;
+import fr.heinisch.birthdayadapter.core.EventDiff;
+import fr.heinisch.birthdayadapter.core.MergeDiff;
+import fr.heinisch.birthdayadapter.provider.BirthdayAdapterContract;
+import fr.heinisch.birthdayadapter.provider.EventsMirrorHelper;
+import fr.heinisch.birthdayadapter.provider.SyncHistoryHelper;
 import fr.heinisch.birthdayadapter.util.AccountHelper;
 import fr.heinisch.birthdayadapter.util.CalendarHelper;
 import fr.heinisch.birthdayadapter.util.Constants;
 import fr.heinisch.birthdayadapter.util.Log;
 import fr.heinisch.birthdayadapter.util.PreferencesHelper;
-import fr.heinisch.birthdayadapter.util.SyncStatusManager;
+import fr.heinisch.birthdayadapter.util.SyncWatermark;
 
-public class BirthdayWorker extends Worker {
+public class BirthdayWorker extends ListenableWorker {
 
     public static final String ACTION = "action";
+    // Several actions run one after another, written by SyncScheduler
+    public static final String ACTIONS = "actions";
     public static final String ACTION_CHANGE_COLOR = "CHANGE_COLOR";
     public static final String ACTION_SYNC = "SYNC";
     public static final String ACTION_FORCE_RESYNC = "FORCE_RESYNC";
+    public static final String ACTION_UPDATE_REMINDERS = "UPDATE_REMINDERS";
 
-    private static final Object sSyncLock = new Object();
+    // Keeps "IN (...)" selections well below SQLite's limit on expression depth and length
+    private static final int IN_CLAUSE_CHUNK_SIZE = 500;
+
+    // Outcomes of performSync()
+    private static final int SYNC_FAILED = 0;
+    // Ran to completion, but single writes were rejected by the calendar provider
+    private static final int SYNC_PARTIAL = 1;
+    private static final int SYNC_COMPLETE = 2;
 
     private static final int NOTIFICATION_ID = 3105;
     private static final String NOTIFICATION_CHANNEL_ID = "birthday_sync_channel";
 
-    private HashSet<Integer> jubileeYears;
-
     public BirthdayWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
         super(context, workerParams);
     }
 
+    /**
+     * Hands the work over to the {@link SyncCoordinator}, which runs it after the work of other
+     * workers. No thread of the worker waits meanwhile.
+     */
     @NonNull
     @Override
-    public Result doWork() {
-        String action = getInputData().getString(ACTION);
-        if (action == null) {
-            action = ACTION_SYNC; // Default for backward compatibility
-        }
-
+    public ListenableFuture<Result> startWork() {
         if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.S_V2) {
-            setForegroundAsync(getForegroundInfo());
-        }
+            setForegroundAsync(createForegroundInfo());
+        }
+
+        final Context context = getApplicationContext();
+        final SyncScheduler scheduler = SyncScheduler.getInstance(context);
+        // Requests may have been folded into this worker while it was enqueued
+        final EnumSet<SyncScheduler.Request> requests = scheduler.onSyncStarted(getId(), getRequests());
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            SyncCoordinator.getInstance(context).submit(requests, getId(), result -> {
+                scheduler.onSyncFinished();
+                completer.set(result);
+            });
+            return "BirthdayWorker " + requests;
+        });
+    }
 
-        final boolean shouldShowSpinner = ACTION_SYNC.equals(action) || ACTION_FORCE_RESYNC.equals(action) || ACTION_CHANGE_COLOR.equals(action);
+    @Override
+    public void onStopped() {
+        SyncCoordinator.getInstance(getApplicationContext()).stop(getId());
+    }
 
-        if (shouldShowSpinner) {
-            SyncStatusManager.getInstance().setSyncing(true);
-        }
+    @NonNull
+    @Override
+    public ListenableFuture<ForegroundInfo> getForegroundInfoAsync() {
+        return CallbackToFutureAdapter.getFuture(completer -> completer.set(createForegroundInfo()));
+    }
 
-        try {
-            AccountHelper accountHelper = new AccountHelper(getApplicationContext());
-            if (!accountHelper.isAccountActivated()) {
-                Log.d(Constants.TAG, "Account not active, skipping work.");
-                return Result.success();
+    private EnumSet<SyncScheduler.Request> getRequests() {
+        String[] actions = getInputData().getStringArray(ACTIONS);
+        if (actions == null) {
+            String action = getInputData().getString(ACTION);
+            if (action == null) {
+                action = ACTION_SYNC; // Default for backward compatibility
             }
+            actions = new String[]{action};
+        }
+        EnumSet<SyncScheduler.Request> requests = EnumSet.noneOf(SyncScheduler.Request.class);
+        for (String action : actions) {
+            SyncScheduler.Request request = SyncScheduler.Request.fromAction(action);
+            if (request != null) {
+                requests.add(request);
+            }
+        }
+        return requests;
+    }
 
-            switch (action) {
-                case ACTION_CHANGE_COLOR:
-                    updateCalendarColor(getApplicationContext());
+    /**
+     * Runs the work of one or more workers, called by the {@link SyncCoordinator} only.
+     */
+    static void runActions(Context context, EnumSet<SyncScheduler.Request> requests) throws OperationCanceledException {
+        AccountHelper accountHelper = new AccountHelper(context);
+        if (!accountHelper.isAccountActivated()) {
+            Log.d(Constants.TAG, "Account not active, skipping work.");
+            return;
+        }
+
+        // Left open if the job is interrupted, so the next job resumes it
+        SyncJournal journal = SyncJournal.open(context, requests);
+        if (!journal.isRebuilding()) {
+            sweepShadowCalendar(context);
+        }
+        for (SyncScheduler.Request request : journal.getRequests()) {
+            switch (request) {
+                case CHANGE_COLOR:
+                    updateCalendarColor(context);
                     break;
-                case ACTION_FORCE_RESYNC:
-                    Log.d(Constants.TAG, "Forcing a full resync...");
-                    CalendarHelper.deleteCalendar(getApplicationContext());
-                    performSync(getApplicationContext());
+                case FORCE_RESYNC:
+                    forceResync(context, journal);
                     break;
-                case ACTION_SYNC:
-                    performSync(getApplicationContext());
+                case SYNC:
+                    performSync(context, CalendarHelper.getCalendar(context), false, journal);
+                    break;
+                case UPDATE_REMINDERS:
+                    updateReminders(context, journal);
                     break;
-            }
-
-            return Result.success();
-        } catch (Exception e) {
-            Log.e(Constants.TAG, "Worker failed", e);
-            return Result.failure();
-        } finally {
-            if (shouldShowSpinner) {
-                SyncStatusManager.getInstance().setSyncing(false);
             }
         }
+        journal.finish();
     }
 
-    @NonNull
-    @Override
-    public ForegroundInfo getForegroundInfo() {
+    private ForegroundInfo createForegroundInfo() {
         Context context = getApplicationContext();
         String notificationTitle = context.getString(R.string.notification_title);
 
@@ -159,7 +203,7 @@ public class BirthdayWorker extends Worker {
     /**
      * Updates the color for the birthday calendar.
      */
-    private void updateCalendarColor(Context context) {
+    private static void updateCalendarColor(Context context) {
         Log.d(Constants.TAG, "Updating calendar color via Worker...");
 
         long calendarId = CalendarHelper.getCalendar(context);
@@ -189,663 +233,771 @@ public class BirthdayWorker extends Worker {
         }
     }
 
-    private void performSync(Context context) throws OperationCanceledException {
-        // Use a static lock to prevent concurrent syncs from interfering with each other,
-        // which would cause race conditions and duplicate events.
-        synchronized (sSyncLock) {
-            Log.d(Constants.TAG, "Starting sync inside lock...");
+    /**
+     * Applies the reminder settings to the existing events. Falls back to a sync scanning all
+     * contacts if the events cannot be updated on their own.
+     */
+    private static void updateReminders(Context context, SyncJournal journal) throws OperationCanceledException {
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CALENDAR) != PackageManager.PERMISSION_GRANTED ||
+                ContextCompat.checkSelfPermission(context, Manifest.permission.WRITE_CALENDAR) != PackageManager.PERMISSION_GRANTED) {
+            Log.e(Constants.TAG, "Reminder update failed: Missing calendar permissions.");
+            return;
+        }
 
-            if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CALENDAR) != PackageManager.PERMISSION_GRANTED ||
-                    ContextCompat.checkSelfPermission(context, Manifest.permission.WRITE_CALENDAR) != PackageManager.PERMISSION_GRANTED) {
-                Log.e(Constants.TAG, "Sync failed: Missing calendar permissions.");
-                return;
-            }
+        long calendarId = CalendarHelper.getCalendar(context);
+        if (calendarId == -1) {
+            Log.e(Constants.TAG, "Unable to create or find calendar");
+            return;
+        }
 
-            if (Thread.currentThread().isInterrupted()) {
-                throw new OperationCanceledException();
-            }
+        SyncSettings settings = SyncSettings.load(context);
+        ReminderUpdater updater = new ReminderUpdater(context, context.getContentResolver(), calendarId);
+        if (updater.run(settings.reminderMinutes, settings.reminderEventTypes)) {
+            return;
+        }
 
-            ContentResolver contentResolver = context.getContentResolver();
+        // Events without a stored type can only be matched to their contact events by a sync,
+        // which also writes the reminders if the events could not be read
+        Log.d(Constants.TAG, "Updating reminders by a full scan.");
+        SyncWatermark.invalidate(context);
+        performSync(context, calendarId, false, journal);
+    }
 
-            if (contentResolver == null) {
-                Log.e(Constants.TAG, "Unable to get content resolver!");
-                return;
-            }
+    /**
+     * Rebuilds all events in the hidden shadow calendar and swaps it in for the birthday calendar
+     * once it is complete. Calendar apps keep showing the old events meanwhile, and also if the
+     * rebuild fails. Single events the calendar rejected don't fail the rebuild, the next sync
+     * retries them. An interrupted rebuild is resumed by the next job.
+     */
+    private static void forceResync(Context context, SyncJournal journal) throws OperationCanceledException {
+        if (journal.isRebuilding()) {
+            // Keep the events written to the shadow calendar before the interruption
+            Log.d(Constants.TAG, "Resuming an interrupted full resync...");
+        } else {
+            Log.d(Constants.TAG, "Forcing a full resync...");
+            // From now on the mirror only knows the events of the shadow calendar
+            EventsMirrorHelper.clear(context);
+            SyncWatermark.invalidate(context);
+            journal.onRebuildStarted();
+        }
+
+        long rebuildStart = SystemClock.elapsedRealtime();
+        long shadowCalendarId = CalendarHelper.getShadowCalendar(context);
+        // Writes which may or may not have been applied, or contacts which could not be read,
+        // would leave the rebuilt calendar with missing or duplicate events
+        if (performSync(context, shadowCalendarId, true, journal) == SYNC_FAILED) {
+            Log.e(Constants.TAG, "Full resync incomplete, keeping the current calendar.");
+            discardShadowCalendar(context);
+            return;
+        }
 
-            long calendarId = CalendarHelper.getCalendar(context);
-            if (calendarId == -1) {
-                Log.e(Constants.TAG, "Unable to create or find calendar");
-                return;
-            }
+        long swapStart = SystemClock.elapsedRealtime();
+        if (!CalendarHelper.swapShadowCalendar(context, shadowCalendarId)) {
+            discardShadowCalendar(context);
+            return;
+        }
+        Log.i(Constants.TAG, "Full resync: rebuilt the calendar in " + (swapStart - rebuildStart)
+                + " ms, swapped it in in " + (SystemClock.elapsedRealtime() - swapStart) + " ms.");
+    }
 
-            // Get all existing event UIDs
-            ArrayList<String> existingEventUids = getExistingEventUids(context, contentResolver, calendarId);
-            final int totalEventsBeforeSync = existingEventUids.size();
-            int newEventsCount = 0;
+    /**
+     * Drops the shadow calendar left behind by a resync which was cancelled and not resumed, or
+     * given up on after too many attempts. To be called before any sync which does not resume a
+     * resync.
+     */
+    private static void sweepShadowCalendar(Context context) {
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.WRITE_CALENDAR) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        if (CalendarHelper.deleteShadowCalendar(context)) {
+            Log.i(Constants.TAG, "Removed the shadow calendar of an unfinished full resync.");
+            // The mirror may only know the events of the shadow calendar
+            EventsMirrorHelper.clear(context);
+            SyncWatermark.invalidate(context);
+        }
+    }
 
-            ArrayList<ContentProviderOperation> operationList = new ArrayList<>();
-            Map<String, String> firstNameCache = new HashMap<>();
-            Map<String, String> lastNameCache = new HashMap<>();
+    /**
+     * Drops the shadow calendar of a resync which could not be completed. The mirror only knows
+     * its events, so the next sync rebuilds the mirror from the birthday calendar.
+     */
+    private static void discardShadowCalendar(Context context) {
+        CalendarHelper.deleteShadowCalendar(context);
+        EventsMirrorHelper.clear(context);
+        SyncWatermark.invalidate(context);
+    }
 
-            try (Cursor cursor = getContactsEvents(context, contentResolver)) {
-                if (cursor == null) {
-                    Log.e(Constants.TAG, "Unable to get events from contacts! Cursor is null!");
-                    return;
-                }
+    /**
+     * Synchronizes the contact events into the birthday calendar.
+     *
+     * @param calendarId    the calendar to write to, -1 if it could not be found or created
+     * @param forceFullScan scan all contacts even if a valid watermark from a previous sync exists
+     * @param journal       records the batches committed to the calendar
+     * @return {@link #SYNC_COMPLETE} if the sync ran to completion and all changes were written,
+     * {@link #SYNC_PARTIAL} if only writes rejected on their own are missing
+     */
+    private static int performSync(Context context, long calendarId, boolean forceFullScan,
+                                   SyncJournal journal) throws OperationCanceledException {
+        // Syncs never run concurrently, the SyncCoordinator runs them one after another
+        Log.d(Constants.TAG, "Starting sync...");
 
-                int[] reminderMinutes = PreferencesHelper.getAllReminderMinutes(context);
-                Set<String> reminderEventTypes = PreferencesHelper.getReminderEventTypes(context);
-                Log.d(Constants.TAG, "Reminder minutes: " + Arrays.toString(reminderMinutes));
-                boolean hasReminders = reminderMinutes.length > 0;
+        // Contacts changed while this sync is running are picked up again by the next sync
+        final long syncStartedAt = System.currentTimeMillis();
+        final int currYear = Calendar.getInstance(TimeZone.getTimeZone("UTC")).get(Calendar.YEAR);
+        SyncMetrics metrics = new SyncMetrics();
 
-                int eventDateColumn = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Event.START_DATE);
-                int displayNameColumn = cursor.getColumnIndex(ContactsContract.Contacts.DISPLAY_NAME);
-                int eventTypeColumn = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Event.TYPE);
-                int eventCustomLabelColumn = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Event.LABEL);
-                int eventLookupKeyColumn = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Event.LOOKUP_KEY);
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CALENDAR) != PackageManager.PERMISSION_GRANTED ||
+                ContextCompat.checkSelfPermission(context, Manifest.permission.WRITE_CALENDAR) != PackageManager.PERMISSION_GRANTED) {
+            Log.e(Constants.TAG, "Sync failed: Missing calendar permissions.");
+            return SYNC_FAILED;
+        }
 
-                int backRef = 0;
+        if (Thread.currentThread().isInterrupted()) {
+            throw new OperationCanceledException();
+        }
 
-                boolean useLastNameFirst = PreferencesHelper.getUseLastNameFirst(context);
+        ContentResolver contentResolver = context.getContentResolver();
 
-                while (cursor.moveToNext()) {
-                    if (Thread.currentThread().isInterrupted()) {
-                        throw new OperationCanceledException();
-                    }
+        if (contentResolver == null) {
+            Log.e(Constants.TAG, "Unable to get content resolver!");
+            return SYNC_FAILED;
+        }
 
-                    String eventDateString = cursor.getString(eventDateColumn);
-                    String displayName = cursor.getString(displayNameColumn);
-                    int eventType = cursor.getInt(eventTypeColumn);
-                    String eventLookupKey = cursor.getString(eventLookupKeyColumn);
-                    String eventCustomLabel = cursor.getString(eventCustomLabelColumn);
-
-                    Date eventDate = parseEventDateString(context, eventDateString, displayName);
-
-                    if (eventDate != null) {
-                        Calendar eventCal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-                        eventCal.setTime(eventDate);
-                        int eventYear = eventCal.get(Calendar.YEAR);
-
-                        boolean hasYear = eventYear >= 1800;
-                        int currYear = Calendar.getInstance(TimeZone.getTimeZone("UTC")).get(Calendar.YEAR);
-
-                        int startYear = currYear - 3;
-                        int endYear = currYear + 5;
-
-                        for (int iteratedYear = startYear; iteratedYear <= endYear; iteratedYear++) {
-                            if (Thread.currentThread().isInterrupted()) {
-                                throw new OperationCanceledException();
-                            }
-
-                            if (hasYear && iteratedYear < eventYear) {
-                                continue; // Don't create events for years before the birth year
-                            }
-
-                            // Create a stable, unique ID for the event instance based on raw data
-                            String uidCore = eventLookupKey + ":" + eventDateString + ":" + eventType + ":" + displayName.hashCode();
-                            if (eventType == ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM && eventCustomLabel != null) {
-                                uidCore += ":" + eventCustomLabel;
-                            }
-                            String eventUid = uidCore + ":" + iteratedYear;
-
-                            // If the event already exists, remove it from the list of existing UIDs and continue
-                            if (existingEventUids.remove(eventUid)) {
-                                continue;
-                            }
-
-                            int age = iteratedYear - eventYear;
-                            boolean includeAge = hasYear && age >= 0;
-
-                            String title = generateTitle(context, eventType, cursor,
-                                    eventCustomLabelColumn, includeAge, displayName, age, eventLookupKey, firstNameCache, lastNameCache, useLastNameFirst);
-
-                            if (title != null && !title.trim().isEmpty()) {
-                                newEventsCount++;
-                                // Calculate the exact start time for this specific instance of the event
-                                Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-                                cal.setTime(eventDate);
-                                cal.set(Calendar.YEAR, iteratedYear);
-                                cal.set(Calendar.HOUR_OF_DAY, 0);
-                                cal.set(Calendar.MINUTE, 0);
-                                cal.set(Calendar.SECOND, 0);
-                                cal.set(Calendar.MILLISECOND, 0);
-                                long dtstart = cal.getTimeInMillis();
-
-                                boolean shouldAddReminder = hasReminders && reminderEventTypes.contains(String.valueOf(eventType));
-
-                                Log.v(Constants.TAG, "Adding event: " + title);
-                                operationList.add(insertEvent(context, calendarId, dtstart, title, eventLookupKey, eventUid, shouldAddReminder));
-
-                                if (shouldAddReminder) {
-                                    for (int minute : reminderMinutes) {
-                                        ContentProviderOperation.Builder builder = ContentProviderOperation
-                                                .newInsert(CalendarHelper.getBirthdayAdapterUri(context, CalendarContract.Reminders.CONTENT_URI));
-
-                                        builder.withValueBackReference(CalendarContract.Reminders.EVENT_ID, backRef);
-                                        builder.withValue(CalendarContract.Reminders.MINUTES, minute);
-                                        builder.withValue(CalendarContract.Reminders.METHOD, CalendarContract.Reminders.METHOD_ALERT);
-                                        operationList.add(builder.build());
-                                    }
-                                    backRef += 1 + reminderMinutes.length;
-                                } else {
-                                    backRef += 1;
-                                }
-                            }
-
-                            if (operationList.size() > 200) {
-                                applyBatchOperations(contentResolver, operationList);
-                                backRef = 0;
-                                operationList.clear();
-                            }
-                        }
-                    }
-                }
-            }
+        if (calendarId == -1) {
+            Log.e(Constants.TAG, "Unable to create or find calendar");
+            return SYNC_FAILED;
+        }
 
-            if (!operationList.isEmpty()) {
-                applyBatchOperations(contentResolver, operationList);
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CONTACTS) != PackageManager.PERMISSION_GRANTED) {
+            Log.e(Constants.TAG, "Missing READ_CONTACTS permission!");
+            return SYNC_FAILED;
+        }
+
+        SyncSettings settings = SyncSettings.load(context);
+        final int startYear = currYear - settings.windowPastYears;
+        final int endYear = currYear + settings.windowFutureYears;
+
+        // Only look at contacts changed since the last complete sync, if possible. The mirror
+        // has to know the current events, otherwise they can only be found by a full scan.
+        long calendarLoadStart = SyncMetrics.begin();
+        boolean mirrorEmpty = EventsMirrorHelper.isEmpty(context, calendarId);
+        long watermark = forceFullScan || mirrorEmpty
+                ? 0 : SyncWatermark.getValidWatermark(context, syncStartedAt);
+        int[] window = watermark > 0 ? SyncWatermark.getWindow(context) : null;
+        boolean horizon = false;
+        if (window != null && (window[0] != startYear || window[1] != endYear)) {
+            if (window[0] <= endYear && window[1] >= startYear) {
+                horizon = true;
+            } else {
+                // Nothing of the old window can be kept
+                watermark = 0;
             }
-
-            // Delete old events
-            int deletedEventsCount = 0;
-            if (!existingEventUids.isEmpty()) {
-                deletedEventsCount = existingEventUids.size();
-                Log.d(Constants.TAG, "Deleting " + deletedEventsCount + " old events.");
-                ArrayList<ContentProviderOperation> deleteOperationList = new ArrayList<>();
-                for (String uid : existingEventUids) {
-                    deleteOperationList.add(ContentProviderOperation.newDelete(CalendarHelper.getBirthdayAdapterUri(context, CalendarContract.Events.CONTENT_URI))
-                            .withSelection(CalendarContract.Events.UID_2445 + " = ?", new String[]{uid})
-                            .build());
+        }
+        // Years whose events are still up to date, only the other years of the window are planned
+        final int keptFirstYear = horizon ? Math.max(window[0], startYear) : Integer.MAX_VALUE;
+        final int keptLastYear = horizon ? Math.min(window[1], endYear) : Integer.MIN_VALUE;
+
+        List<String> contactIdClauses = null;
+        // Built once per sync instead of once per event
+        Uri eventsUri = CalendarHelper.getBirthdayAdapterUri(context, CalendarContract.Events.CONTENT_URI);
+        Uri remindersUri = CalendarHelper.getBirthdayAdapterUri(context, CalendarContract.Reminders.CONTENT_URI);
+        // Changes are added to the mirror once their batch has been applied
+        MirrorListener mirrorListener = new MirrorListener(context, calendarId, journal);
+        // Either all existing events are loaded by UID, or they are streamed in UID order
+        HashMap<String, EventsMirrorHelper.Entry> existingEvents = null;
+        CalendarEventStream existingStream = null;
+        if (horizon) {
+            // Only the events of the years entering or leaving the window change. Entering years
+            // are planned for all contacts, the events of leaving years are deleted by the diff.
+            Log.d(Constants.TAG, "Moving event window from " + window[0] + "-" + window[1] + " to "
+                    + startYear + "-" + endYear + ".");
+            ArrayList<Integer> changedYears = new ArrayList<>();
+            for (int year = Math.min(window[0], startYear); year <= Math.max(window[1], endYear); year++) {
+                if (year < keptFirstYear || year > keptLastYear) {
+                    changedYears.add(year);
                 }
-                applyBatchOperations(contentResolver, deleteOperationList);
             }
-
-            int checkedEventsCount = totalEventsBeforeSync - deletedEventsCount;
-            Log.i(Constants.TAG, "Sync summary: " + checkedEventsCount + " events confirmed, "
-                    + newEventsCount + " new events added, " + deletedEventsCount + " old events removed.");
-
-
-            // Store the last sync timestamp in a separate file to avoid triggering listeners
-            SharedPreferences syncPrefs = context.getSharedPreferences("sync_status_prefs", Context.MODE_PRIVATE);
-            syncPrefs.edit().putLong("last_sync_timestamp", System.currentTimeMillis()).apply();
-        }
-    }
-
-    private void applyBatchOperations(ContentResolver contentResolver, ArrayList<ContentProviderOperation> operationList) {
-        try {
-            ContentProviderResult[] results = contentResolver.applyBatch(CalendarContract.AUTHORITY, operationList);
-            if (results.length == 0) {
-                Log.w(Constants.TAG, "Batch operation returned no results.");
+            existingEvents = EventsMirrorHelper.loadYears(context, calendarId, changedYears);
+        } else if (watermark > 0) {
+            Set<Long> changedContactIds = getChangedContactIds(contentResolver, watermark);
+            Log.d(Constants.TAG, "Incremental sync: " + changedContactIds.size() + " contacts changed since last sync.");
+            metrics.addRowsRead(changedContactIds.size());
+            if (changedContactIds.isEmpty()) {
+                metrics.end(SyncMetrics.PHASE_CALENDAR_LOAD, calendarLoadStart);
+                finishSync(context, syncStartedAt, startYear, endYear, true, metrics, null, null);
+                return SYNC_COMPLETE;
             }
-        } catch (Exception e) {
-            Log.e(Constants.TAG, "Applying batch error!", e);
-        }
-    }
-
-    private ArrayList<String> getExistingEventUids(Context context, ContentResolver contentResolver, long calendarId) {
-        ArrayList<String> existingUids = new ArrayList<>();
-        Uri uri = CalendarHelper.getBirthdayAdapterUri(context, CalendarContract.Events.CONTENT_URI);
-
-        try (Cursor cursor = contentResolver.query(uri,
-                new String[]{CalendarContract.Events.UID_2445},
-                CalendarContract.Events.CALENDAR_ID + " = ?",
-                new String[]{String.valueOf(calendarId)},
-                null)) {
-
-            if (cursor == null) {
-                Log.e(Constants.TAG, "Unable to get existing events! Cursor is null!");
-                return existingUids;
+            contactIdClauses = buildInClauses(ContactsContract.Data.CONTACT_ID, changedContactIds, false);
+            existingEvents = EventsMirrorHelper.load(context, calendarId,
+                    buildInClauses(BirthdayAdapterContract.EventsMirror.CONTACT_ID, changedContactIds, true));
+        } else if (mirrorEmpty) {
+            metrics.setFullScan(true);
+            Log.d(Constants.TAG, "Full sync: scanning all contacts.");
+            // Events of older versions may have to be adopted under their legacy UIDs, which
+            // are looked up by UID. The calendar is the source of truth, rebuild the mirror from it.
+            existingEvents = getExistingEvents(context, contentResolver, calendarId);
+            if (existingEvents == null) {
+                return SYNC_FAILED;
             }
-
-            int uidColumn = cursor.getColumnIndex(CalendarContract.Events.UID_2445);
-            while (cursor.moveToNext()) {
-                existingUids.add(cursor.getString(uidColumn));
+            EventsMirrorHelper.replaceAll(context, calendarId, existingEvents);
+        } else {
+            metrics.setFullScan(true);
+            Log.d(Constants.TAG, "Full sync: merging all contacts with the calendar.");
+            // The mirror is rebuilt from the calendar while it is streamed. Until this sync has
+            // completed, it can't be trusted by incremental syncs.
+            existingStream = CalendarEventStream.open(contentResolver, eventsUri, calendarId, mirrorListener::addExisting);
+            if (existingStream == null) {
+                return SYNC_FAILED;
             }
+            SyncWatermark.invalidate(context);
+            EventsMirrorHelper.clear(context);
+        }
+        final int totalEventsBeforeSync = existingStream != null ? existingStream.getCount() : existingEvents.size();
+        metrics.addRowsRead(totalEventsBeforeSync);
+        metrics.end(SyncMetrics.PHASE_CALENDAR_LOAD, calendarLoadStart);
+
+        CalendarBatchWriter batchWriter = new CalendarBatchWriter(contentResolver, remindersUri, mirrorListener);
+        EventDeleter deleter = new EventDeleter(batchWriter, eventsUri, calendarId);
+        EventDiff<EventsMirrorHelper.Entry> diff = null;
+        MergeDiff<EventsMirrorHelper.Entry> mergeDiff = null;
+        if (existingStream != null) {
+            CalendarEventStream stream = existingStream;
+            // Outdated events are deleted as soon as the planned events have passed them
+            mergeDiff = new MergeDiff<>(existingStream,
+                    (uid, existing) -> deleter.add(existing.eventId, stream.isMirrored(existing.eventId) ? uid : null));
+        } else {
+            diff = new EventDiff<>(existingEvents);
         }
-        return existingUids;
-    }
+        // Structured names are only loaded if a title needs them
+        ContactNameResolver nameResolver = new ContactNameResolver(contentResolver, contactIdClauses);
+        // Legacy UIDs are not in the order of the current UIDs, so they can only be looked up by UID
+        EventPlanner planner = new EventPlanner(settings, calendarId, context.getPackageName(), eventsUri,
+                mergeDiff != null ? mergeDiff : diff, mergeDiff == null, batchWriter, nameResolver,
+                startYear, endYear, keptFirstYear, keptLastYear);
+
+        PeakHeapTracker heapTracker = new PeakHeapTracker();
+        boolean contactsComplete = false;
+        boolean outOfOrder = false;
+        int contactEventsCount = 0;
 
-    private Map<String, List<String>> getRawContactGroupTitles(ContentResolver contentResolver) {
-        Map<String, String> groupIdToTitleMap = new HashMap<>();
-        final String[] groupProjection = {ContactsContract.Groups._ID, ContactsContract.Groups.TITLE};
-        final String groupSelection = ContactsContract.Groups.DELETED + " = 0";
-
-        // Query all groups to create a mapping from group ID to group title
-        try (Cursor groupCursor = contentResolver.query(ContactsContract.Groups.CONTENT_URI,
-                groupProjection, groupSelection, null, null)) {
-            if (groupCursor != null) {
-                int idColumn = groupCursor.getColumnIndex(ContactsContract.Groups._ID);
-                int titleColumn = groupCursor.getColumnIndex(ContactsContract.Groups.TITLE);
-                while (groupCursor.moveToNext()) {
-                    String id = groupCursor.getString(idColumn);
-                    String title = groupCursor.getString(titleColumn);
-                    // We are not interested in system groups
-                    if (!TextUtils.isEmpty(title) && !title.startsWith("System Group:")) {
-                        groupIdToTitleMap.put(id, title);
+        try {
+            long groupLoadStart = SyncMetrics.begin();
+            try (ContactEventSource contactEvents = new ContactEventSource(context, contentResolver, contactIdClauses)) {
+                metrics.end(SyncMetrics.PHASE_GROUP_LOAD, groupLoadStart);
+                Log.d(Constants.TAG, "Reminder minutes: " + Arrays.toString(settings.reminderMinutes));
+                // Batches applied while planning are counted as batch apply only
+                long applyNanosBeforePlanning = batchWriter.getApplyNanos();
+
+                while (true) {
+                    long scanStart = SyncMetrics.begin();
+                    ContactEventSource.ContactEvent contactEvent = contactEvents.next();
+                    metrics.end(SyncMetrics.PHASE_CONTACT_SCAN, scanStart);
+                    if (contactEvent == null) {
+                        break;
                     }
+                    long planningStart = SyncMetrics.begin();
+                    if (++contactEventsCount % 256 == 0) {
+                        heapTracker.sample();
+                    }
+                    planner.add(contactEvent);
+                    metrics.end(SyncMetrics.PHASE_PLANNING, planningStart);
                 }
+                long planningStart = SyncMetrics.begin();
+                planner.finish();
+                metrics.end(SyncMetrics.PHASE_PLANNING, planningStart);
+                metrics.add(SyncMetrics.PHASE_PLANNING, applyNanosBeforePlanning - batchWriter.getApplyNanos());
+                metrics.addRowsRead(contactEvents.getRowsRead());
+                metrics.addRowsKept(contactEvents.getRowsKept());
+                contactsComplete = !contactEvents.hasFailed();
             }
-        }
-
-        Map<String, List<String>> rawContactToGroupTitlesMap = new HashMap<>();
-        final String[] membershipProjection = {
-                ContactsContract.Data.RAW_CONTACT_ID,
-                ContactsContract.CommonDataKinds.GroupMembership.GROUP_ROW_ID
-        };
-        final String membershipSelection = ContactsContract.Data.MIMETYPE + " = ?";
-        final String[] membershipSelectionArgs = {ContactsContract.CommonDataKinds.GroupMembership.CONTENT_ITEM_TYPE};
-
-        // Query all group memberships to link contacts to groups
-        try (Cursor membershipCursor = contentResolver.query(ContactsContract.Data.CONTENT_URI,
-                membershipProjection, membershipSelection, membershipSelectionArgs, null)) {
-            if (membershipCursor != null) {
-                int rawContactIdColumn = membershipCursor.getColumnIndex(ContactsContract.Data.RAW_CONTACT_ID);
-                int groupIdColumn = membershipCursor.getColumnIndex(ContactsContract.CommonDataKinds.GroupMembership.GROUP_ROW_ID);
-                while (membershipCursor.moveToNext()) {
-                    String rawContactId = membershipCursor.getString(rawContactIdColumn);
-                    String groupId = membershipCursor.getString(groupIdColumn);
-                    String groupTitle = groupIdToTitleMap.get(groupId);
-                    if (groupTitle != null) {
-                        rawContactToGroupTitlesMap
-                                .computeIfAbsent(rawContactId, k -> new ArrayList<>())
-                                .add(groupTitle);
+            heapTracker.sample();
+            batchWriter.flush();
+            metrics.add(SyncMetrics.PHASE_BATCH_APPLY, batchWriter.getApplyNanos());
+
+            // Delete old events by their _ID instead of searching the calendar for their UIDs
+            if (!contactsComplete) {
+                // Events of contacts which could not be read would be deleted. A failed query
+                // returns no events at all, so the merge has not passed any events yet.
+                Log.e(Constants.TAG, "Unable to read all events from contacts, keeping old events.");
+            } else {
+                long deleteStart = SyncMetrics.begin();
+                if (mergeDiff != null) {
+                    mergeDiff.finish();
+                } else {
+                    for (Map.Entry<String, EventsMirrorHelper.Entry> event : diff.getUnmatched().entrySet()) {
+                        deleter.add(event.getValue().eventId, event.getKey());
                     }
                 }
+                if (deleter.getCount() > 0) {
+                    Log.d(Constants.TAG, "Deleting " + deleter.getCount() + " old events.");
+                    deleter.flush();
+                    batchWriter.flush();
+                }
+                metrics.end(SyncMetrics.PHASE_DELETE, deleteStart);
+            }
+            mirrorListener.flushExisting();
+        } catch (MergeDiff.OutOfOrderException e) {
+            Log.e(Constants.TAG, "Sync merge: UIDs out of order, falling back to a diff by UID.", e);
+            outOfOrder = true;
+        } finally {
+            if (existingStream != null) {
+                existingStream.close();
             }
         }
-        return rawContactToGroupTitlesMap;
+        if (outOfOrder) {
+            // Existing events passed over by then have been deleted although they may still be
+            // planned. With an empty mirror the events are diffed by UID, which writes them again.
+            EventsMirrorHelper.clear(context);
+            SyncWatermark.invalidate(context);
+            return performSync(context, calendarId, true, journal);
+        }
+
+        int deletedEventsCount = deleter.getCount();
+        int checkedEventsCount = totalEventsBeforeSync - deletedEventsCount;
+        Log.i(Constants.TAG, "Sync summary: " + checkedEventsCount + " events confirmed, " + planner.getUpdatedEventsCount()
+                + " of them updated, " + planner.getNewEventsCount() + " new events added, " + deletedEventsCount
+                + " old events removed.");
+        if (mergeDiff != null) {
+            Log.i(Constants.TAG, "Sync merge: " + totalEventsBeforeSync + " events streamed in UID order.");
+        }
+        planner.logRecurrence();
+        Log.i(Constants.TAG, "Sync writes: " + batchWriter.getBatchCount() + " batches, "
+                + (batchWriter.getBytesWritten() / 1024) + " KiB, " + batchWriter.getRetryCount() + " retried parts, "
+                + batchWriter.getDroppedOperations() + " dropped operations.");
+        Log.i(Constants.TAG, "Sync memory: " + contactEventsCount + " contact events streamed, peak heap "
+                + (heapTracker.getPeakHeap() / 1024) + " KiB (+" + (heapTracker.getPeakHeapGrowth() / 1024) + " KiB during sync).");
+        Log.i(Constants.TAG, "Sync phases: " + metrics + ".");
+
+        boolean complete = contactsComplete && batchWriter.isComplete() && mirrorListener.isComplete();
+        // Contacts changed since the watermark are only up to date for the planned years. The
+        // watermark is invalidated otherwise, so the next sync retries rejected writes.
+        finishSync(context, horizon ? watermark : syncStartedAt, startYear, endYear, complete,
+                metrics, batchWriter, heapTracker);
+        if (complete) {
+            return horizon ? performSync(context, calendarId, false, journal) : SYNC_COMPLETE;
+        }
+        if (contactsComplete && !batchWriter.isUncertain() && mirrorListener.isComplete()) {
+            Log.e(Constants.TAG, "Sync completed without " + batchWriter.getDroppedOperations()
+                    + " operations the calendar rejected, they are retried by the next sync.");
+            return SYNC_PARTIAL;
+        }
+        return SYNC_FAILED;
     }
 
-    private Cursor getContactsEvents(Context context, ContentResolver contentResolver) throws OperationCanceledException {
-        if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CONTACTS) != PackageManager.PERMISSION_GRANTED) {
-            Log.e(Constants.TAG, "Missing READ_CONTACTS permission!");
-            return null;
-        }
-
-        if (Thread.currentThread().isInterrupted()) {
-            throw new OperationCanceledException();
+    /**
+     * Change of the mirror caused by a queued write, recorded once the write has been applied.
+     */
+    static final class MirrorChange {
+        final String uid;
+        // UID the event was stored under before, null if it did not change
+        final String replacedUid;
+        // The event id of inserted events is only known after their batch
+        final EventsMirrorHelper.Entry entry;
+        final String contactTag;
+        final long fingerprint;
+        final String reminders;
+        final int eventType;
+        final List<String> deletedUids;
+
+        private MirrorChange(String uid, String replacedUid, EventsMirrorHelper.Entry entry, String contactTag, long fingerprint,
+                             String reminders, int eventType, List<String> deletedUids) {
+            this.uid = uid;
+            this.replacedUid = replacedUid;
+            this.entry = entry;
+            this.contactTag = contactTag;
+            this.fingerprint = fingerprint;
+            this.reminders = reminders;
+            this.eventType = eventType;
+            this.deletedUids = deletedUids;
+        }
+
+        static MirrorChange insert(String uid, String contactTag, long fingerprint, String reminders, int eventType) {
+            return new MirrorChange(uid, null, null, contactTag, fingerprint, reminders, eventType, null);
+        }
+
+        /**
+         * @param replacedUid previous UID of the event, null if it did not change
+         */
+        static MirrorChange update(String uid, String replacedUid, EventsMirrorHelper.Entry entry) {
+            return new MirrorChange(uid, replacedUid, entry, null, 0, null, EventsMirrorHelper.UNKNOWN_TYPE, null);
+        }
+
+        static MirrorChange delete(List<String> uids) {
+            return new MirrorChange(null, null, null, null, 0, null, EventsMirrorHelper.UNKNOWN_TYPE, uids);
         }
+    }
 
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        boolean groupFilteringEnabled = sharedPreferences.getBoolean(context.getString(R.string.pref_group_filtering_key), context.getResources().getBoolean(R.bool.pref_group_filtering_def));
-
-        Map<String, List<String>> contactGroupMembership = getRawContactGroupTitles(contentResolver);
-        HashMap<Account, HashSet<String>> blacklist = ProviderHelper.getAccountBlacklist(context);
-        HashSet<String> addedEventsIdentifiers = new HashSet<>();
-
-        // Define the columns we want to fetch in a single query
-        String[] projection = new String[]{
-                BaseColumns._ID,
-                ContactsContract.Data.DISPLAY_NAME,
-                ContactsContract.Data.LOOKUP_KEY,
-                ContactsContract.CommonDataKinds.Event.START_DATE,
-                ContactsContract.CommonDataKinds.Event.TYPE,
-                ContactsContract.CommonDataKinds.Event.LABEL,
-                ContactsContract.RawContacts.ACCOUNT_TYPE,
-                ContactsContract.RawContacts.ACCOUNT_NAME,
-                ContactsContract.Data.RAW_CONTACT_ID
-        };
-
-        // The query is performed on the Data table, filtering for the Event mimetype
-        String selection = ContactsContract.Data.MIMETYPE + " = ?";
-        String[] selectionArgs = new String[]{ContactsContract.CommonDataKinds.Event.CONTENT_ITEM_TYPE};
-
-        // The resulting cursor to be returned
-        MatrixCursor resultCursor = new MatrixCursor(new String[]{
-                BaseColumns._ID,
-                ContactsContract.Data.DISPLAY_NAME,
-                ContactsContract.Data.LOOKUP_KEY,
-                ContactsContract.CommonDataKinds.Event.START_DATE,
-                ContactsContract.CommonDataKinds.Event.TYPE,
-                ContactsContract.CommonDataKinds.Event.LABEL
-        });
-
-        try (Cursor dataCursor = contentResolver.query(ContactsContract.Data.CONTENT_URI, projection, selection, selectionArgs, null)) {
-            if (dataCursor == null) {
-                Log.e(Constants.TAG, "Failed to query contacts data.");
-                return resultCursor; // Return an empty cursor
-            }
-
-            int accTypeColumn = dataCursor.getColumnIndex(ContactsContract.RawContacts.ACCOUNT_TYPE);
-            int accNameColumn = dataCursor.getColumnIndex(ContactsContract.RawContacts.ACCOUNT_NAME);
-            int rawContactIdColumn = dataCursor.getColumnIndex(ContactsContract.Data.RAW_CONTACT_ID);
-            int lookupKeyColumn = dataCursor.getColumnIndex(ContactsContract.Data.LOOKUP_KEY);
-            int typeColumn = dataCursor.getColumnIndex(ContactsContract.CommonDataKinds.Event.TYPE);
-            int labelColumn = dataCursor.getColumnIndex(ContactsContract.CommonDataKinds.Event.LABEL);
-            int startDateColumn = dataCursor.getColumnIndex(ContactsContract.CommonDataKinds.Event.START_DATE);
-            int displayNameColumn = dataCursor.getColumnIndex(ContactsContract.Data.DISPLAY_NAME);
-
-            int idCounter = 0;
-            while (dataCursor.moveToNext()) {
-                if (Thread.currentThread().isInterrupted()) {
-                    throw new OperationCanceledException();
-                }
-
-                // Check if the contact's account is in the blacklist
-                String accType = dataCursor.getString(accTypeColumn);
-                String accName = dataCursor.getString(accNameColumn);
-
-                boolean isBlacklisted = false;
-                if (!TextUtils.isEmpty(accType) && !TextUtils.isEmpty(accName)) {
-                    Account account = new Account(accName, accType);
-                    HashSet<String> blacklistedGroups = blacklist.get(account);
-
-                    if (blacklistedGroups != null) {
-                        // Check for full account blacklist first (applies always)
-                        if (blacklistedGroups.contains(null)) {
-                            isBlacklisted = true;
-                        } else if (groupFilteringEnabled && !blacklistedGroups.isEmpty()) {
-                            // If not fully blacklisted, check group-based blacklist (only if feature is enabled)
-                            String rawContactId = dataCursor.getString(rawContactIdColumn);
-                            List<String> contactGroups = contactGroupMembership.get(rawContactId);
-
-                            if (contactGroups != null && !contactGroups.isEmpty()) {
-                                // A contact is only blacklisted if ALL of its groups are blacklisted
-                                boolean allGroupsBlacklisted = true;
-                                for (String groupTitle : contactGroups) {
-                                    if (!blacklistedGroups.contains(groupTitle)) {
-                                        allGroupsBlacklisted = false;
-                                        break;
-                                    }
-                                }
-                                if (allGroupsBlacklisted) {
-                                    isBlacklisted = true;
-                                }
-                            } else {
-                                // Contact has no group, check if "No Group" is blacklisted
-                                if (blacklistedGroups.contains(Constants.GROUP_TITLE_NO_GROUP)) {
-                                    isBlacklisted = true;
-                                }
-                            }
-                        }
-                    }
-                }
-
-
-                if (!isBlacklisted) {
-                    String lookupKey = dataCursor.getString(lookupKeyColumn);
-                    int type = dataCursor.getInt(typeColumn);
-                    String label = dataCursor.getString(labelColumn);
-                    String startDate = dataCursor.getString(startDateColumn);
-
-                    // Prevent adding the same event (birthday, anniversary) for the same contact twice
-                    String eventIdentifier = lookupKey + type + label + startDate;
-                    if (addedEventsIdentifiers.add(eventIdentifier)) {
-                        resultCursor.newRow()
-                                .add(idCounter++)
-                                .add(dataCursor.getString(displayNameColumn))
-                                .add(lookupKey)
-                                .add(startDate)
-                                .add(type)
-                                .add(label);
-                    }
+    /**
+     * Records applied writes in the mirror, one transaction per batch which also checkpoints the
+     * batch in the journal.
+     */
+    private static final class MirrorListener implements CalendarBatchWriter.Listener {
+        // Events read from the calendar are written in transactions of this size
+        private static final int EXISTING_FLUSH_SIZE = 500;
+
+        private final Context mContext;
+        private final long mCalendarId;
+        private final SyncJournal mJournal;
+        private final HashMap<String, EventsMirrorHelper.Entry> mExisting = new HashMap<>();
+        private final HashMap<String, EventsMirrorHelper.Entry> mUpdates = new HashMap<>();
+        private final ArrayList<String> mDeletes = new ArrayList<>();
+        private int mApplied = 0;
+        private boolean mComplete = true;
+
+        MirrorListener(Context context, long calendarId, SyncJournal journal) {
+            mContext = context;
+            mCalendarId = calendarId;
+            mJournal = journal;
+        }
+
+        @Override
+        public void onApplied(Object tag, ContentProviderResult result) {
+            MirrorChange change = (MirrorChange) tag;
+            mApplied++;
+            if (change.deletedUids != null) {
+                mDeletes.addAll(change.deletedUids);
+            } else if (change.entry != null) {
+                mUpdates.put(change.uid, change.entry);
+                if (change.replacedUid != null) {
+                    mDeletes.add(change.replacedUid);
                 }
+            } else if (result != null && result.uri != null) {
+                mUpdates.put(change.uid, new EventsMirrorHelper.Entry(ContentUris.parseId(result.uri),
+                        change.contactTag, change.fingerprint, change.reminders, change.eventType));
+            } else {
+                // Inserted, but the id is unknown, only a full scan can add it to the mirror
+                mComplete = false;
             }
         }
 
-        return resultCursor;
-    }
+        @Override
+        public void onDropped(Object tag) {
+            // Nothing changed, the writer reports the sync as incomplete
+        }
 
-    private String generateTitle(Context context, int eventType, Cursor cursor,
-                                 int eventCustomLabelColumn, boolean includeAge, String displayName, int age, String lookupKey, Map<String, String> firstNameCache, Map<String, String> lastNameCache, boolean useLastNameFirst) {
-        if (TextUtils.isEmpty(displayName)) {
-            return null;
+        @Override
+        public void onBatchFinished() {
+            // The batch may have changed events which were read before it
+            flushExisting();
+            mJournal.commitBatch(mApplied, () -> {
+                EventsMirrorHelper.putAll(mContext, mCalendarId, mUpdates);
+                EventsMirrorHelper.delete(mContext, mDeletes);
+            });
+            mUpdates.clear();
+            mDeletes.clear();
+            mApplied = 0;
         }
 
-        int effectiveEventType = eventType;
-        String eventCustomLabel = null;
-        if (eventType == ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM) {
-            eventCustomLabel = cursor.getString(eventCustomLabelColumn);
-            if (eventCustomLabel == null) {
-                // Fallback to OTHER if custom label is missing
-                effectiveEventType = ContactsContract.CommonDataKinds.Event.TYPE_OTHER;
+        /**
+         * Records an event read from the calendar while the mirror is rebuilt.
+         */
+        void addExisting(String uid, EventsMirrorHelper.Entry entry) {
+            mExisting.put(uid, entry);
+            if (mExisting.size() >= EXISTING_FLUSH_SIZE) {
+                flushExisting();
             }
         }
 
-        String title = PreferencesHelper.getLabel(context, effectiveEventType, includeAge);
-
-        // add jubilee icon
-        if (isFullVersionUnlocked(context) && (includeAge)) {
-            title = addJubileeIcon(context, title, age);
+        /**
+         * Writes the events read from the calendar which are not in the mirror yet.
+         */
+        void flushExisting() {
+            EventsMirrorHelper.putAll(mContext, mCalendarId, mExisting);
+            mExisting.clear();
         }
 
-        // Replace placeholders
-        String formattedDisplayName = getDisplayName(context, lookupKey, displayName, firstNameCache, lastNameCache, useLastNameFirst);
-        if (title.contains("{FIRSTNAME}")) {
-            String firstName = getFirstName(context, lookupKey, displayName, firstNameCache);
-            title = title.replace("{FIRSTNAME}", firstName);
-        }
-        title = title.replace("{NAME}", formattedDisplayName);
-        if (includeAge) {
-            title = title.replace("{AGE}", String.valueOf(age));
-        }
-        if (eventCustomLabel != null) {
-            title = title.replace("{LABEL}", eventCustomLabel);
+        /**
+         * Returns false if the mirror misses events which were written.
+         */
+        boolean isComplete() {
+            return mComplete;
         }
-
-        return title;
     }
 
-    private String getDisplayName(Context context, String lookupKey, String displayName, Map<String, String> firstNameCache, Map<String, String> lastNameCache, boolean useLastNameFirst) {
-        if (!useLastNameFirst) {
-            return displayName;
-        }
-
-        String firstName = getFirstName(context, lookupKey, displayName, firstNameCache);
-        String lastName = getLastName(context, lookupKey, displayName, lastNameCache);
-
-        if (!TextUtils.isEmpty(lastName) && !TextUtils.isEmpty(firstName)) {
-            return lastName + ", " + firstName;
-        } else if (!TextUtils.isEmpty(lastName)) {
-            return lastName;
-        } else {
-            return displayName; // Fallback to full display name
+    /**
+     * Collects events to delete and queues their deletes, chunked into "_id IN (...)" selections.
+     */
+    private static final class EventDeleter {
+        private final CalendarBatchWriter mBatchWriter;
+        private final Uri mEventsUri;
+        private final String mCalendarSelection = CalendarContract.Events.CALENDAR_ID + " = ? AND ";
+        private final String[] mSelectionArgs;
+        private ArrayList<Long> mIds = new ArrayList<>(IN_CLAUSE_CHUNK_SIZE);
+        private ArrayList<String> mUids = new ArrayList<>(IN_CLAUSE_CHUNK_SIZE);
+        private int mCount = 0;
+
+        EventDeleter(CalendarBatchWriter batchWriter, Uri eventsUri, long calendarId) {
+            mBatchWriter = batchWriter;
+            mEventsUri = eventsUri;
+            mSelectionArgs = new String[]{String.valueOf(calendarId)};
+        }
+
+        /**
+         * @param uid UID of the event in the mirror, null if it has no entry there
+         */
+        void add(long eventId, String uid) throws OperationCanceledException {
+            mIds.add(eventId);
+            if (uid != null) {
+                mUids.add(uid);
+            }
+            mCount++;
+            if (mIds.size() == IN_CLAUSE_CHUNK_SIZE) {
+                flush();
+            }
         }
-    }
 
-    private String getFirstName(Context context, String lookupKey, String displayName, Map<String, String> firstNameCache) {
-        String firstName = firstNameCache.get(lookupKey);
-        if (firstName == null && lookupKey != null) {
-            firstName = getFirstNameFromLookupKey(context, lookupKey);
-            // Fallback to splitting the display name if structured name is not available
-            if (TextUtils.isEmpty(firstName)) {
-                firstName = displayName.split("\\s+")[0];
+        /**
+         * Queues the deletes of the events added since the last call.
+         */
+        void flush() throws OperationCanceledException {
+            if (mIds.isEmpty()) {
+                return;
             }
-            firstNameCache.put(lookupKey, firstName);
-        } else if (firstName == null) {
-            // Fallback for when lookupKey is null for some reason
-            firstName = displayName.split("\\s+")[0];
+            String selection = mCalendarSelection + buildInClauses(CalendarContract.Events._ID, mIds, false).get(0);
+            mBatchWriter.add(ContentProviderOperation.newDelete(mEventsUri).withSelection(selection, mSelectionArgs),
+                    2 * selection.length(), MirrorChange.delete(mUids));
+            mIds = new ArrayList<>(IN_CLAUSE_CHUNK_SIZE);
+            mUids = new ArrayList<>(IN_CLAUSE_CHUNK_SIZE);
         }
 
-        // Final fallback to ensure firstname is not empty if display name is not
-        if (TextUtils.isEmpty(firstName) && !TextUtils.isEmpty(displayName)) {
-            firstName = displayName;
+        int getCount() {
+            return mCount;
         }
-        return firstName;
     }
 
-    private String getLastName(Context context, String lookupKey, String displayName, Map<String, String> lastNameCache) {
-        String lastName = lastNameCache.get(lookupKey);
-        if (lastName == null && lookupKey != null) {
-            lastName = getLastNameFromLookupKey(context, lookupKey);
-            // Fallback to splitting the display name if structured name is not available
-            if (TextUtils.isEmpty(lastName) && displayName.contains(" ")) {
-                lastName = displayName.substring(displayName.lastIndexOf(' ') + 1);
-            }
-            lastNameCache.put(lookupKey, lastName);
-        } else if (lastName == null) {
-            // Fallback for when lookupKey is null for some reason
-            if (displayName.contains(" ")) {
-                lastName = displayName.substring(displayName.lastIndexOf(' ') + 1);
-            }
+    /**
+     * Stores the sync status and metrics after a sync has run to completion.
+     *
+     * @param watermark   contacts changed after this time are picked up by the next sync
+     * @param firstYear   first year of the event window of the sync
+     * @param lastYear    last year of the event window of the sync
+     * @param complete    whether all changes were written, otherwise the next sync has to scan all contacts
+     * @param batchWriter null if nothing had to be written
+     * @param heapTracker null if no contacts were read
+     */
+    private static void finishSync(Context context, long watermark, int firstYear, int lastYear, boolean complete,
+                            SyncMetrics metrics, CalendarBatchWriter batchWriter, PeakHeapTracker heapTracker) {
+        if (complete) {
+            SyncWatermark.set(context, watermark, firstYear, lastYear);
+        } else {
+            SyncWatermark.invalidate(context);
         }
-        return lastName;
-    }
 
-    private String getFirstNameFromLookupKey(Context context, String lookupKey) {
-        if (lookupKey == null) {
-            return null;
+        try {
+            SyncHistoryHelper.insert(context, metrics.toContentValues(complete, batchWriter, heapTracker));
+        } catch (SQLException e) {
+            // The metrics are only informational
+            Log.e(Constants.TAG, "Unable to store sync metrics.", e);
         }
-        Uri lookupUri = Uri.withAppendedPath(ContactsContract.Contacts.CONTENT_LOOKUP_URI, lookupKey);
-        Uri dataUri = Uri.withAppendedPath(lookupUri, ContactsContract.Contacts.Data.CONTENT_DIRECTORY);
 
-        String[] projection = {ContactsContract.CommonDataKinds.StructuredName.GIVEN_NAME};
-        String selection = ContactsContract.Data.MIMETYPE + " = ?";
-        String[] selectionArgs = {ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE};
+        // Store the last sync timestamp in a separate file to avoid triggering listeners
+        SharedPreferences syncPrefs = context.getSharedPreferences(SyncWatermark.SYNC_STATUS_PREFS_NAME, Context.MODE_PRIVATE);
+        syncPrefs.edit().putLong("last_sync_timestamp", System.currentTimeMillis()).apply();
+    }
 
-        try (Cursor cursor = context.getContentResolver().query(dataUri, projection, selection, selectionArgs, null)) {
+    /**
+     * Collects the ids of all contacts that were changed or deleted after the given watermark.
+     */
+    private static Set<Long> getChangedContactIds(ContentResolver contentResolver, long watermark) {
+        Set<Long> contactIds = new HashSet<>();
+        String[] selectionArgs = new String[]{String.valueOf(watermark)};
+
+        try (Cursor cursor = contentResolver.query(ContactsContract.Contacts.CONTENT_URI,
+                new String[]{ContactsContract.Contacts._ID},
+                ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?",
+                selectionArgs, null)) {
             if (cursor != null) {
                 while (cursor.moveToNext()) {
-                    int givenNameColumnIndex = cursor.getColumnIndex(ContactsContract.CommonDataKinds.StructuredName.GIVEN_NAME);
-                    if (givenNameColumnIndex != -1) {
-                        String givenName = cursor.getString(givenNameColumnIndex);
-                        if (!TextUtils.isEmpty(givenName)) {
-                            return givenName;
-                        }
-                    }
+                    contactIds.add(cursor.getLong(0));
                 }
             }
-        } catch (Exception e) {
-            Log.e(Constants.TAG, "Error querying for given name using lookup key: " + lookupKey, e);
-        }
-        return null;
-    }
-
-    private String getLastNameFromLookupKey(Context context, String lookupKey) {
-        if (lookupKey == null) {
-            return null;
         }
-        Uri lookupUri = Uri.withAppendedPath(ContactsContract.Contacts.CONTENT_LOOKUP_URI, lookupKey);
-        Uri dataUri = Uri.withAppendedPath(lookupUri, ContactsContract.Contacts.Data.CONTENT_DIRECTORY);
 
-        String[] projection = {ContactsContract.CommonDataKinds.StructuredName.FAMILY_NAME};
-        String selection = ContactsContract.Data.MIMETYPE + " = ?";
-        String[] selectionArgs = {ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE};
-
-        try (Cursor cursor = context.getContentResolver().query(dataUri, projection, selection, selectionArgs, null)) {
+        // Events of deleted contacts have to be removed from the calendar
+        try (Cursor cursor = contentResolver.query(ContactsContract.DeletedContacts.CONTENT_URI,
+                new String[]{ContactsContract.DeletedContacts.CONTACT_ID},
+                ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?",
+                selectionArgs, null)) {
             if (cursor != null) {
                 while (cursor.moveToNext()) {
-                    int familyNameColumnIndex = cursor.getColumnIndex(ContactsContract.CommonDataKinds.StructuredName.FAMILY_NAME);
-                    if (familyNameColumnIndex != -1) {
-                        String familyName = cursor.getString(familyNameColumnIndex);
-                        if (!TextUtils.isEmpty(familyName)) {
-                            return familyName;
-                        }
-                    }
+                    contactIds.add(cursor.getLong(0));
                 }
             }
-        } catch (Exception e) {
-            Log.e(Constants.TAG, "Error querying for family name using lookup key: " + lookupKey, e);
         }
-        return null;
+
+        return contactIds;
     }
 
-    private String addJubileeIcon(Context context, String title, int age) {
-        if (jubileeYears == null) {
-            // Always initialize the set to prevent NullPointerException
-            jubileeYears = new HashSet<>();
-            String jubileeYearsStr = PreferencesHelper.getJubileeYears(context);
-            if (!TextUtils.isEmpty(jubileeYearsStr)) {
-                try {
-                    Arrays.stream(jubileeYearsStr.split(",")).map(String::trim).map(Integer::parseInt).forEach(jubileeYears::add);
-                } catch (NumberFormatException e) {
-                    Log.e(Constants.TAG, "Invalid jubilee years format in preferences. No jubilee icons will be shown.", e);
-                    // In case of error, clear the set to be safe
-                    jubileeYears.clear();
-                }
+    /**
+     * Splits the ids into "column IN (...)" selections small enough for a single provider query.
+     *
+     * @param quote whether the ids have to be compared as strings
+     */
+    static List<String> buildInClauses(String column, Collection<Long> ids, boolean quote) {
+        List<String> clauses = new ArrayList<>();
+        StringBuilder clause = new StringBuilder();
+        int count = 0;
+        for (long id : ids) {
+            clause.append(count == 0 ? column + " IN (" : ",");
+            if (quote) {
+                clause.append('\'').append(id).append('\'');
+            } else {
+                clause.append(id);
+            }
+            if (++count == IN_CLAUSE_CHUNK_SIZE) {
+                clauses.add(clause.append(')').toString());
+                clause.setLength(0);
+                count = 0;
             }
         }
-
-        if (jubileeYears.contains(age)) {
-            return "\uD83C\uDF89 " + title;
+        if (count > 0) {
+            clauses.add(clause.append(')').toString());
         }
-        return title;
+        return clauses;
     }
 
-    private ContentProviderOperation insertEvent(Context context, long calendarId,
-                                                 long dtstart, String title, String lookupKey, String eventUid, boolean hasReminders)
-            throws OperationCanceledException {
-        if (Thread.currentThread().isInterrupted()) {
-            throw new OperationCanceledException();
-        }
-
-        ContentProviderOperation.Builder builder =
-                ContentProviderOperation.newInsert(CalendarHelper.getBirthdayAdapterUri(context, CalendarContract.Events.CONTENT_URI));
-
-        long dtend = dtstart + DateUtils.DAY_IN_MILLIS;
-
-        builder.withValue(CalendarContract.Events.CALENDAR_ID, calendarId);
-        builder.withValue(CalendarContract.Events.DTSTART, dtstart);
-        builder.withValue(CalendarContract.Events.DTEND, dtend);
-        builder.withValue(CalendarContract.Events.EVENT_TIMEZONE, "UTC");
-
-        builder.withValue(CalendarContract.Events.ALL_DAY, 1);
-        builder.withValue(CalendarContract.Events.TITLE, title);
-        builder.withValue(CalendarContract.Events.STATUS, CalendarContract.Events.STATUS_CONFIRMED);
-        builder.withValue(CalendarContract.Events.UID_2445, eventUid);
+    /**
+     * Reads the events of the birthday calendar including their reminders, keyed by UID. The
+     * fingerprints stored with the events are used if present, only events of older versions are
+     * fingerprinted from their title and their reminders.
+     *
+     * @return the events or null if the calendar could not be read
+     */
+    private static HashMap<String, EventsMirrorHelper.Entry> getExistingEvents(Context context, ContentResolver contentResolver,
+                                                                        long calendarId) {
+        Uri uri = CalendarHelper.getBirthdayAdapterUri(context, CalendarContract.Events.CONTENT_URI);
+        HashMap<Long, String> uidsById = new HashMap<>();
+        HashMap<Long, String> contactTagsById = new HashMap<>();
+        HashMap<Long, Long> fingerprintsById = new HashMap<>();
+        HashMap<Long, String> remindersById = new HashMap<>();
+        HashMap<Long, Integer> typesById = new HashMap<>();
+        // Events without stored reminders
+        ArrayList<Long> legacyIds = new ArrayList<>();
 
-        builder.withValue(CalendarContract.Events.HAS_ALARM, hasReminders ? 1 : 0);
+        try (Cursor cursor = contentResolver.query(uri,
+                new String[]{CalendarContract.Events._ID, CalendarContract.Events.UID_2445, CalendarContract.Events.SYNC_DATA3,
+                        CalendarContract.Events.TITLE, CalendarContract.Events.DTSTART, CalendarContract.Events.SYNC_DATA1,
+                        CalendarContract.Events.SYNC_DATA2, CalendarContract.Events.SYNC_DATA4},
+                CalendarContract.Events.CALENDAR_ID + " = ?",
+                new String[]{String.valueOf(calendarId)},
+                null)) {
 
-        builder.withValue(CalendarContract.Events.AVAILABILITY, CalendarContract.Events.AVAILABILITY_FREE);
+            if (cursor == null) {
+                Log.e(Constants.TAG, "Unable to get existing events! Cursor is null!");
+                return null;
+            }
 
-        if (lookupKey != null) {
-            builder.withValue(CalendarContract.Events.CUSTOM_APP_PACKAGE, context.getPackageName());
-            Uri contactLookupUri = Uri.withAppendedPath(
-                    ContactsContract.Contacts.CONTENT_LOOKUP_URI, lookupKey);
-            builder.withValue(CalendarContract.Events.CUSTOM_APP_URI, contactLookupUri.toString());
+            int idColumn = cursor.getColumnIndex(CalendarContract.Events._ID);
+            int uidColumn = cursor.getColumnIndex(CalendarContract.Events.UID_2445);
+            int contactTagColumn = cursor.getColumnIndex(CalendarContract.Events.SYNC_DATA3);
+            int titleColumn = cursor.getColumnIndex(CalendarContract.Events.TITLE);
+            int dtstartColumn = cursor.getColumnIndex(CalendarContract.Events.DTSTART);
+            int fingerprintColumn = cursor.getColumnIndex(CalendarContract.Events.SYNC_DATA1);
+            int remindersColumn = cursor.getColumnIndex(CalendarContract.Events.SYNC_DATA2);
+            int typeColumn = cursor.getColumnIndex(CalendarContract.Events.SYNC_DATA4);
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idColumn);
+                String contactTag = cursor.getString(contactTagColumn);
+                uidsById.put(id, cursor.getString(uidColumn));
+                contactTagsById.put(id, contactTag == null ? "" : contactTag);
+                fingerprintsById.put(id, parseFingerprint(cursor.getString(fingerprintColumn),
+                        cursor.getString(titleColumn), cursor.getLong(dtstartColumn)));
+                typesById.put(id, parseEventType(cursor.getString(typeColumn)));
+                String reminders = cursor.getString(remindersColumn);
+                if (reminders != null) {
+                    remindersById.put(id, reminders);
+                } else {
+                    legacyIds.add(id);
+                }
+            }
         }
 
-        return builder.build();
-    }
-
-
-    private Date parseEventDateString(Context context, String eventDateString, String displayName)
-            throws OperationCanceledException {
-        if (Thread.currentThread().isInterrupted()) {
-            throw new OperationCanceledException();
+        HashMap<Long, ArrayList<Integer>> legacyRemindersById = new HashMap<>();
+        Uri remindersUri = CalendarHelper.getBirthdayAdapterUri(context, CalendarContract.Reminders.CONTENT_URI);
+        for (String eventIdClause : buildInClauses(CalendarContract.Reminders.EVENT_ID, legacyIds, false)) {
+            try (Cursor cursor = contentResolver.query(remindersUri,
+                    new String[]{CalendarContract.Reminders.EVENT_ID, CalendarContract.Reminders.MINUTES},
+                    eventIdClause, null, null)) {
+                if (cursor == null) {
+                    Log.e(Constants.TAG, "Unable to get existing reminders! Cursor is null!");
+                    return null;
+                }
+                while (cursor.moveToNext()) {
+                    legacyRemindersById.computeIfAbsent(cursor.getLong(0), k -> new ArrayList<>()).add(cursor.getInt(1));
+                }
+            }
         }
-        if (TextUtils.isEmpty(eventDateString)) {
-            return null;
+        for (long id : legacyIds) {
+            ArrayList<Integer> minutes = legacyRemindersById.get(id);
+            String reminders = "";
+            if (minutes != null) {
+                int[] minutesArray = new int[minutes.size()];
+                for (int i = 0; i < minutesArray.length; i++) {
+                    minutesArray[i] = minutes.get(i);
+                }
+                reminders = EventContent.formatReminders(minutesArray);
+            }
+            remindersById.put(id, reminders);
+        }
+
+        HashMap<String, EventsMirrorHelper.Entry> existingEvents = new HashMap<>();
+        for (Map.Entry<Long, String> event : uidsById.entrySet()) {
+            long id = event.getKey();
+            EventsMirrorHelper.Entry entry = new EventsMirrorHelper.Entry(id, contactTagsById.get(id),
+                    fingerprintsById.get(id), remindersById.get(id), typesById.get(id));
+            String uid = event.getValue();
+            if (uid == null || existingEvents.containsKey(uid)) {
+                // Duplicates, e.g. left behind by a partially committed batch, can never match
+                // a planned event and are therefore deleted
+                uid = "duplicate:" + id;
+            }
+            existingEvents.put(uid, entry);
         }
+        return existingEvents;
+    }
 
-        String[] formatsToTry;
-        if (PreferencesHelper.getPreferDDSlashMM(context)) {
-            formatsToTry = new String[]{"yyyy-MM-dd", "--MM-dd", "yyyyMMdd", "dd.MM.yyyy", "yyyy.MM.dd", "dd/MM/yyyy", "dd/MM"};
-        } else {
-            formatsToTry = new String[]{"yyyy-MM-dd", "--MM-dd", "yyyyMMdd", "MM/dd/yyyy", "MM/dd"};
-        }
-
-        for (String format : formatsToTry) {
-            boolean setYear1700 = format.equals("--MM-dd") || format.equals("dd/MM") || format.equals("MM/dd");
-            Date parsedDate = parseStringWithSimpleDateFormat(eventDateString, format);
-            if (parsedDate != null) {
-                if (setYear1700) {
-                    Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-                    cal.setTime(parsedDate);
-                    cal.set(Calendar.YEAR, 1700);
-                    parsedDate = cal.getTime();
-                }
-                return parsedDate;
+    /**
+     * Returns the fingerprint stored with an event, or computes it for events of older versions.
+     */
+    static long parseFingerprint(String storedFingerprint, String title, long dtstart) {
+        if (storedFingerprint != null) {
+            try {
+                return Long.parseLong(storedFingerprint);
+            } catch (NumberFormatException e) {
+                Log.w(Constants.TAG, "Invalid fingerprint of event: " + storedFingerprint);
             }
         }
+        return EventContent.fingerprint(title, dtstart);
+    }
 
-        // If all other formats fail, try to parse as a raw timestamp
-        try {
-            return new Date(Long.parseLong(eventDateString));
-        } catch (NumberFormatException e) {
-            Log.e(Constants.TAG, "Could not parse date string: '" + eventDateString + "' for contact: '" + displayName + "'");
-            return null;
+    /**
+     * Returns the contact event type stored with an event, or {@link EventsMirrorHelper#UNKNOWN_TYPE}
+     * for events of older versions.
+     */
+    static int parseEventType(String storedType) {
+        if (storedType != null) {
+            try {
+                return Integer.parseInt(storedType);
+            } catch (NumberFormatException e) {
+                Log.w(Constants.TAG, "Invalid type of event: " + storedType);
+            }
         }
+        return EventsMirrorHelper.UNKNOWN_TYPE;
     }
 
-    private Date parseStringWithSimpleDateFormat(String input, String format) {
-        SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.US);
-        // All-day events should be parsed in UTC to avoid timezone-related shifts.
-        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-        try {
-            return dateFormat.parse(input);
-        } catch (ParseException e) {
-            return null;
+    /**
+     * Combines the base selection with each of the contact id clauses, or returns the base
+     * selection alone if all contacts should be queried.
+     */
+    static List<String> buildContactSelections(String baseSelection, List<String> contactIdClauses) {
+        List<String> selections = new ArrayList<>();
+        if (contactIdClauses == null) {
+            selections.add(baseSelection);
+        } else {
+            for (String clause : contactIdClauses) {
+                selections.add(baseSelection + " AND " + clause);
+            }
         }
+        return selections;
     }
 }
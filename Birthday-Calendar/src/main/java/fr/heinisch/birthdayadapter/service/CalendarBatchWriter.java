@@ -0,0 +1,382 @@
+package fr.heinisch.birthdayadapter.service;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.OperationCanceledException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
+import android.provider.CalendarContract;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import fr.heinisch.birthdayadapter.core.BatchBisection;
+import fr.heinisch.birthdayadapter.core.BatchSizeLimit;
+import fr.heinisch.birthdayadapter.util.Constants;
+import fr.heinisch.birthdayadapter.util.Log;
+
+/**
+ * Writes operations to the calendar provider in batches.
+ * <p>
+ * Operations are queued as units: an event insert or update together with its reminders, or
+ * other operations which have to be applied together. A batch is closed before a unit would
+ * exceed its estimated binder payload or its operation limit, which adapts to the measured
+ * latency, so the calendar provider is not blocked for long. If a batch fails, it is split in
+ * halves until the failing unit is isolated, so one bad operation no longer drops the whole batch.
+ * <p>
+ * Batches have no yield points, so the provider applies each batch in one transaction and a failed
+ * batch has not committed anything. The number of yield points reported by a failed batch only
+ * counts those at which the provider actually yielded, so it can't tell which parts of a batch
+ * were committed, and retrying them would write them twice.
+ */
+class CalendarBatchWriter {
+
+    /**
+     * Receives the outcome of every unit.
+     */
+    interface Listener {
+        /**
+         * The unit was written, with the result of its first operation.
+         */
+        void onApplied(Object tag, ContentProviderResult result);
+
+        /**
+         * The unit could not be written, even on its own, or it is unknown whether it was written.
+         */
+        void onDropped(Object tag);
+
+        /**
+         * Called after each batch, including all retries of its parts.
+         */
+        void onBatchFinished();
+    }
+
+    // Well below the 1 MB binder transaction buffer, which is shared by the whole process
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    // Batches taking longer than this block the calendar provider noticeably
+    private static final long TARGET_LATENCY_MS = 200;
+
+    // Rough size of a parcelled operation without its values
+    private static final int OPERATION_OVERHEAD_BYTES = 200;
+    private static final int VALUE_OVERHEAD_BYTES = 16;
+
+    private static final class Unit {
+        final Uri eventsUri;
+        // Id of the updated event, -1 for inserts
+        final long eventId;
+        final ContentValues eventValues;
+        final int[] reminderMinutes;
+        final List<ContentProviderOperation.Builder> builders;
+        final Object tag;
+        final int operationCount;
+        final int estimatedBytes;
+
+        Unit(Uri eventsUri, long eventId, ContentValues eventValues, int[] reminderMinutes,
+             List<ContentProviderOperation.Builder> builders, Object tag, int operationCount, int estimatedBytes) {
+            this.eventsUri = eventsUri;
+            this.eventId = eventId;
+            this.eventValues = eventValues;
+            this.reminderMinutes = reminderMinutes;
+            this.builders = builders;
+            this.tag = tag;
+            this.operationCount = operationCount;
+            this.estimatedBytes = estimatedBytes;
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+    private final Uri mRemindersUri;
+    private final Listener mListener;
+
+    private final ArrayList<Unit> mPending = new ArrayList<>();
+    private int mPendingOperations = 0;
+    private int mPendingBytes = 0;
+    private final BatchSizeLimit mLimit = new BatchSizeLimit(TARGET_LATENCY_MS);
+
+    private int mBatchCount = 0;
+    private int mOperationsWritten = 0;
+    private long mBytesWritten = 0;
+    private long mApplyNanos = 0;
+    private int mRetryCount = 0;
+    private int mDroppedOperations = 0;
+    private boolean mUncertain = false;
+
+    private final BatchBisection.Target<Unit> mTarget = new BatchBisection.Target<Unit>() {
+        @Override
+        public BatchBisection.Outcome apply(List<Unit> units, boolean isRetry) {
+            return applyBatch(units, isRetry);
+        }
+
+        @Override
+        public void onRejected(Unit unit) {
+            Log.e(Constants.TAG, "Dropping " + unit.operationCount + " operations which cannot be applied.");
+            mDroppedOperations += unit.operationCount;
+            mListener.onDropped(unit.tag);
+        }
+
+        @Override
+        public void onUnknown(List<Unit> units) {
+            // Not retried, the next full sync finds the written events and deletes duplicates
+            mUncertain = true;
+            for (Unit unit : units) {
+                mListener.onDropped(unit.tag);
+            }
+        }
+    };
+
+    /**
+     * @param remindersUri sync adapter URI of the reminders table
+     */
+    CalendarBatchWriter(ContentResolver contentResolver, Uri remindersUri, Listener listener) {
+        mContentResolver = contentResolver;
+        mRemindersUri = remindersUri;
+        mListener = listener;
+    }
+
+    /**
+     * Queues the insert of an event and its alert reminders.
+     */
+    void insertEvent(Uri eventsUri, ContentValues eventValues, int[] reminderMinutes, Object tag) throws OperationCanceledException {
+        int bytes = OPERATION_OVERHEAD_BYTES + estimateBytes(eventValues)
+                + reminderMinutes.length * (OPERATION_OVERHEAD_BYTES + 3 * VALUE_OVERHEAD_BYTES);
+        queue(new Unit(eventsUri, -1, eventValues, reminderMinutes, null, tag, 1 + reminderMinutes.length, bytes));
+    }
+
+    /**
+     * Queues the update of an existing event.
+     *
+     * @param eventValues     changed columns of the event, null to only replace the reminders
+     * @param reminderMinutes replace all reminders of the event with these, null to keep them
+     */
+    void updateEvent(Uri eventsUri, long eventId, ContentValues eventValues, int[] reminderMinutes, Object tag)
+            throws OperationCanceledException {
+        int operationCount = 0;
+        int bytes = 0;
+        if (eventValues != null) {
+            operationCount++;
+            bytes += OPERATION_OVERHEAD_BYTES + estimateBytes(eventValues);
+        }
+        if (reminderMinutes != null) {
+            operationCount += 1 + reminderMinutes.length;
+            bytes += (1 + reminderMinutes.length) * (OPERATION_OVERHEAD_BYTES + 3 * VALUE_OVERHEAD_BYTES);
+        }
+        queue(new Unit(eventsUri, eventId, eventValues, reminderMinutes, null, tag, operationCount, bytes));
+    }
+
+    /**
+     * Queues a single operation without back references.
+     *
+     * @param estimatedBytes size of the values and selection of the operation
+     */
+    void add(ContentProviderOperation.Builder builder, int estimatedBytes, Object tag) throws OperationCanceledException {
+        add(Collections.singletonList(builder), estimatedBytes, tag);
+    }
+
+    /**
+     * Queues operations without back references which are always applied in the same batch.
+     *
+     * @param estimatedBytes size of the values and selections of all operations
+     */
+    void add(List<ContentProviderOperation.Builder> builders, int estimatedBytes, Object tag) throws OperationCanceledException {
+        queue(new Unit(null, -1, null, null, builders, tag, builders.size(),
+                builders.size() * OPERATION_OVERHEAD_BYTES + estimatedBytes));
+    }
+
+    private void queue(Unit unit) throws OperationCanceledException {
+        // A batch never reaches the limit of the provider
+        if (!mPending.isEmpty() && (!mLimit.fits(mPendingOperations, unit.operationCount)
+                || mPendingBytes + unit.estimatedBytes > MAX_BATCH_BYTES)) {
+            flush();
+        }
+        mPending.add(unit);
+        mPendingOperations += unit.operationCount;
+        mPendingBytes += unit.estimatedBytes;
+        if (mPendingOperations >= mLimit.get() || mPendingBytes >= MAX_BATCH_BYTES) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes all queued units.
+     */
+    void flush() throws OperationCanceledException {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        ArrayList<Unit> units = new ArrayList<>(mPending);
+        mPending.clear();
+        mPendingOperations = 0;
+        mPendingBytes = 0;
+
+        BatchBisection.apply(units, mTarget);
+        mListener.onBatchFinished();
+    }
+
+    int getBatchCount() {
+        return mBatchCount;
+    }
+
+    int getOperationsWritten() {
+        return mOperationsWritten;
+    }
+
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Returns the time spent in the calendar provider, including failed batches.
+     */
+    long getApplyNanos() {
+        return mApplyNanos;
+    }
+
+    int getRetryCount() {
+        return mRetryCount;
+    }
+
+    int getDroppedOperations() {
+        return mDroppedOperations;
+    }
+
+    /**
+     * Returns false if operations were dropped or a failed batch may have been committed, so the
+     * calendar may differ from what the listener was told.
+     */
+    boolean isComplete() {
+        return mDroppedOperations == 0 && !mUncertain;
+    }
+
+    /**
+     * Returns true if a failed batch may have been committed, so the calendar may contain writes
+     * the listener was not told about.
+     */
+    boolean isUncertain() {
+        return mUncertain;
+    }
+
+    private BatchBisection.Outcome applyBatch(List<Unit> units, boolean isRetry) throws OperationCanceledException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new OperationCanceledException();
+        }
+        if (isRetry) {
+            mRetryCount++;
+        }
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        int[] unitStarts = new int[units.size()];
+        int bytes = 0;
+        for (int i = 0; i < units.size(); i++) {
+            Unit unit = units.get(i);
+            unitStarts[i] = operations.size();
+            addOperations(unit, operations);
+            bytes += unit.estimatedBytes;
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            ContentProviderResult[] results;
+            try {
+                results = mContentResolver.applyBatch(CalendarContract.AUTHORITY, operations);
+            } finally {
+                mApplyNanos += SystemClock.elapsedRealtimeNanos() - start;
+            }
+            mBatchCount++;
+            mOperationsWritten += operations.size();
+            mBytesWritten += bytes;
+            if (!isRetry) {
+                mLimit.onApplied(operations.size(), (SystemClock.elapsedRealtimeNanos() - start) / 1000000);
+            }
+            for (int i = 0; i < units.size(); i++) {
+                mListener.onApplied(units.get(i).tag, unitStarts[i] < results.length ? results[unitStarts[i]] : null);
+            }
+            return BatchBisection.Outcome.COMMITTED;
+        } catch (OperationApplicationException | RemoteException | RuntimeException e) {
+            BatchBisection.Outcome outcome = outcomeOf(e);
+            if (outcome == BatchBisection.Outcome.REJECTED) {
+                Log.e(Constants.TAG, "Applying batch of " + operations.size() + " operations failed.", e);
+                mLimit.onRejected();
+            } else {
+                Log.e(Constants.TAG, "Applying batch of " + operations.size() + " operations failed, the batch may have been written.", e);
+            }
+            return outcome;
+        }
+    }
+
+    /**
+     * Returns the outcome of a batch which failed with the exception.
+     */
+    static BatchBisection.Outcome outcomeOf(Exception e) {
+        if (e instanceof OperationApplicationException || e instanceof TransactionTooLargeException
+                || e instanceof RuntimeException) {
+            // Rejected before it was sent, or rolled back by the provider
+            return BatchBisection.Outcome.REJECTED;
+        }
+        // The provider may have died after committing the batch
+        return BatchBisection.Outcome.UNKNOWN;
+    }
+
+    private void addOperations(Unit unit, ArrayList<ContentProviderOperation> operations) {
+        if (unit.builders != null) {
+            for (ContentProviderOperation.Builder builder : unit.builders) {
+                operations.add(builder.build());
+            }
+            return;
+        }
+
+        if (unit.eventId >= 0) {
+            if (unit.eventValues != null) {
+                operations.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(unit.eventsUri, unit.eventId))
+                        .withValues(unit.eventValues)
+                        .build());
+            }
+            if (unit.reminderMinutes != null) {
+                operations.add(ContentProviderOperation.newDelete(mRemindersUri)
+                        .withSelection(CalendarContract.Reminders.EVENT_ID + " = ?", new String[]{String.valueOf(unit.eventId)})
+                        .build());
+                for (int minute : unit.reminderMinutes) {
+                    operations.add(ContentProviderOperation.newInsert(mRemindersUri)
+                            .withValue(CalendarContract.Reminders.EVENT_ID, unit.eventId)
+                            .withValue(CalendarContract.Reminders.MINUTES, minute)
+                            .withValue(CalendarContract.Reminders.METHOD, CalendarContract.Reminders.METHOD_ALERT)
+                            .build());
+                }
+            }
+            return;
+        }
+
+        int eventIndex = operations.size();
+        operations.add(ContentProviderOperation.newInsert(unit.eventsUri)
+                .withValues(unit.eventValues)
+                .build());
+        for (int minute : unit.reminderMinutes) {
+            operations.add(ContentProviderOperation.newInsert(mRemindersUri)
+                    .withValueBackReference(CalendarContract.Reminders.EVENT_ID, eventIndex)
+                    .withValue(CalendarContract.Reminders.MINUTES, minute)
+                    .withValue(CalendarContract.Reminders.METHOD, CalendarContract.Reminders.METHOD_ALERT)
+                    .build());
+        }
+    }
+
+    /**
+     * Estimates the parcelled size of the values.
+     */
+    static int estimateBytes(ContentValues values) {
+        int bytes = 0;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            bytes += VALUE_OVERHEAD_BYTES + 2 * entry.getKey().length();
+            Object value = entry.getValue();
+            bytes += value instanceof String ? 2 * ((String) value).length() : 8;
+        }
+        return bytes;
+    }
+}
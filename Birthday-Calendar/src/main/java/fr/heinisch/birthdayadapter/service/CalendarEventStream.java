@@ -0,0 +1,138 @@
+package fr.heinisch.birthdayadapter.service;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.CalendarContract;
+
+import java.io.Closeable;
+import java.util.AbstractMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import fr.heinisch.birthdayadapter.core.MergeDiff;
+import fr.heinisch.birthdayadapter.provider.EventsMirrorHelper;
+import fr.heinisch.birthdayadapter.util.Constants;
+import fr.heinisch.birthdayadapter.util.Log;
+
+/**
+ * Streams the events of the birthday calendar sorted by UID, for a {@link MergeDiff} with the
+ * planned events. Only the current row is held in memory.
+ */
+class CalendarEventStream implements Iterator<Map.Entry<String, EventsMirrorHelper.Entry>>, Closeable {
+
+    /**
+     * Receives every event read, to rebuild the mirror while streaming.
+     */
+    interface Listener {
+        void onEventRead(String uid, EventsMirrorHelper.Entry entry);
+    }
+
+    // Never equal to stored reminders, so events without them get their reminders written again
+    private static final String UNKNOWN_REMINDERS = "?";
+
+    private final Cursor mCursor;
+    private final Listener mListener;
+    private final int mIdColumn;
+    private final int mUidColumn;
+    private final int mContactTagColumn;
+    private final int mTitleColumn;
+    private final int mDtstartColumn;
+    private final int mFingerprintColumn;
+    private final int mRemindersColumn;
+    private final int mTypeColumn;
+
+    // Events without a UID of their own, which are not in the mirror
+    private final HashSet<Long> mUnmirroredIds = new HashSet<>();
+    private String mPreviousUid;
+    private boolean mHasNext;
+
+    private CalendarEventStream(Cursor cursor, Listener listener) {
+        mCursor = cursor;
+        mListener = listener;
+        mIdColumn = cursor.getColumnIndex(CalendarContract.Events._ID);
+        mUidColumn = cursor.getColumnIndex(CalendarContract.Events.UID_2445);
+        mContactTagColumn = cursor.getColumnIndex(CalendarContract.Events.SYNC_DATA3);
+        mTitleColumn = cursor.getColumnIndex(CalendarContract.Events.TITLE);
+        mDtstartColumn = cursor.getColumnIndex(CalendarContract.Events.DTSTART);
+        mFingerprintColumn = cursor.getColumnIndex(CalendarContract.Events.SYNC_DATA1);
+        mRemindersColumn = cursor.getColumnIndex(CalendarContract.Events.SYNC_DATA2);
+        mTypeColumn = cursor.getColumnIndex(CalendarContract.Events.SYNC_DATA4);
+        mHasNext = cursor.moveToFirst();
+    }
+
+    /**
+     * @return the stream or null if the calendar could not be read
+     */
+    static CalendarEventStream open(ContentResolver contentResolver, Uri eventsUri, long calendarId, Listener listener) {
+        Cursor cursor = contentResolver.query(eventsUri,
+                new String[]{CalendarContract.Events._ID, CalendarContract.Events.UID_2445, CalendarContract.Events.SYNC_DATA3,
+                        CalendarContract.Events.TITLE, CalendarContract.Events.DTSTART, CalendarContract.Events.SYNC_DATA1,
+                        CalendarContract.Events.SYNC_DATA2, CalendarContract.Events.SYNC_DATA4},
+                CalendarContract.Events.CALENDAR_ID + " = ?",
+                new String[]{String.valueOf(calendarId)},
+                CalendarContract.Events.UID_2445);
+        if (cursor == null) {
+            Log.e(Constants.TAG, "Unable to get existing events! Cursor is null!");
+            return null;
+        }
+        return new CalendarEventStream(cursor, listener);
+    }
+
+    /**
+     * Returns the number of events in the calendar.
+     */
+    int getCount() {
+        return mCursor.getCount();
+    }
+
+    /**
+     * Returns false for events without a UID of their own, which are duplicates or were not
+     * written by this app, and have no entry in the mirror.
+     */
+    boolean isMirrored(long eventId) {
+        return !mUnmirroredIds.contains(eventId);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return mHasNext;
+    }
+
+    @Override
+    public Map.Entry<String, EventsMirrorHelper.Entry> next() {
+        if (!mHasNext) {
+            throw new NoSuchElementException();
+        }
+        long id = mCursor.getLong(mIdColumn);
+        String uid = mCursor.getString(mUidColumn);
+        String contactTag = mCursor.getString(mContactTagColumn);
+        String reminders = mCursor.getString(mRemindersColumn);
+        EventsMirrorHelper.Entry entry = new EventsMirrorHelper.Entry(id, contactTag == null ? "" : contactTag,
+                BirthdayWorker.parseFingerprint(mCursor.getString(mFingerprintColumn),
+                        mCursor.getString(mTitleColumn), mCursor.getLong(mDtstartColumn)),
+                reminders != null ? reminders : UNKNOWN_REMINDERS,
+                BirthdayWorker.parseEventType(mCursor.getString(mTypeColumn)));
+
+        if (uid == null || uid.equals(mPreviousUid)) {
+            // Duplicates, e.g. left behind by a partially committed batch, can only be matched
+            // once and the others are deleted. Events without a UID are sorted first and never match.
+            mUnmirroredIds.add(id);
+            if (uid == null) {
+                uid = "";
+            }
+        } else {
+            mListener.onEventRead(uid, entry);
+        }
+        mPreviousUid = uid;
+        mHasNext = mCursor.moveToNext();
+        return new AbstractMap.SimpleImmutableEntry<>(uid, entry);
+    }
+
+    @Override
+    public void close() {
+        mCursor.close();
+    }
+}
@@ -0,0 +1,330 @@
+package fr.heinisch.birthdayadapter.service;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.OperationCanceledException;
+import android.provider.ContactsContract;
+import android.text.TextUtils;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.Closeable;
+import java.util.HashSet;
+import java.util.List;
+
+import fr.heinisch.birthdayadapter.R;
+import fr.heinisch.birthdayadapter.core.AccountBlacklist;
+import fr.heinisch.birthdayadapter.core.GroupExclusionIndex;
+import fr.heinisch.birthdayadapter.core.LookupKeyOrder;
+import fr.heinisch.birthdayadapter.provider.ProviderHelper;
+import fr.heinisch.birthdayadapter.util.Constants;
+import fr.heinisch.birthdayadapter.util.Log;
+
+/**
+ * Streams the events of all contacts which are not blacklisted directly from the contacts
+ * provider. Rows are filtered and deduplicated while reading, so only the current row is held in
+ * memory instead of a copy of all events.
+ */
+class ContactEventSource implements Closeable {
+
+    /**
+     * A single event of a contact.
+     */
+    static class ContactEvent {
+        final long contactId;
+        final String lookupKey;
+        final String displayName;
+        final String startDate;
+        final int type;
+        final String label;
+
+        ContactEvent(long contactId, String lookupKey, String displayName, String startDate, int type, String label) {
+            this.contactId = contactId;
+            this.lookupKey = lookupKey;
+            this.displayName = displayName;
+            this.startDate = startDate;
+            this.type = type;
+            this.label = label;
+        }
+    }
+
+    private static final String[] PROJECTION = new String[]{
+            ContactsContract.Data.CONTACT_ID,
+            ContactsContract.Data.DISPLAY_NAME,
+            ContactsContract.Data.LOOKUP_KEY,
+            ContactsContract.CommonDataKinds.Event.START_DATE,
+            ContactsContract.CommonDataKinds.Event.TYPE,
+            ContactsContract.CommonDataKinds.Event.LABEL,
+            ContactsContract.RawContacts.ACCOUNT_TYPE,
+            ContactsContract.RawContacts.ACCOUNT_NAME,
+            ContactsContract.Data.RAW_CONTACT_ID
+    };
+
+    private static final int COLUMN_CONTACT_ID = 0;
+    private static final int COLUMN_DISPLAY_NAME = 1;
+    private static final int COLUMN_LOOKUP_KEY = 2;
+    private static final int COLUMN_START_DATE = 3;
+    private static final int COLUMN_TYPE = 4;
+    private static final int COLUMN_LABEL = 5;
+    private static final int COLUMN_ACCOUNT_TYPE = 6;
+    private static final int COLUMN_ACCOUNT_NAME = 7;
+    private static final int COLUMN_RAW_CONTACT_ID = 8;
+
+    // The events of a contact are read together. Their UIDs start with the lookup key, the few
+    // keys whose order differs from the one of the UIDs are reordered by mUidOrder.
+    private static final String SORT_ORDER = ContactsContract.Data.LOOKUP_KEY + ", " + ContactsContract.Data.CONTACT_ID;
+
+    private final ContentResolver mContentResolver;
+    private final List<String> mSelections;
+    private final String[] mSelectionArgs;
+
+    private final AccountBlacklist mBlacklist;
+    private final boolean mNeedsGroups;
+    private final GroupExclusionIndex mGroupExclusion;
+
+    private int mNextSelection = 0;
+    private Cursor mCursor;
+    private boolean mFailed = false;
+    private long mRowsRead = 0;
+    private long mRowsKept = 0;
+
+    // Rows of a contact share their account, which is only looked up once
+    private String mLastAccountType;
+    private String mLastAccountName;
+    private int mLastAccountId = AccountBlacklist.UNLISTED;
+
+    // Duplicates only have to be detected within one contact
+    private long mCurrentContactId = -1;
+    private final HashSet<String> mContactEventIdentifiers = new HashSet<>();
+
+    private final LookupKeyOrder<ContactEvent> mUidOrder = new LookupKeyOrder<>(event -> event.lookupKey);
+    private boolean mReadAll = false;
+
+    /**
+     * @param contactIdClauses restricts the events to these contacts, null for all contacts
+     */
+    ContactEventSource(Context context, ContentResolver contentResolver, List<String> contactIdClauses) {
+        mContentResolver = contentResolver;
+
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean groupFilteringEnabled = sharedPreferences.getBoolean(context.getString(R.string.pref_group_filtering_key), context.getResources().getBoolean(R.bool.pref_group_filtering_def));
+        // Shared with other readers until the blacklist changes
+        mBlacklist = ProviderHelper.getAccountBlacklistSnapshot(context).getFilter(groupFilteringEnabled);
+
+        // Rows of accounts which are blacklisted as a whole are not even read
+        List<String[]> blacklistedAccounts = mBlacklist.getBlacklistedAccounts();
+        String accountExclusion = buildAccountExclusion(blacklistedAccounts.size());
+        mSelections = BirthdayWorker.buildContactSelections(ContactsContract.Data.MIMETYPE + " = ?" + accountExclusion, contactIdClauses);
+        mSelectionArgs = buildSelectionArgs(ContactsContract.CommonDataKinds.Event.CONTENT_ITEM_TYPE, blacklistedAccounts);
+        if (!blacklistedAccounts.isEmpty()) {
+            Log.d(Constants.TAG, "Excluding " + blacklistedAccounts.size() + " blacklisted accounts from the contacts query.");
+        }
+
+        // Group memberships are only needed if a group of an otherwise synced account is blacklisted
+        mNeedsGroups = mBlacklist.needsGroups();
+        mGroupExclusion = mNeedsGroups ? buildGroupExclusion(contactIdClauses, accountExclusion, blacklistedAccounts) : null;
+    }
+
+    /**
+     * Returns the next event which is not blacklisted or null if all events have been read. The
+     * events are returned in the order of the UIDs of their calendar events, the events of a
+     * contact one after another.
+     */
+    ContactEvent next() throws OperationCanceledException {
+        while (true) {
+            ContactEvent event = mUidOrder.poll();
+            if (event != null || mReadAll) {
+                return event;
+            }
+            event = read();
+            if (event != null) {
+                mUidOrder.add(event);
+            } else {
+                mUidOrder.finish();
+                mReadAll = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the next event by lookup key.
+     */
+    private ContactEvent read() throws OperationCanceledException {
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new OperationCanceledException();
+            }
+
+            if (mCursor == null) {
+                if (mFailed || mNextSelection >= mSelections.size()) {
+                    return null;
+                }
+                mCursor = mContentResolver.query(ContactsContract.Data.CONTENT_URI, PROJECTION,
+                        mSelections.get(mNextSelection++), mSelectionArgs, SORT_ORDER);
+                if (mCursor == null) {
+                    // Stop here, the events of the missing contacts must not be deleted
+                    Log.e(Constants.TAG, "Failed to query contacts data.");
+                    mFailed = true;
+                    return null;
+                }
+            }
+
+            if (!mCursor.moveToNext()) {
+                mCursor.close();
+                mCursor = null;
+                continue;
+            }
+            mRowsRead++;
+
+            // Otherwise all blacklisted rows have been excluded by the query
+            if (mNeedsGroups) {
+                int accountId = getAccountId(mCursor.getString(COLUMN_ACCOUNT_TYPE), mCursor.getString(COLUMN_ACCOUNT_NAME));
+                if (accountId != AccountBlacklist.UNLISTED
+                        && mGroupExclusion.isBlacklisted(mCursor.getLong(COLUMN_RAW_CONTACT_ID), accountId)) {
+                    continue;
+                }
+            }
+
+            long contactId = mCursor.getLong(COLUMN_CONTACT_ID);
+            String lookupKey = mCursor.getString(COLUMN_LOOKUP_KEY);
+            int type = mCursor.getInt(COLUMN_TYPE);
+            String label = mCursor.getString(COLUMN_LABEL);
+            String startDate = mCursor.getString(COLUMN_START_DATE);
+
+            if (contactId != mCurrentContactId) {
+                mCurrentContactId = contactId;
+                mContactEventIdentifiers.clear();
+            }
+
+            // Prevent adding the same event (birthday, anniversary) for the same contact twice
+            String eventIdentifier = lookupKey + type + label + startDate;
+            if (!mContactEventIdentifiers.add(eventIdentifier)) {
+                continue;
+            }
+
+            mRowsKept++;
+            return new ContactEvent(contactId, lookupKey, mCursor.getString(COLUMN_DISPLAY_NAME), startDate, type, label);
+        }
+    }
+
+    /**
+     * Returns true if not all contacts could be read. The events returned so far are valid, but
+     * events of other contacts may be missing.
+     */
+    boolean hasFailed() {
+        return mFailed;
+    }
+
+    /**
+     * Returns the number of rows read from the contacts provider, including blacklisted events
+     * and group memberships.
+     */
+    long getRowsRead() {
+        return mRowsRead;
+    }
+
+    /**
+     * Returns the number of events returned, i.e. the rows which were neither blacklisted nor
+     * duplicates.
+     */
+    long getRowsKept() {
+        return mRowsKept;
+    }
+
+    @Override
+    public void close() {
+        if (mCursor != null) {
+            mCursor.close();
+            mCursor = null;
+        }
+    }
+
+    private int getAccountId(String accountType, String accountName) {
+        if (!TextUtils.equals(accountType, mLastAccountType) || !TextUtils.equals(accountName, mLastAccountName)) {
+            mLastAccountType = accountType;
+            mLastAccountName = accountName;
+            mLastAccountId = mBlacklist.getAccountId(accountType, accountName);
+        }
+        return mLastAccountId;
+    }
+
+    /**
+     * Returns a clause excluding the rows of the given number of accounts, to be appended to a
+     * selection whose arguments are built by {@link #buildSelectionArgs}.
+     */
+    private static String buildAccountExclusion(int accountCount) {
+        StringBuilder clause = new StringBuilder();
+        for (int i = 0; i < accountCount; i++) {
+            // Unlike "=", "IS" is false for the null account of local contacts, which are kept
+            clause.append(" AND NOT (").append(ContactsContract.RawContacts.ACCOUNT_TYPE).append(" IS ? AND ")
+                    .append(ContactsContract.RawContacts.ACCOUNT_NAME).append(" IS ?)");
+        }
+        return clause.toString();
+    }
+
+    private static String[] buildSelectionArgs(String mimeType, List<String[]> accounts) {
+        String[] selectionArgs = new String[1 + 2 * accounts.size()];
+        selectionArgs[0] = mimeType;
+        for (int i = 0; i < accounts.size(); i++) {
+            selectionArgs[1 + 2 * i] = accounts.get(i)[0];
+            selectionArgs[2 + 2 * i] = accounts.get(i)[1];
+        }
+        return selectionArgs;
+    }
+
+    /**
+     * Reads the groups and the group memberships and decides once per raw contact whether its
+     * groups exclude it, so each event row only needs a bit test.
+     */
+    private GroupExclusionIndex buildGroupExclusion(List<String> contactIdClauses, String accountExclusion,
+                                                    List<String[]> blacklistedAccounts) {
+        GroupExclusionIndex groupExclusion = new GroupExclusionIndex(mBlacklist);
+        final String[] groupProjection = {ContactsContract.Groups._ID, ContactsContract.Groups.TITLE};
+        final String groupSelection = ContactsContract.Groups.DELETED + " = 0";
+
+        // Query all groups to create a mapping from group ID to group title
+        try (Cursor groupCursor = mContentResolver.query(ContactsContract.Groups.CONTENT_URI,
+                groupProjection, groupSelection, null, null)) {
+            if (groupCursor != null) {
+                int idColumn = groupCursor.getColumnIndex(ContactsContract.Groups._ID);
+                int titleColumn = groupCursor.getColumnIndex(ContactsContract.Groups.TITLE);
+                while (groupCursor.moveToNext()) {
+                    mRowsRead++;
+                    String title = groupCursor.getString(titleColumn);
+                    // We are not interested in system groups
+                    if (!TextUtils.isEmpty(title) && !title.startsWith("System Group:")) {
+                        groupExclusion.addGroup(groupCursor.getLong(idColumn), title);
+                    }
+                }
+            }
+        }
+
+        final String[] membershipProjection = {
+                ContactsContract.Data.RAW_CONTACT_ID,
+                ContactsContract.CommonDataKinds.GroupMembership.GROUP_ROW_ID,
+                ContactsContract.RawContacts.ACCOUNT_TYPE,
+                ContactsContract.RawContacts.ACCOUNT_NAME
+        };
+        final String[] membershipSelectionArgs = buildSelectionArgs(
+                ContactsContract.CommonDataKinds.GroupMembership.CONTENT_ITEM_TYPE, blacklistedAccounts);
+
+        // Query all group memberships (of the changed contacts) to link contacts to groups
+        for (String membershipSelection : BirthdayWorker.buildContactSelections(ContactsContract.Data.MIMETYPE + " = ?" + accountExclusion, contactIdClauses)) {
+            // Memberships of a raw contact share its account, which is only looked up once
+            try (Cursor membershipCursor = mContentResolver.query(ContactsContract.Data.CONTENT_URI,
+                    membershipProjection, membershipSelection, membershipSelectionArgs, ContactsContract.Data.RAW_CONTACT_ID)) {
+                if (membershipCursor != null) {
+                    while (membershipCursor.moveToNext()) {
+                        mRowsRead++;
+                        int accountId = getAccountId(membershipCursor.getString(2), membershipCursor.getString(3));
+                        groupExclusion.addMembership(membershipCursor.getLong(0), accountId, membershipCursor.getLong(1));
+                    }
+                }
+            }
+        }
+        Log.d(Constants.TAG, "Indexed the memberships of " + groupExclusion.getTitleCount() + " group titles.");
+        return groupExclusion;
+    }
+}
@@ -0,0 +1,89 @@
+package fr.heinisch.birthdayadapter.service;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.text.TextUtils;
+
+import java.util.HashMap;
+import java.util.List;
+
+import fr.heinisch.birthdayadapter.util.Constants;
+import fr.heinisch.birthdayadapter.util.Log;
+
+/**
+ * Resolves given and family names of contacts from their structured names. All names are read
+ * with a single streaming query over the Data table when the first name is requested, instead of
+ * one lookup URI query per contact.
+ */
+class ContactNameResolver {
+
+    private final ContentResolver mContentResolver;
+    private final List<String> mContactIdClauses;
+
+    private HashMap<Long, String> mGivenNames;
+    private HashMap<Long, String> mFamilyNames;
+
+    /**
+     * @param contactIdClauses restricts the names to these contacts, null for all contacts
+     */
+    ContactNameResolver(ContentResolver contentResolver, List<String> contactIdClauses) {
+        mContentResolver = contentResolver;
+        mContactIdClauses = contactIdClauses;
+    }
+
+    /**
+     * Returns the given name of the contact or null if it has none.
+     */
+    String getGivenName(long contactId) {
+        ensureLoaded();
+        return mGivenNames.get(contactId);
+    }
+
+    /**
+     * Returns the family name of the contact or null if it has none.
+     */
+    String getFamilyName(long contactId) {
+        ensureLoaded();
+        return mFamilyNames.get(contactId);
+    }
+
+    private void ensureLoaded() {
+        if (mGivenNames != null) {
+            return;
+        }
+        mGivenNames = new HashMap<>();
+        mFamilyNames = new HashMap<>();
+
+        String[] projection = {
+                ContactsContract.Data.CONTACT_ID,
+                ContactsContract.CommonDataKinds.StructuredName.GIVEN_NAME,
+                ContactsContract.CommonDataKinds.StructuredName.FAMILY_NAME
+        };
+        String[] selectionArgs = {ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE};
+
+        for (String selection : BirthdayWorker.buildContactSelections(ContactsContract.Data.MIMETYPE + " = ?", mContactIdClauses)) {
+            try (Cursor cursor = mContentResolver.query(ContactsContract.Data.CONTENT_URI, projection, selection, selectionArgs, null)) {
+                if (cursor == null) {
+                    Log.e(Constants.TAG, "Unable to get structured names! Cursor is null!");
+                    continue;
+                }
+                while (cursor.moveToNext()) {
+                    long contactId = cursor.getLong(0);
+                    // A contact may consist of several raw contacts, the first non-empty name wins
+                    String givenName = cursor.getString(1);
+                    if (!TextUtils.isEmpty(givenName)) {
+                        mGivenNames.putIfAbsent(contactId, givenName);
+                    }
+                    String familyName = cursor.getString(2);
+                    if (!TextUtils.isEmpty(familyName)) {
+                        mFamilyNames.putIfAbsent(contactId, familyName);
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(Constants.TAG, "Error querying structured names", e);
+            }
+        }
+        Log.d(Constants.TAG, "Loaded structured names of " + mGivenNames.size() + " contacts.");
+    }
+}
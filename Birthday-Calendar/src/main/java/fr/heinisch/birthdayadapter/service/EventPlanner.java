@@ -0,0 +1,487 @@
+package fr.heinisch.birthdayadapter.service;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.OperationCanceledException;
+import android.provider.CalendarContract;
+import android.provider.ContactsContract;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Objects;
+
+import fr.heinisch.birthdayadapter.core.ContactDateParser;
+import fr.heinisch.birthdayadapter.core.EventContent;
+import fr.heinisch.birthdayadapter.core.EventMatcher;
+import fr.heinisch.birthdayadapter.core.EventUid;
+import fr.heinisch.birthdayadapter.core.MergeDiff;
+import fr.heinisch.birthdayadapter.core.TitleTemplate;
+import fr.heinisch.birthdayadapter.provider.EventsMirrorHelper;
+import fr.heinisch.birthdayadapter.util.Constants;
+import fr.heinisch.birthdayadapter.util.Log;
+
+/**
+ * Plans the calendar events of contact events and queues the writes which bring the existing
+ * events in line with them.
+ * <p>
+ * Contact events are planned per lookup key: the events of all years of a contact are collected
+ * and matched in UID order, so a {@link MergeDiff} can stream the existing events in the same
+ * order if the contact events are read in the order of their UID prefixes.
+ */
+class EventPlanner {
+
+    private static final int[] NO_REMINDERS = new int[0];
+
+    // First year of recurring events without a known year
+    private static final int RECURRENCE_START_YEAR = 1970;
+    private static final String RECURRENCE_RULE = "FREQ=YEARLY";
+    private static final String RECURRENCE_DURATION = "P1D";
+
+    /**
+     * A contact event with the state shared by the events of all its years.
+     */
+    private static final class PlannedContactEvent {
+        final ContactEventSource.ContactEvent event;
+        final String contactTag;
+        final int eventYear;
+        final int eventMonth;
+        final int eventDay;
+        final boolean hasYear;
+        final boolean recurring;
+        final String uidLabel;
+        final boolean shouldAddReminder;
+        final String reminders;
+
+        // Built on first use
+        String legacyUidPrefix;
+        TitleTemplate.Bound titleWithAge;
+        String titleWithoutAge;
+        String contactAppUri;
+
+        PlannedContactEvent(ContactEventSource.ContactEvent event, int eventDate, boolean recurring, String uidLabel,
+                            boolean shouldAddReminder, String reminders) {
+            this.event = event;
+            this.contactTag = String.valueOf(event.contactId);
+            this.eventYear = ContactDateParser.year(eventDate);
+            this.eventMonth = ContactDateParser.month(eventDate);
+            this.eventDay = ContactDateParser.day(eventDate);
+            this.hasYear = eventYear >= 1800;
+            this.recurring = recurring;
+            this.uidLabel = uidLabel;
+            this.shouldAddReminder = shouldAddReminder;
+            this.reminders = reminders;
+        }
+    }
+
+    /**
+     * The event of a contact event in one year, or its recurring event.
+     */
+    private static final class PlannedEvent {
+        final String uid;
+        final PlannedContactEvent contactEvent;
+        final int year;
+
+        PlannedEvent(String uid, PlannedContactEvent contactEvent, int year) {
+            this.uid = uid;
+            this.contactEvent = contactEvent;
+            this.year = year;
+        }
+    }
+
+    private final SyncSettings mSettings;
+    private final long mCalendarId;
+    private final String mPackageName;
+    private final Uri mEventsUri;
+    private final EventMatcher<EventsMirrorHelper.Entry> mMatcher;
+    private final boolean mAdoptLegacyUids;
+    private final CalendarBatchWriter mBatchWriter;
+    private final ContactNameResolver mNameResolver;
+    private final int mStartYear;
+    private final int mEndYear;
+    private final int mKeptFirstYear;
+    private final int mKeptLastYear;
+
+    private final String mReminderSet;
+    private final ContactDateParser mDateParser;
+    private final HashSet<String> mLoggedInvalidDates = new HashSet<>();
+    private final StringBuilder mTitleBuilder = new StringBuilder();
+    private final StringBuilder mUidBuilder = new StringBuilder();
+
+    // Contact events with the same lookup key, planned together
+    private final ArrayList<PlannedContactEvent> mGroup = new ArrayList<>();
+    private final ArrayList<PlannedEvent> mGroupEvents = new ArrayList<>();
+    private String mGroupLookupKey;
+
+    private int mNewEventsCount = 0;
+    private int mUpdatedEventsCount = 0;
+    private int mYearlyEventsCount = 0;
+    private int mRecurringEventsCount = 0;
+    private int mReplacedYearlyEventsCount = 0;
+
+    /**
+     * @param matcher         finds the existing events, a {@link MergeDiff} requires the contact
+     *                        events in the order of their UID prefixes
+     * @param adoptLegacyUids look for events of older versions under their UIDs, which are not
+     *                        in the order of the current UIDs and can't be used with a {@link MergeDiff}
+     * @param keptFirstYear   first year whose events are up to date and not planned
+     * @param keptLastYear    last year whose events are up to date, before the first one if all
+     *                        years of the window are planned
+     */
+    EventPlanner(SyncSettings settings, long calendarId, String packageName, Uri eventsUri,
+                 EventMatcher<EventsMirrorHelper.Entry> matcher, boolean adoptLegacyUids, CalendarBatchWriter batchWriter,
+                 ContactNameResolver nameResolver, int startYear, int endYear, int keptFirstYear, int keptLastYear) {
+        mSettings = settings;
+        mCalendarId = calendarId;
+        mPackageName = packageName;
+        mEventsUri = eventsUri;
+        mMatcher = matcher;
+        mAdoptLegacyUids = adoptLegacyUids;
+        mBatchWriter = batchWriter;
+        mNameResolver = nameResolver;
+        mStartYear = startYear;
+        mEndYear = endYear;
+        mKeptFirstYear = keptFirstYear;
+        mKeptLastYear = keptLastYear;
+
+        mReminderSet = EventContent.formatReminders(settings.reminderMinutes);
+        mDateParser = new ContactDateParser(settings.preferDDSlashMM);
+    }
+
+    /**
+     * Plans the events of a contact event. They are written once all contact events with the
+     * same lookup key have been added.
+     */
+    void add(ContactEventSource.ContactEvent event) throws OperationCanceledException {
+        if (!mGroup.isEmpty() && !Objects.equals(event.lookupKey, mGroupLookupKey)) {
+            planGroup();
+        }
+        mGroupLookupKey = event.lookupKey;
+
+        int eventDate = mDateParser.parse(event.startDate);
+        if (eventDate == ContactDateParser.INVALID) {
+            if (!TextUtils.isEmpty(event.startDate) && mLoggedInvalidDates.add(event.startDate)) {
+                Log.e(Constants.TAG, "Could not parse date string: '" + event.startDate + "' for contact: '" + event.displayName + "'");
+            }
+            return;
+        }
+
+        int eventYear = ContactDateParser.year(eventDate);
+        int eventMonth = ContactDateParser.month(eventDate);
+        int eventDay = ContactDateParser.day(eventDate);
+        boolean hasYear = eventYear >= 1800;
+        // Don't create events for years before the birth year
+        int firstYear = hasYear ? Math.max(mStartYear, eventYear) : mStartYear;
+
+        // A single recurring event replaces the yearly events if all years have the same title.
+        // February 29 would only recur in leap years, so it keeps one event per year.
+        boolean recurring = mSettings.recurringEvents && firstYear <= mEndYear
+                && !(eventMonth == 2 && eventDay == 29)
+                && !mSettings.titleVariesByYear(event.type, event.label != null, hasYear);
+        boolean plansAllYears = mKeptFirstYear > mKeptLastYear;
+        if (recurring && !plansAllYears) {
+            // Recurring events do not depend on the window
+            return;
+        }
+
+        boolean shouldAddReminder = mSettings.reminderMinutes.length > 0 && mSettings.reminderEventTypes.contains(event.type);
+        String uidLabel = event.type == ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM ? event.label : null;
+        PlannedContactEvent contactEvent = new PlannedContactEvent(event, eventDate, recurring, uidLabel,
+                shouldAddReminder, shouldAddReminder ? mReminderSet : "");
+        mGroup.add(contactEvent);
+
+        // Create a stable, unique ID for the events based on raw data, only the year differs
+        int uidPrefixLength = EventUid.buildPrefix(mUidBuilder, event.lookupKey, event.startDate, event.type, uidLabel);
+        if (recurring) {
+            mRecurringEventsCount++;
+            mReplacedYearlyEventsCount += mEndYear - firstYear + 1;
+            int year = hasYear ? eventYear : RECURRENCE_START_YEAR;
+            mGroupEvents.add(new PlannedEvent(EventUid.forRecurring(mUidBuilder, uidPrefixLength), contactEvent, year));
+            return;
+        }
+        mYearlyEventsCount += Math.max(0, mEndYear - firstYear + 1);
+        for (int year = firstYear; year <= mEndYear; year++) {
+            if (year < mKeptFirstYear || year > mKeptLastYear) {
+                mGroupEvents.add(new PlannedEvent(EventUid.forYear(mUidBuilder, uidPrefixLength, year), contactEvent, year));
+            }
+        }
+    }
+
+    /**
+     * Plans the contact events added last. To be called after all contact events have been added.
+     */
+    void finish() throws OperationCanceledException {
+        planGroup();
+    }
+
+    int getNewEventsCount() {
+        return mNewEventsCount;
+    }
+
+    int getUpdatedEventsCount() {
+        return mUpdatedEventsCount;
+    }
+
+    /**
+     * Logs how many event rows recurring events saved compared to one event per year.
+     */
+    void logRecurrence() {
+        if (mRecurringEventsCount == 0) {
+            return;
+        }
+        int plannedRows = mYearlyEventsCount + mRecurringEventsCount;
+        int yearlyRows = mYearlyEventsCount + mReplacedYearlyEventsCount;
+        Log.i(Constants.TAG, "Sync recurrence: " + mRecurringEventsCount + " recurring events replace "
+                + mReplacedYearlyEventsCount + " yearly events, " + plannedRows + " instead of " + yearlyRows
+                + " event rows (-" + (100 - plannedRows * 100L / yearlyRows) + "%), reminder rows shrink alike.");
+    }
+
+    private void planGroup() throws OperationCanceledException {
+        // Several events of a contact may interleave in UID order
+        mGroupEvents.sort((a, b) -> MergeDiff.compare(a.uid, b.uid));
+        for (PlannedEvent event : mGroupEvents) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new OperationCanceledException();
+            }
+            planEvent(event);
+        }
+        mGroup.clear();
+        mGroupEvents.clear();
+    }
+
+    private void planEvent(PlannedEvent plannedEvent) throws OperationCanceledException {
+        PlannedContactEvent contactEvent = plannedEvent.contactEvent;
+        ContactEventSource.ContactEvent event = contactEvent.event;
+        int year = plannedEvent.year;
+        String eventUid = plannedEvent.uid;
+
+        EventsMirrorHelper.Entry existingEvent = mMatcher.match(eventUid);
+        String legacyUid = null;
+        // Older versions only wrote yearly events
+        if (existingEvent == null && !contactEvent.recurring && mAdoptLegacyUids) {
+            if (contactEvent.legacyUidPrefix == null) {
+                EventUid.buildLegacyPrefix(mUidBuilder, event.lookupKey, event.startDate, event.type,
+                        event.displayName, contactEvent.uidLabel);
+                contactEvent.legacyUidPrefix = mUidBuilder.toString();
+            }
+            legacyUid = contactEvent.legacyUidPrefix + year;
+            existingEvent = mMatcher.match(legacyUid);
+            if (existingEvent == null) {
+                legacyUid = null;
+            }
+        }
+
+        String title = buildTitle(contactEvent, year);
+        if (title == null || TextUtils.getTrimmedLength(title) == 0) {
+            // Existing events are kept, like before titles were compared
+            return;
+        }
+
+        // Start of the all-day event in UTC, February 29 rolls over to March 1 in other years
+        long dtstart = ContactDateParser.daysFromCivil(year, contactEvent.eventMonth, contactEvent.eventDay) * DateUtils.DAY_IN_MILLIS;
+        long fingerprint = EventContent.fingerprint(title, dtstart);
+        String reminders = contactEvent.reminders;
+        int[] reminderMinutes = contactEvent.shouldAddReminder ? mSettings.reminderMinutes : NO_REMINDERS;
+
+        if (existingEvent != null) {
+            // Only the changed parts of the event are written
+            boolean contentChanged = fingerprint != existingEvent.fingerprint;
+            boolean remindersChanged = !reminders.equals(existingEvent.reminders);
+            // Events created before the contact was re-aggregated have to be tagged again,
+            // otherwise incremental syncs would not find them
+            boolean contactChanged = !contactEvent.contactTag.equals(existingEvent.contactTag);
+            // Events of older versions lack the type needed to update their reminders on their own
+            boolean typeChanged = event.type != existingEvent.eventType;
+            if (contentChanged || remindersChanged || contactChanged || typeChanged || legacyUid != null) {
+                mUpdatedEventsCount++;
+                if (Log.isVerboseEnabled()) {
+                    Log.v(Constants.TAG, "Updating event: " + title);
+                }
+                mBatchWriter.updateEvent(mEventsUri, existingEvent.eventId,
+                        buildEventUpdateValues(existingEvent, dtstart, title, fingerprint, contactEvent.contactTag,
+                                reminders, event.type, contactEvent.recurring, legacyUid != null ? eventUid : null),
+                        remindersChanged ? reminderMinutes : null,
+                        BirthdayWorker.MirrorChange.update(eventUid, legacyUid, new EventsMirrorHelper.Entry(existingEvent.eventId,
+                                contactEvent.contactTag, fingerprint, reminders, event.type)));
+            }
+            return;
+        }
+
+        mNewEventsCount++;
+        if (Log.isVerboseEnabled()) {
+            Log.v(Constants.TAG, "Adding event: " + title);
+        }
+        // Same for all years, so it is only built when the first one is inserted
+        if (contactEvent.contactAppUri == null && event.lookupKey != null) {
+            contactEvent.contactAppUri = Uri.withAppendedPath(ContactsContract.Contacts.CONTENT_LOOKUP_URI, event.lookupKey).toString();
+        }
+        mBatchWriter.insertEvent(mEventsUri,
+                buildEventValues(dtstart, title, fingerprint, contactEvent.contactAppUri, contactEvent.contactTag,
+                        eventUid, reminders, event.type, contactEvent.recurring),
+                reminderMinutes,
+                BirthdayWorker.MirrorChange.insert(eventUid, contactEvent.contactTag, fingerprint, reminders, event.type));
+    }
+
+    /**
+     * Returns the title of the event in the given year, or null if the contact has no name.
+     * Titles are bound once per contact event, only the age differs between the years.
+     */
+    private String buildTitle(PlannedContactEvent contactEvent, int year) {
+        ContactEventSource.ContactEvent event = contactEvent.event;
+        if (TextUtils.isEmpty(event.displayName)) {
+            return null;
+        }
+
+        int age = year - contactEvent.eventYear;
+        if (contactEvent.hasYear && age >= 0) {
+            if (contactEvent.titleWithAge == null) {
+                contactEvent.titleWithAge = bindTitle(event, true);
+            }
+            return contactEvent.titleWithAge.render(mSettings.getJubileePrefix(age), age, mTitleBuilder);
+        }
+        if (contactEvent.titleWithoutAge == null) {
+            contactEvent.titleWithoutAge = bindTitle(event, false).render(null, age, mTitleBuilder);
+        }
+        return contactEvent.titleWithoutAge;
+    }
+
+    /**
+     * Binds the title template of the event to the names and label of its contact.
+     */
+    private TitleTemplate.Bound bindTitle(ContactEventSource.ContactEvent event, boolean includeAge) {
+        TitleTemplate template = mSettings.getTitleTemplate(event.type, event.label != null, includeAge);
+
+        String name = template.usesName()
+                ? getDisplayName(event.contactId, event.displayName) : null;
+        String firstName = template.usesFirstName()
+                ? getFirstName(event.contactId, event.displayName) : null;
+        // Only custom events have a label
+        String label = event.type == ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM ? event.label : null;
+
+        return template.bind(name, firstName, label, includeAge, mTitleBuilder);
+    }
+
+    private String getDisplayName(long contactId, String displayName) {
+        if (!mSettings.useLastNameFirst) {
+            return displayName;
+        }
+
+        String firstName = getFirstName(contactId, displayName);
+        String lastName = getLastName(contactId, displayName);
+
+        if (!TextUtils.isEmpty(lastName) && !TextUtils.isEmpty(firstName)) {
+            return lastName + ", " + firstName;
+        } else if (!TextUtils.isEmpty(lastName)) {
+            return lastName;
+        } else {
+            return displayName; // Fallback to full display name
+        }
+    }
+
+    private String getFirstName(long contactId, String displayName) {
+        String firstName = mNameResolver.getGivenName(contactId);
+        // Fallback to splitting the display name if structured name is not available
+        if (TextUtils.isEmpty(firstName)) {
+            firstName = displayName.split("\\s+")[0];
+        }
+
+        // Final fallback to ensure firstname is not empty if display name is not
+        if (TextUtils.isEmpty(firstName) && !TextUtils.isEmpty(displayName)) {
+            firstName = displayName;
+        }
+        return firstName;
+    }
+
+    private String getLastName(long contactId, String displayName) {
+        String lastName = mNameResolver.getFamilyName(contactId);
+        // Fallback to splitting the display name if structured name is not available
+        if (TextUtils.isEmpty(lastName) && displayName.contains(" ")) {
+            lastName = displayName.substring(displayName.lastIndexOf(' ') + 1);
+        }
+        return lastName;
+    }
+
+    /**
+     * @param contactAppUri lookup URI of the contact, opened when the event is clicked, may be null
+     * @param reminders     formatted reminders of the event, empty if it has none
+     * @param eventType     type of the contact event, decides whether the event gets reminders
+     * @param recurring     whether the event repeats every year instead of being a single instance
+     */
+    private ContentValues buildEventValues(long dtstart, String title, long fingerprint, String contactAppUri,
+                                           String contactTag, String eventUid, String reminders, int eventType,
+                                           boolean recurring) {
+        ContentValues values = new ContentValues();
+
+        values.put(CalendarContract.Events.CALENDAR_ID, mCalendarId);
+        values.put(CalendarContract.Events.DTSTART, dtstart);
+        if (recurring) {
+            // Recurring events have a duration instead of an end
+            values.put(CalendarContract.Events.DURATION, RECURRENCE_DURATION);
+            values.put(CalendarContract.Events.RRULE, RECURRENCE_RULE);
+        } else {
+            values.put(CalendarContract.Events.DTEND, dtstart + DateUtils.DAY_IN_MILLIS);
+        }
+        values.put(CalendarContract.Events.EVENT_TIMEZONE, "UTC");
+
+        values.put(CalendarContract.Events.ALL_DAY, 1);
+        values.put(CalendarContract.Events.TITLE, title);
+        values.put(CalendarContract.Events.STATUS, CalendarContract.Events.STATUS_CONFIRMED);
+        values.put(CalendarContract.Events.UID_2445, eventUid);
+        // Remember the contact to find its events again in incremental syncs
+        values.put(CalendarContract.Events.SYNC_DATA3, contactTag);
+        // Remember the content to only update events which changed
+        values.put(CalendarContract.Events.SYNC_DATA1, Long.toString(fingerprint));
+        values.put(CalendarContract.Events.SYNC_DATA2, reminders);
+        // Remember the type to update the reminders without a sync
+        values.put(CalendarContract.Events.SYNC_DATA4, Integer.toString(eventType));
+
+        values.put(CalendarContract.Events.HAS_ALARM, reminders.isEmpty() ? 0 : 1);
+
+        values.put(CalendarContract.Events.AVAILABILITY, CalendarContract.Events.AVAILABILITY_FREE);
+
+        if (contactAppUri != null) {
+            values.put(CalendarContract.Events.CUSTOM_APP_PACKAGE, mPackageName);
+            values.put(CalendarContract.Events.CUSTOM_APP_URI, contactAppUri);
+        }
+
+        return values;
+    }
+
+    /**
+     * Returns the columns of an existing event which differ from the planned event.
+     *
+     * @param newUid the new UID of an event written by an older version, which also lacks the
+     *               stored fingerprints, null if the UID did not change
+     * @return the values or null if nothing but the reminders differs
+     */
+    private static ContentValues buildEventUpdateValues(EventsMirrorHelper.Entry existingEvent, long dtstart, String title,
+                                                        long fingerprint, String contactTag, String reminders, int eventType,
+                                                        boolean recurring, String newUid) {
+        ContentValues values = new ContentValues();
+        if (fingerprint != existingEvent.fingerprint) {
+            values.put(CalendarContract.Events.DTSTART, dtstart);
+            if (!recurring) {
+                values.put(CalendarContract.Events.DTEND, dtstart + DateUtils.DAY_IN_MILLIS);
+            }
+            values.put(CalendarContract.Events.TITLE, title);
+        }
+        if (fingerprint != existingEvent.fingerprint || newUid != null) {
+            values.put(CalendarContract.Events.SYNC_DATA1, Long.toString(fingerprint));
+        }
+        if (!reminders.equals(existingEvent.reminders) || newUid != null) {
+            values.put(CalendarContract.Events.HAS_ALARM, reminders.isEmpty() ? 0 : 1);
+            values.put(CalendarContract.Events.SYNC_DATA2, reminders);
+        }
+        if (!contactTag.equals(existingEvent.contactTag)) {
+            values.put(CalendarContract.Events.SYNC_DATA3, contactTag);
+        }
+        if (eventType != existingEvent.eventType) {
+            values.put(CalendarContract.Events.SYNC_DATA4, Integer.toString(eventType));
+        }
+        if (newUid != null) {
+            values.put(CalendarContract.Events.UID_2445, newUid);
+        }
+        return values.size() > 0 ? values : null;
+    }
+}
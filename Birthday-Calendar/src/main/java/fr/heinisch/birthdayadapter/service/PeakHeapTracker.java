@@ -0,0 +1,42 @@
+package fr.heinisch.birthdayadapter.service;
+
+/**
+ * Tracks the highest heap usage observed during a sync. Sampling is cheap, but should still only
+ * be done every few hundred rows.
+ */
+class PeakHeapTracker {
+
+    private final Runtime mRuntime = Runtime.getRuntime();
+    private final long mStartHeap;
+    private long mPeakHeap;
+
+    PeakHeapTracker() {
+        mStartHeap = usedHeap();
+        mPeakHeap = mStartHeap;
+    }
+
+    void sample() {
+        long used = usedHeap();
+        if (used > mPeakHeap) {
+            mPeakHeap = used;
+        }
+    }
+
+    /**
+     * Returns the highest heap usage in bytes.
+     */
+    long getPeakHeap() {
+        return mPeakHeap;
+    }
+
+    /**
+     * Returns how far the heap usage rose above the usage at the start of the sync, in bytes.
+     */
+    long getPeakHeapGrowth() {
+        return Math.max(0, mPeakHeap - mStartHeap);
+    }
+
+    private long usedHeap() {
+        return mRuntime.totalMemory() - mRuntime.freeMemory();
+    }
+}
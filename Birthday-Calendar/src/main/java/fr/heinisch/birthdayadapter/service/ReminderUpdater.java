@@ -0,0 +1,231 @@
+package fr.heinisch.birthdayadapter.service;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.OperationCanceledException;
+import android.provider.CalendarContract;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import fr.heinisch.birthdayadapter.core.EventContent;
+import fr.heinisch.birthdayadapter.provider.EventsMirrorHelper;
+import fr.heinisch.birthdayadapter.util.CalendarHelper;
+import fr.heinisch.birthdayadapter.util.Constants;
+import fr.heinisch.birthdayadapter.util.Log;
+import fr.heinisch.birthdayadapter.util.SyncWatermark;
+
+/**
+ * Applies changed reminder settings to the events of the birthday calendar without planning the
+ * events again. The current reminders are read from the calendar and only the ones differing from
+ * the settings are deleted or inserted. Events are only written to keep their stored reminders up
+ * to date, and their alarm flag only if they gain their first or lose their last reminder.
+ */
+class ReminderUpdater {
+
+    private static final class Reminder {
+        final long id;
+        final int minutes;
+        final boolean alert;
+
+        Reminder(long id, int minutes, boolean alert) {
+            this.id = id;
+            this.minutes = minutes;
+            this.alert = alert;
+        }
+    }
+
+    private static final class ReminderChange {
+        final long eventId;
+        final String reminders;
+
+        ReminderChange(long eventId, String reminders) {
+            this.eventId = eventId;
+            this.reminders = reminders;
+        }
+    }
+
+    /**
+     * Records the applied changes in the mirror, one transaction per batch.
+     */
+    private static final class MirrorListener implements CalendarBatchWriter.Listener {
+        private final Context mContext;
+        private final HashMap<Long, String> mUpdates = new HashMap<>();
+
+        MirrorListener(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public void onApplied(Object tag, ContentProviderResult result) {
+            ReminderChange change = (ReminderChange) tag;
+            mUpdates.put(change.eventId, change.reminders);
+        }
+
+        @Override
+        public void onDropped(Object tag) {
+            // The units are applied as a whole, the event keeps its old reminders
+        }
+
+        @Override
+        public void onBatchFinished() {
+            EventsMirrorHelper.updateReminders(mContext, mUpdates);
+            mUpdates.clear();
+        }
+    }
+
+    private static final int[] NO_REMINDERS = new int[0];
+
+    private final Context mContext;
+    private final ContentResolver mContentResolver;
+    private final long mCalendarId;
+
+    ReminderUpdater(Context context, ContentResolver contentResolver, long calendarId) {
+        mContext = context;
+        mContentResolver = contentResolver;
+        mCalendarId = calendarId;
+    }
+
+    /**
+     * @param reminderMinutes    reminders of events of the given types
+     * @param reminderEventTypes contact event types which get reminders
+     * @return false if events of older versions lack their type or the events could not be
+     * read, so the reminders can only be updated by a sync
+     */
+    boolean run(int[] reminderMinutes, Set<Integer> reminderEventTypes) throws OperationCanceledException {
+        Uri eventsUri = CalendarHelper.getBirthdayAdapterUri(mContext, CalendarContract.Events.CONTENT_URI);
+        Uri remindersUri = CalendarHelper.getBirthdayAdapterUri(mContext, CalendarContract.Reminders.CONTENT_URI);
+
+        ArrayList<Long> eventIds = new ArrayList<>();
+        HashMap<Long, Integer> typesById = new HashMap<>();
+        HashMap<Long, String> remindersById = new HashMap<>();
+        HashMap<Long, Boolean> alarmsById = new HashMap<>();
+        try (Cursor cursor = mContentResolver.query(eventsUri,
+                new String[]{CalendarContract.Events._ID, CalendarContract.Events.SYNC_DATA4,
+                        CalendarContract.Events.SYNC_DATA2, CalendarContract.Events.HAS_ALARM},
+                CalendarContract.Events.CALENDAR_ID + " = ?",
+                new String[]{String.valueOf(mCalendarId)},
+                null)) {
+            if (cursor == null) {
+                Log.e(Constants.TAG, "Unable to get existing events! Cursor is null!");
+                return false;
+            }
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                int type = BirthdayWorker.parseEventType(cursor.getString(1));
+                if (type == EventsMirrorHelper.UNKNOWN_TYPE) {
+                    Log.d(Constants.TAG, "Event " + id + " has no stored type.");
+                    return false;
+                }
+                eventIds.add(id);
+                typesById.put(id, type);
+                remindersById.put(id, cursor.getString(2));
+                alarmsById.put(id, cursor.getInt(3) != 0);
+            }
+        }
+
+        HashMap<Long, List<Reminder>> currentReminders = new HashMap<>();
+        int reminderRows = 0;
+        for (String eventIdClause : BirthdayWorker.buildInClauses(CalendarContract.Reminders.EVENT_ID, eventIds, false)) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new OperationCanceledException();
+            }
+            try (Cursor cursor = mContentResolver.query(remindersUri,
+                    new String[]{CalendarContract.Reminders._ID, CalendarContract.Reminders.EVENT_ID,
+                            CalendarContract.Reminders.MINUTES, CalendarContract.Reminders.METHOD},
+                    eventIdClause, null, null)) {
+                if (cursor == null) {
+                    Log.e(Constants.TAG, "Unable to get existing reminders! Cursor is null!");
+                    return false;
+                }
+                while (cursor.moveToNext()) {
+                    reminderRows++;
+                    currentReminders.computeIfAbsent(cursor.getLong(1), k -> new ArrayList<>()).add(new Reminder(
+                            cursor.getLong(0), cursor.getInt(2), cursor.getInt(3) == CalendarContract.Reminders.METHOD_ALERT));
+                }
+            }
+        }
+
+        String reminderSet = EventContent.formatReminders(reminderMinutes);
+        CalendarBatchWriter batchWriter = new CalendarBatchWriter(mContentResolver, remindersUri, new MirrorListener(mContext));
+        int changedEvents = 0;
+        int alarmToggles = 0;
+        int insertedReminders = 0;
+        int deletedReminders = 0;
+
+        for (long eventId : eventIds) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new OperationCanceledException();
+            }
+            boolean hasReminders = reminderMinutes.length > 0 && reminderEventTypes.contains(typesById.get(eventId));
+            int[] wanted = hasReminders ? reminderMinutes : NO_REMINDERS;
+            String wantedSet = hasReminders ? reminderSet : "";
+            List<Reminder> current = currentReminders.get(eventId);
+
+            // Keep reminders which are still wanted, each one matches a single wanted minute
+            ArrayList<ContentProviderOperation.Builder> operations = new ArrayList<>();
+            boolean[] kept = new boolean[current != null ? current.size() : 0];
+            for (int minutes : wanted) {
+                int match = -1;
+                for (int i = 0; i < kept.length && match < 0; i++) {
+                    Reminder reminder = current.get(i);
+                    if (!kept[i] && reminder.alert && reminder.minutes == minutes) {
+                        match = i;
+                    }
+                }
+                if (match >= 0) {
+                    kept[match] = true;
+                } else {
+                    operations.add(ContentProviderOperation.newInsert(remindersUri)
+                            .withValue(CalendarContract.Reminders.EVENT_ID, eventId)
+                            .withValue(CalendarContract.Reminders.MINUTES, minutes)
+                            .withValue(CalendarContract.Reminders.METHOD, CalendarContract.Reminders.METHOD_ALERT));
+                    insertedReminders++;
+                }
+            }
+            for (int i = 0; i < kept.length; i++) {
+                if (!kept[i]) {
+                    operations.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(remindersUri, current.get(i).id)));
+                    deletedReminders++;
+                }
+            }
+
+            boolean alarmChanged = alarmsById.get(eventId) != hasReminders;
+            if (alarmChanged || !wantedSet.equals(remindersById.get(eventId))) {
+                ContentProviderOperation.Builder update = ContentProviderOperation.newUpdate(
+                                ContentUris.withAppendedId(eventsUri, eventId))
+                        .withValue(CalendarContract.Events.SYNC_DATA2, wantedSet);
+                if (alarmChanged) {
+                    update.withValue(CalendarContract.Events.HAS_ALARM, hasReminders ? 1 : 0);
+                    alarmToggles++;
+                }
+                operations.add(0, update);
+            }
+
+            if (!operations.isEmpty()) {
+                changedEvents++;
+                batchWriter.add(operations, 2 * wantedSet.length() + 64 * operations.size(),
+                        new ReminderChange(eventId, wantedSet));
+            }
+        }
+        batchWriter.flush();
+
+        if (!batchWriter.isComplete()) {
+            // Let the next sync scan all contacts to write the reminders again
+            SyncWatermark.invalidate(mContext);
+        }
+
+        Log.i(Constants.TAG, "Reminder update: " + eventIds.size() + " events and " + reminderRows + " reminders read, "
+                + changedEvents + " events changed, " + insertedReminders + " reminders inserted, " + deletedReminders
+                + " deleted, " + alarmToggles + " alarm flags toggled, " + batchWriter.getOperationsWritten()
+                + " operations in " + batchWriter.getBatchCount() + " batches.");
+        return true;
+    }
+}
@@ -0,0 +1,174 @@
+package fr.heinisch.birthdayadapter.service;
+
+import android.content.Context;
+import android.os.OperationCanceledException;
+
+import androidx.work.ListenableWorker.Result;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import fr.heinisch.birthdayadapter.util.Constants;
+import fr.heinisch.birthdayadapter.util.Log;
+import fr.heinisch.birthdayadapter.util.SyncStatusManager;
+
+/**
+ * Runs the work of all {@link BirthdayWorker}s one after another on a thread of its own, so
+ * workers only hand over their work instead of waiting for each other.
+ * <p>
+ * At most one job runs and one is queued. Work submitted while a job is queued is merged into
+ * it, and a full resync interrupts a running job without one and does its work instead.
+ */
+final class SyncCoordinator {
+
+    /**
+     * A worker waiting for the result of a job.
+     */
+    private static final class Owner {
+        final UUID workId;
+        final Consumer<Result> callback;
+
+        Owner(UUID workId, Consumer<Result> callback) {
+            this.workId = workId;
+            this.callback = callback;
+        }
+    }
+
+    private static final class Job {
+        EnumSet<SyncScheduler.Request> requests;
+        final List<Owner> owners = new ArrayList<>();
+        // Set when a newer job took over the work and the owners of this one
+        boolean absorbed = false;
+
+        Job(EnumSet<SyncScheduler.Request> requests, Owner owner) {
+            this.requests = requests;
+            owners.add(owner);
+        }
+
+        void absorb(Job other) {
+            requests = SyncScheduler.merge(requests, other.requests);
+            owners.addAll(other.owners);
+            other.owners.clear();
+            other.absorbed = true;
+        }
+
+        void finish(Result result) {
+            for (Owner owner : owners) {
+                owner.callback.accept(result);
+            }
+        }
+    }
+
+    private static SyncCoordinator sInstance;
+
+    private final Context mContext;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private Job mRunning;
+    private Future<?> mRunningFuture;
+    private Job mQueued;
+
+    static synchronized SyncCoordinator getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncCoordinator(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SyncCoordinator(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Queues the work of a worker.
+     *
+     * @param callback receives the result once the work, or a job which absorbed it, has run
+     */
+    synchronized void submit(EnumSet<SyncScheduler.Request> requests, UUID workId, Consumer<Result> callback) {
+        Job job = new Job(requests, new Owner(workId, callback));
+
+        if (mRunning != null && !mRunning.absorbed && requests.contains(SyncScheduler.Request.FORCE_RESYNC)
+                && !mRunning.requests.contains(SyncScheduler.Request.FORCE_RESYNC)) {
+            // The resync rebuilds everything the running job would write, stop it early
+            Log.d(Constants.TAG, "Full resync supersedes running " + mRunning.requests);
+            job.absorb(mRunning);
+            mRunningFuture.cancel(true);
+        }
+        if (mQueued != null) {
+            Log.d(Constants.TAG, "Merging " + requests + " into queued " + mQueued.requests);
+            job.absorb(mQueued);
+        }
+        mQueued = job;
+        startNext();
+    }
+
+    /**
+     * Drops the work of a stopped worker. A job without workers waiting for it is not run, or
+     * interrupted if it is running.
+     */
+    synchronized void stop(UUID workId) {
+        if (mQueued != null && removeOwner(mQueued, workId) && mQueued.owners.isEmpty()) {
+            Log.d(Constants.TAG, "Dropping queued " + mQueued.requests + ", its worker was stopped");
+            mQueued = null;
+        }
+        if (mRunning != null && removeOwner(mRunning, workId) && mRunning.owners.isEmpty()) {
+            Log.d(Constants.TAG, "Interrupting " + mRunning.requests + ", its worker was stopped");
+            mRunningFuture.cancel(true);
+        }
+    }
+
+    private boolean removeOwner(Job job, UUID workId) {
+        for (Iterator<Owner> iterator = job.owners.iterator(); iterator.hasNext(); ) {
+            Owner owner = iterator.next();
+            if (owner.workId.equals(workId)) {
+                iterator.remove();
+                // The result of a stopped worker is ignored, this only releases it
+                owner.callback.accept(Result.failure());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void startNext() {
+        if (mRunning != null || mQueued == null) {
+            return;
+        }
+        Job job = mQueued;
+        mQueued = null;
+        mRunning = job;
+        mRunningFuture = mExecutor.submit(() -> run(job));
+    }
+
+    private void run(Job job) {
+        Result result;
+        SyncStatusManager.getInstance().setSyncing(true);
+        try {
+            BirthdayWorker.runActions(mContext, job.requests);
+            result = Result.success();
+        } catch (OperationCanceledException e) {
+            Log.d(Constants.TAG, "Sync " + job.requests + " was interrupted");
+            result = Result.failure();
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Worker failed", e);
+            result = Result.failure();
+        } finally {
+            SyncStatusManager.getInstance().setSyncing(false);
+        }
+
+        synchronized (this) {
+            mRunning = null;
+            mRunningFuture = null;
+            if (!job.absorbed) {
+                job.finish(result);
+            }
+            startNext();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package fr.heinisch.birthdayadapter.service;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import fr.heinisch.birthdayadapter.provider.SyncJournalHelper;
+import fr.heinisch.birthdayadapter.util.Constants;
+import fr.heinisch.birthdayadapter.util.Log;
+
+/**
+ * Journal entry of the job run by the {@link SyncCoordinator}. It stays open while the job runs
+ * and is only finished once the job has run to completion, so a job stopped by WorkManager, e.g.
+ * for its quota or the execution time limit, is resumed by the next job instead of starting over.
+ * <p>
+ * Batches are not planned ahead. The calendar and the events mirror, which is updated in the same
+ * transaction as the journal after each batch, record what has been written, so a resumed sync
+ * only writes what is still missing. A full resync continues to fill the shadow calendar it has
+ * started.
+ */
+final class SyncJournal {
+
+    // A sync failing this often is given up on, instead of being taken up by every following sync
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final Context mContext;
+    private final long mId;
+    private final EnumSet<SyncScheduler.Request> mRequests;
+    private boolean mRebuilding;
+
+    private SyncJournal(Context context, long id, EnumSet<SyncScheduler.Request> requests, boolean rebuilding) {
+        mContext = context;
+        mId = id;
+        mRequests = requests;
+        mRebuilding = rebuilding;
+    }
+
+    /**
+     * Opens the entry of a job. If an earlier job was interrupted, its entry is taken up again
+     * and its requests are added to those of the job.
+     */
+    static SyncJournal open(Context context, EnumSet<SyncScheduler.Request> requests) {
+        SyncJournalHelper.Entry unfinished = SyncJournalHelper.getUnfinished(context);
+        if (unfinished != null && unfinished.attempts >= MAX_ATTEMPTS) {
+            Log.w(Constants.TAG, "Giving up on sync [" + unfinished.requests + "] after "
+                    + unfinished.attempts + " attempts.");
+            SyncJournalHelper.setPhase(context, unfinished.id, SyncJournalHelper.PHASE_ABANDONED);
+            unfinished = null;
+        }
+        if (unfinished == null) {
+            return new SyncJournal(context, SyncJournalHelper.insert(context, format(requests)), requests, false);
+        }
+
+        EnumSet<SyncScheduler.Request> merged = SyncScheduler.merge(requests, parse(unfinished.requests));
+        Log.i(Constants.TAG, "Resuming sync [" + unfinished.requests + "] as " + merged + ", interrupted after "
+                + unfinished.batches + " batches with " + unfinished.operations + " writes, attempt "
+                + (unfinished.attempts + 1) + ".");
+        SyncJournalHelper.resume(context, unfinished.id, format(merged));
+        return new SyncJournal(context, unfinished.id, merged, unfinished.phase == SyncJournalHelper.PHASE_REBUILDING);
+    }
+
+    /**
+     * Returns the requests of the job, including those of a resumed job.
+     */
+    EnumSet<SyncScheduler.Request> getRequests() {
+        return mRequests;
+    }
+
+    /**
+     * Returns whether a full resync of this entry has already started to build the shadow calendar.
+     */
+    boolean isRebuilding() {
+        return mRebuilding;
+    }
+
+    void onRebuildStarted() {
+        mRebuilding = true;
+        SyncJournalHelper.setPhase(mContext, mId, SyncJournalHelper.PHASE_REBUILDING);
+    }
+
+    /**
+     * Records a batch committed to the calendar together with the changes of the mirror caused by it.
+     */
+    void commitBatch(int operations, Runnable mirrorChanges) {
+        SyncJournalHelper.commitBatch(mContext, mId, operations, mirrorChanges);
+    }
+
+    /**
+     * Closes the entry after the job has run to completion.
+     */
+    void finish() {
+        try {
+            SyncJournalHelper.setPhase(mContext, mId, SyncJournalHelper.PHASE_FINISHED);
+        } catch (SQLException e) {
+            // The next job resumes this one, which only repeats reading
+            Log.e(Constants.TAG, "Unable to finish sync journal entry.", e);
+        }
+    }
+
+    private static String format(EnumSet<SyncScheduler.Request> requests) {
+        List<String> actions = new ArrayList<>();
+        for (SyncScheduler.Request request : requests) {
+            actions.add(request.action);
+        }
+        return TextUtils.join(",", actions);
+    }
+
+    private static EnumSet<SyncScheduler.Request> parse(String requests) {
+        EnumSet<SyncScheduler.Request> parsed = EnumSet.noneOf(SyncScheduler.Request.class);
+        for (String action : TextUtils.split(requests, ",")) {
+            SyncScheduler.Request request = SyncScheduler.Request.fromAction(action);
+            if (request != null) {
+                parsed.add(request);
+            }
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,115 @@
+package fr.heinisch.birthdayadapter.service;
+
+import android.content.ContentValues;
+import android.os.SystemClock;
+
+import fr.heinisch.birthdayadapter.provider.BirthdayAdapterContract.SyncHistory;
+
+/**
+ * Collects the time spent in each phase of a sync together with its read and write volume, so
+ * regressions can be attributed to a phase instead of the sync as a whole.
+ */
+final class SyncMetrics {
+
+    static final int PHASE_GROUP_LOAD = 0;
+    static final int PHASE_CONTACT_SCAN = 1;
+    static final int PHASE_CALENDAR_LOAD = 2;
+    static final int PHASE_PLANNING = 3;
+    static final int PHASE_BATCH_APPLY = 4;
+    static final int PHASE_DELETE = 5;
+    private static final int PHASE_COUNT = 6;
+
+    private static final String[] PHASE_COLUMNS = {
+            SyncHistory.GROUP_LOAD_MS,
+            SyncHistory.CONTACT_SCAN_MS,
+            SyncHistory.CALENDAR_LOAD_MS,
+            SyncHistory.PLANNING_MS,
+            SyncHistory.BATCH_APPLY_MS,
+            SyncHistory.DELETE_MS
+    };
+
+    private static final String[] PHASE_NAMES = {
+            "group load", "contact scan", "calendar load", "planning", "batch apply", "delete"
+    };
+
+    private final long mStartedAt = System.currentTimeMillis();
+    private final long mStartNanos = SystemClock.elapsedRealtimeNanos();
+    private final long[] mPhaseNanos = new long[PHASE_COUNT];
+    private boolean mFullScan;
+    private long mRowsRead;
+    private long mRowsKept;
+
+    /**
+     * Returns a timestamp to be passed to {@link #end}.
+     */
+    static long begin() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Adds the time since the timestamp returned by {@link #begin} to the phase.
+     */
+    void end(int phase, long beginNanos) {
+        mPhaseNanos[phase] += SystemClock.elapsedRealtimeNanos() - beginNanos;
+    }
+
+    /**
+     * Adds time measured elsewhere to the phase. Negative values remove time which was counted
+     * twice, e.g. batches applied while planning.
+     */
+    void add(int phase, long nanos) {
+        mPhaseNanos[phase] += nanos;
+    }
+
+    void setFullScan(boolean fullScan) {
+        mFullScan = fullScan;
+    }
+
+    void addRowsRead(long rows) {
+        mRowsRead += rows;
+    }
+
+    /**
+     * Adds contact rows which passed the blacklist, a subset of the rows read.
+     */
+    void addRowsKept(long rows) {
+        mRowsKept += rows;
+    }
+
+    /**
+     * Returns the values of a {@link SyncHistory} row.
+     */
+    ContentValues toContentValues(boolean complete, CalendarBatchWriter batchWriter, PeakHeapTracker heapTracker) {
+        ContentValues values = new ContentValues();
+        values.put(SyncHistory.STARTED_AT, mStartedAt);
+        values.put(SyncHistory.FULL_SCAN, mFullScan ? 1 : 0);
+        values.put(SyncHistory.COMPLETE, complete ? 1 : 0);
+        values.put(SyncHistory.DURATION_MS, toMillis(SystemClock.elapsedRealtimeNanos() - mStartNanos));
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            values.put(PHASE_COLUMNS[phase], toMillis(mPhaseNanos[phase]));
+        }
+        values.put(SyncHistory.ROWS_READ, mRowsRead);
+        values.put(SyncHistory.ROWS_KEPT, mRowsKept);
+        values.put(SyncHistory.OPERATIONS_WRITTEN, batchWriter != null ? batchWriter.getOperationsWritten() : 0);
+        values.put(SyncHistory.BATCHES, batchWriter != null ? batchWriter.getBatchCount() : 0);
+        values.put(SyncHistory.PEAK_HEAP, heapTracker != null ? heapTracker.getPeakHeap() : 0);
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            if (phase > 0) {
+                builder.append(", ");
+            }
+            builder.append(PHASE_NAMES[phase]).append(' ').append(toMillis(mPhaseNanos[phase])).append(" ms");
+        }
+        return builder.append(", ").append(mRowsRead).append(" rows read, ")
+                .append(mRowsKept).append(" contact rows kept").toString();
+    }
+
+    private static long toMillis(long nanos) {
+        return Math.max(0, nanos / 1000000);
+    }
+}
@@ -0,0 +1,220 @@
+package fr.heinisch.birthdayadapter.service;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.OutOfQuotaPolicy;
+import androidx.work.WorkManager;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.UUID;
+
+import fr.heinisch.birthdayadapter.R;
+import fr.heinisch.birthdayadapter.util.Constants;
+import fr.heinisch.birthdayadapter.util.Log;
+
+/**
+ * Collects the sync requests of setting and blacklist changes and runs them as few workers as
+ * possible. Requests within the debounce window are merged, and while a sync runs new requests
+ * wait for it, so at most one sync is pending and one is running.
+ * <p>
+ * Requests arriving while a worker is enqueued but not started are folded into that worker, which
+ * takes them on when it starts. Enqueued workers are never replaced, as a worker may just have
+ * started and handed its work to the {@link SyncCoordinator}, which drops the work of a stopped
+ * worker. Only the coordinator lets a full resync interrupt a running job and do its work.
+ * <p>
+ * Pending requests, and requests folded into an enqueued worker, are only kept in memory.
+ */
+public class SyncScheduler {
+
+    /**
+     * Kinds of work, ordered by strength. A full resync covers all others, the others are run
+     * one after another by the same worker.
+     */
+    public enum Request {
+        CHANGE_COLOR(BirthdayWorker.ACTION_CHANGE_COLOR),
+        UPDATE_REMINDERS(BirthdayWorker.ACTION_UPDATE_REMINDERS),
+        SYNC(BirthdayWorker.ACTION_SYNC),
+        FORCE_RESYNC(BirthdayWorker.ACTION_FORCE_RESYNC);
+
+        final String action;
+
+        Request(String action) {
+            this.action = action;
+        }
+
+        /**
+         * @return the request of the worker action, or null if it is unknown
+         */
+        static Request fromAction(String action) {
+            for (Request request : values()) {
+                if (request.action.equals(action)) {
+                    return request;
+                }
+            }
+            return null;
+        }
+    }
+
+    static final String WORK_NAME = "sync";
+
+    // A steady stream of requests is synced after this many windows at the latest
+    private static final int MAX_DEBOUNCE_WINDOWS = 5;
+
+    private static SyncScheduler sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlushRunnable = this::flush;
+    private final long mDebounceMillis;
+    private boolean mFlushScheduled = false;
+
+    // Requests not yet handed to a worker, and since when the oldest of them waits
+    private final EnumSet<Request> mPending = EnumSet.noneOf(Request.class);
+    private int mPendingCount = 0;
+    private long mPendingSince;
+    // Enqueued worker which has not started yet, with the requests it runs once it starts
+    private UUID mEnqueuedId;
+    private EnumSet<Request> mEnqueued;
+    private int mRunningCount = 0;
+
+    private int mRequestCount = 0;
+    private int mCoalescedCount = 0;
+
+    public static synchronized SyncScheduler getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncScheduler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SyncScheduler(Context context) {
+        mContext = context;
+        mDebounceMillis = context.getResources().getInteger(R.integer.sync_debounce_millis);
+    }
+
+    /**
+     * Requests work, which is started once no further requests arrived for the debounce window.
+     */
+    public synchronized void request(Request request) {
+        long now = SystemClock.elapsedRealtime();
+        if (mPendingCount == 0) {
+            mPendingSince = now;
+        }
+        mPending.add(request);
+        mPendingCount++;
+        mRequestCount++;
+
+        mHandler.removeCallbacks(mFlushRunnable);
+        long delay = Math.min(mDebounceMillis, mPendingSince + MAX_DEBOUNCE_WINDOWS * mDebounceMillis - now);
+        mHandler.postDelayed(mFlushRunnable, Math.max(0, delay));
+        mFlushScheduled = true;
+    }
+
+    /**
+     * Returns the number of requests which were merged into the work of another request.
+     */
+    public synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * Returns the number of requests received.
+     */
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * Returns the work of both sets of requests. A full resync covers all other requests.
+     */
+    static EnumSet<Request> merge(EnumSet<Request> requests, EnumSet<Request> other) {
+        if (requests.contains(Request.FORCE_RESYNC) || other.contains(Request.FORCE_RESYNC)) {
+            return EnumSet.of(Request.FORCE_RESYNC);
+        }
+        EnumSet<Request> merged = EnumSet.copyOf(requests);
+        merged.addAll(other);
+        return merged;
+    }
+
+    /**
+     * Called by every {@link BirthdayWorker} when it starts.
+     *
+     * @param requests the requests the worker was enqueued with
+     * @return the requests to run, including those folded into the worker since it was enqueued
+     */
+    synchronized EnumSet<Request> onSyncStarted(UUID workId, EnumSet<Request> requests) {
+        mRunningCount++;
+        if (workId.equals(mEnqueuedId)) {
+            requests = merge(requests, mEnqueued);
+            mEnqueuedId = null;
+            mEnqueued = null;
+        }
+        return requests;
+    }
+
+    /**
+     * Called by every {@link BirthdayWorker} when it has finished, also if it failed or was
+     * stopped. Requests which waited for it are enqueued now.
+     */
+    synchronized void onSyncFinished() {
+        mRunningCount = Math.max(0, mRunningCount - 1);
+        if (mRunningCount == 0 && !mPending.isEmpty() && !mFlushScheduled) {
+            flush();
+        }
+    }
+
+    private synchronized void flush() {
+        mFlushScheduled = false;
+        if (mPending.isEmpty() || mRunningCount > 0) {
+            // Waits for onSyncFinished
+            return;
+        }
+
+        EnumSet<Request> requests = EnumSet.copyOf(mPending);
+        if (mEnqueuedId != null) {
+            // The enqueued worker has not started, it does the work of all requests
+            mEnqueued = merge(mEnqueued, requests);
+            mCoalescedCount += mPendingCount;
+            Log.d(Constants.TAG, "Folding " + requests + " into enqueued sync work " + mEnqueued
+                    + " (" + mCoalescedCount + " of " + mRequestCount + " requests coalesced in total)");
+            mPending.clear();
+            mPendingCount = 0;
+            return;
+        }
+        int coalesced = mPendingCount - 1;
+        if (requests.contains(Request.FORCE_RESYNC)) {
+            // A full resync rebuilds the calendar with the current color, reminders and events
+            requests = EnumSet.of(Request.FORCE_RESYNC);
+        }
+
+        List<String> actions = new ArrayList<>();
+        for (Request request : requests) {
+            actions.add(request.action);
+        }
+        Data inputData = new Data.Builder()
+                .putStringArray(BirthdayWorker.ACTIONS, actions.toArray(new String[0]))
+                .build();
+        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(BirthdayWorker.class)
+                .setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST)
+                .setInputData(inputData)
+                .build();
+
+        mCoalescedCount += coalesced;
+        Log.d(Constants.TAG, "Enqueuing sync work " + actions + ", coalesced " + coalesced
+                + " requests (" + mCoalescedCount + " of " + mRequestCount + " in total)");
+        WorkManager.getInstance(mContext).enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.APPEND_OR_REPLACE, workRequest);
+
+        mEnqueuedId = workRequest.getId();
+        mEnqueued = requests;
+        mPending.clear();
+        mPendingCount = 0;
+    }
+}
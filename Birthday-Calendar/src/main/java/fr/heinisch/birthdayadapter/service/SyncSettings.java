@@ -0,0 +1,140 @@
+package fr.heinisch.birthdayadapter.service;
+
+import static fr.heinisch.birthdayadapter.util.VersionHelper.isFullVersionUnlocked;
+
+import android.content.Context;
+import android.provider.ContactsContract;
+import android.text.TextUtils;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import fr.heinisch.birthdayadapter.core.TitleTemplate;
+import fr.heinisch.birthdayadapter.util.Constants;
+import fr.heinisch.birthdayadapter.util.Log;
+import fr.heinisch.birthdayadapter.util.PreferencesHelper;
+
+/**
+ * Immutable snapshot of all settings used while planning the events of a sync. Reading them once
+ * keeps SharedPreferences and resource lookups out of the per-contact loop and guarantees that a
+ * sync uses consistent settings even if they change while it is running.
+ */
+final class SyncSettings {
+
+    private static final int[] TEMPLATE_EVENT_TYPES = {
+            ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM,
+            ContactsContract.CommonDataKinds.Event.TYPE_ANNIVERSARY,
+            ContactsContract.CommonDataKinds.Event.TYPE_BIRTHDAY,
+            ContactsContract.CommonDataKinds.Event.TYPE_OTHER
+    };
+
+    private static final String JUBILEE_PREFIX = "🎉 ";
+
+    final int[] reminderMinutes;
+    final Set<Integer> reminderEventTypes;
+    final boolean preferDDSlashMM;
+    final boolean useLastNameFirst;
+    final boolean recurringEvents;
+    // Years before and after the current year which get events
+    final int windowPastYears;
+    final int windowFutureYears;
+
+    private final boolean mJubileeEnabled;
+    private final Set<Integer> mJubileeYears;
+
+    // Indexed like TEMPLATE_EVENT_TYPES
+    private final TitleTemplate[] mTemplatesWithAge = new TitleTemplate[TEMPLATE_EVENT_TYPES.length];
+    private final TitleTemplate[] mTemplatesWithoutAge = new TitleTemplate[TEMPLATE_EVENT_TYPES.length];
+
+    private SyncSettings(Context context) {
+        reminderMinutes = PreferencesHelper.getAllReminderMinutes(context);
+
+        Set<Integer> eventTypes = new HashSet<>();
+        for (String type : PreferencesHelper.getReminderEventTypes(context)) {
+            try {
+                eventTypes.add(Integer.parseInt(type));
+            } catch (NumberFormatException e) {
+                Log.e(Constants.TAG, "Invalid reminder event type: " + type);
+            }
+        }
+        reminderEventTypes = Collections.unmodifiableSet(eventTypes);
+
+        preferDDSlashMM = PreferencesHelper.getPreferDDSlashMM(context);
+        useLastNameFirst = PreferencesHelper.getUseLastNameFirst(context);
+        recurringEvents = PreferencesHelper.getRecurringEvents(context);
+        windowPastYears = PreferencesHelper.getWindowPastYears(context);
+        windowFutureYears = PreferencesHelper.getWindowFutureYears(context);
+
+        mJubileeEnabled = isFullVersionUnlocked(context);
+        mJubileeYears = Collections.unmodifiableSet(parseJubileeYears(PreferencesHelper.getJubileeYears(context)));
+
+        for (int i = 0; i < TEMPLATE_EVENT_TYPES.length; i++) {
+            mTemplatesWithAge[i] = TitleTemplate.compile(PreferencesHelper.getLabel(context, TEMPLATE_EVENT_TYPES[i], true));
+            mTemplatesWithoutAge[i] = TitleTemplate.compile(PreferencesHelper.getLabel(context, TEMPLATE_EVENT_TYPES[i], false));
+        }
+    }
+
+    static SyncSettings load(Context context) {
+        return new SyncSettings(context);
+    }
+
+    /**
+     * Returns the compiled title template for the event type.
+     *
+     * @param hasCustomLabel custom events without label use the template of other events
+     */
+    TitleTemplate getTitleTemplate(int eventType, boolean hasCustomLabel, boolean includeAge) {
+        int effectiveEventType = eventType;
+        if (eventType == ContactsContract.CommonDataKinds.Event.TYPE_CUSTOM && !hasCustomLabel) {
+            effectiveEventType = ContactsContract.CommonDataKinds.Event.TYPE_OTHER;
+        }
+
+        // Unknown types use the template of other events, like PreferencesHelper.getLabel
+        int index = TEMPLATE_EVENT_TYPES.length - 1;
+        for (int i = 0; i < TEMPLATE_EVENT_TYPES.length; i++) {
+            if (TEMPLATE_EVENT_TYPES[i] == effectiveEventType) {
+                index = i;
+                break;
+            }
+        }
+        return includeAge ? mTemplatesWithAge[index] : mTemplatesWithoutAge[index];
+    }
+
+    /**
+     * Returns true if the title of the event may differ between the years, because it contains
+     * the age or a jubilee prefix.
+     *
+     * @param hasYear whether the year of the event is known, otherwise the age is never shown
+     */
+    boolean titleVariesByYear(int eventType, boolean hasCustomLabel, boolean hasYear) {
+        if (!hasYear) {
+            return false;
+        }
+        return getTitleTemplate(eventType, hasCustomLabel, true).usesAge()
+                || (mJubileeEnabled && !mJubileeYears.isEmpty());
+    }
+
+    /**
+     * Returns the prefix marking a jubilee or null if the age is no jubilee.
+     */
+    String getJubileePrefix(int age) {
+        return mJubileeEnabled && mJubileeYears.contains(age) ? JUBILEE_PREFIX : null;
+    }
+
+    private static Set<Integer> parseJubileeYears(String jubileeYearsStr) {
+        Set<Integer> jubileeYears = new HashSet<>();
+        if (!TextUtils.isEmpty(jubileeYearsStr)) {
+            try {
+                for (String year : jubileeYearsStr.split(",")) {
+                    jubileeYears.add(Integer.parseInt(year.trim()));
+                }
+            } catch (NumberFormatException e) {
+                Log.e(Constants.TAG, "Invalid jubilee years format in preferences. No jubilee icons will be shown.", e);
+                // In case of error, clear the set to be safe
+                jubileeYears.clear();
+            }
+        }
+        return jubileeYears;
+    }
+}
@@ -27,9 +27,13 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -50,30 +54,59 @@ import fr.heinisch.birthdayadapter.util.AccountHelper;
 import fr.heinisch.birthdayadapter.util.AccountListAdapter;
 import fr.heinisch.birthdayadapter.util.AccountListEntry;
 import fr.heinisch.birthdayadapter.util.AccountListLoader;
+import fr.heinisch.birthdayadapter.util.AccountListSnapshot;
 import fr.heinisch.birthdayadapter.util.Constants;
 import fr.heinisch.birthdayadapter.util.Log;
+import fr.heinisch.birthdayadapter.util.SyncWatermark;
 
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class AccountListFragment extends Fragment implements
-        LoaderManager.LoaderCallbacks<List<AccountListEntry>>, AccountListAdapter.OnBlacklistChangedListener, SharedPreferences.OnSharedPreferenceChangeListener {
+        LoaderManager.LoaderCallbacks<List<AccountListEntry>>, AccountListAdapter.OnBlacklistChangedListener, SharedPreferences.OnSharedPreferenceChangeListener,
+        AccountListSnapshot.OnStaleListener {
+
+    // Contact sync adapters often write many changes in a row, reload once they are done
+    private static final long RELOAD_DELAY_MILLIS = 1000;
+    private static final String STATE_LOAD_CHANGE_COUNT = "load_change_count";
 
     private AccountListAdapter mAdapter;
     private ListView mListView;
     private TextView mEmptyView;
     private ActivityResultLauncher<String> requestPermissionLauncher;
 
+    private final Handler mReloadHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mReloadRunnable = this::reload;
+    private final ExecutorService mExecutorService = Executors.newSingleThreadExecutor();
+    // Whether the list shows accounts, either from the snapshot or loaded
+    private boolean mHasData = false;
+    // The snapshot is read in the background, until then onResume leaves reloading to it
+    private boolean mSnapshotPending = false;
+    // Whether the loader delivered a list to the current view, which the snapshot must not replace
+    private boolean mLoaded = false;
+    // Counts the views, a snapshot read for an older view is dropped
+    private int mViewGeneration = 0;
+    // Change count of the contacts when the running load was started
+    private int mLoadChangeCount;
+    private long mCreateViewTime;
+    private boolean mFirstFrameLogged;
+
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (savedInstanceState != null) {
+            // The loader outlives the fragment, its result belongs to the count of the previous instance
+            mLoadChangeCount = savedInstanceState.getInt(STATE_LOAD_CHANGE_COUNT);
+        }
         requestPermissionLauncher =
                 registerForActivityResult(new ActivityResultContracts.RequestPermission(), isGranted -> {
                     if (isGranted) {
                         // Permission is granted. Continue the action or workflow in your app.
                         if (isAdded()) {
-                            LoaderManager.getInstance(this).restartLoader(0, null, this);
+                            reload();
                         }
                     } else {
                         // Explain to the user that the feature is unavailable because the
@@ -85,9 +118,17 @@ public class AccountListFragment extends Fragment implements
                 });
     }
 
+    @Override
+    public void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_LOAD_CHANGE_COUNT, mLoadChangeCount);
+    }
+
     @Nullable
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
+        mCreateViewTime = SystemClock.elapsedRealtime();
+        mFirstFrameLogged = false;
         View view = inflater.inflate(R.layout.fragment_account_list, container, false);
         mListView = view.findViewById(R.id.account_list);
         mEmptyView = view.findViewById(android.R.id.empty);
@@ -106,6 +147,36 @@ public class AccountListFragment extends Fragment implements
         mListView.setAdapter(mAdapter);
         mListView.setEmptyView(mEmptyView); // Link the empty view to the list
         mEmptyView.setText(R.string.account_list_loading);
+
+        // Show the last computed list as soon as it is read, it is revalidated if contacts changed
+        mHasData = false;
+        mLoaded = false;
+        mSnapshotPending = false;
+        int generation = ++mViewGeneration;
+        if (ContextCompat.checkSelfPermission(activity, Manifest.permission.READ_CONTACTS) == PackageManager.PERMISSION_GRANTED) {
+            mSnapshotPending = true;
+            Context appContext = activity.getApplicationContext();
+            boolean groupFilteringEnabled = isGroupFilteringEnabled(activity);
+            // Reading the snapshot loads the preferences and the resources of the authenticators
+            mExecutorService.execute(() -> {
+                List<AccountListEntry> snapshot = AccountListSnapshot.load(appContext, groupFilteringEnabled);
+                mReloadHandler.post(() -> onSnapshotLoaded(generation, snapshot));
+            });
+        }
+    }
+
+    private void onSnapshotLoaded(int generation, List<AccountListEntry> snapshot) {
+        if (generation != mViewGeneration || !mSnapshotPending || getView() == null) {
+            return;
+        }
+        mSnapshotPending = false;
+        if (snapshot != null && !mLoaded) {
+            Log.d(Constants.TAG, "Showing account list snapshot with " + snapshot.size() + " accounts");
+            showData(snapshot, "snapshot");
+        }
+        if (isResumed()) {
+            reloadIfStale();
+        }
     }
 
     @Override
@@ -121,8 +192,13 @@ public class AccountListFragment extends Fragment implements
         // Always update the adapter's state when the fragment resumes
         updateGroupFilteringState();
 
+        AccountListSnapshot.watch(context);
+        AccountListSnapshot.setOnStaleListener(this);
+
         if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CONTACTS) == PackageManager.PERMISSION_GRANTED) {
-            LoaderManager.getInstance(this).restartLoader(0, null, this);
+            if (!mSnapshotPending) {
+                reloadIfStale();
+            }
         } else {
             // Request permission if not granted
             requestPermissionLauncher.launch(Manifest.permission.READ_CONTACTS);
@@ -137,6 +213,28 @@ public class AccountListFragment extends Fragment implements
         if (context != null) {
             PreferenceManager.getDefaultSharedPreferences(context).unregisterOnSharedPreferenceChangeListener(this);
         }
+        AccountListSnapshot.setOnStaleListener(null);
+        mReloadHandler.removeCallbacks(mReloadRunnable);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mExecutorService.shutdown();
+    }
+
+    private void reloadIfStale() {
+        if (!mHasData || AccountListSnapshot.isStale()) {
+            reload();
+        } else {
+            Log.d(Constants.TAG, "Contacts unchanged, keeping account list");
+        }
+    }
+
+    @Override
+    public void onSnapshotStale() {
+        mReloadHandler.removeCallbacks(mReloadRunnable);
+        mReloadHandler.postDelayed(mReloadRunnable, RELOAD_DELAY_MILLIS);
     }
 
     @Override
@@ -149,7 +247,7 @@ public class AccountListFragment extends Fragment implements
                 activity.runOnUiThread(() -> {
                     // Make sure fragment is still attached
                     if (isAdded()) {
-                        LoaderManager.getInstance(this).restartLoader(0, null, this);
+                        reload();
                     }
                 });
             }
@@ -159,38 +257,56 @@ public class AccountListFragment extends Fragment implements
     @Override
     public void onBlacklistChanged() {
         saveBlacklist();
-
-        Activity activity = getActivity();
-        if (activity == null) return;
-
-        Log.d(Constants.TAG, "Blacklist has changed, triggering manual sync.");
-        AccountHelper accountHelper = new AccountHelper(activity);
-        if (accountHelper.isAccountActivated()) {
-            accountHelper.differentialSync();
-        }
     }
 
     private void updateGroupFilteringState() {
         Context context = getContext();
         if (mAdapter != null && context != null && isAdded()) {
-            // Use the default shared preferences file to be consistent with the PreferenceFragments.
-            SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-            boolean groupFilteringEnabled = sharedPreferences.getBoolean(
-                    getString(R.string.pref_group_filtering_key),
-                    getResources().getBoolean(R.bool.pref_group_filtering_def)
-            );
-            mAdapter.setGroupFilteringEnabled(groupFilteringEnabled);
+            mAdapter.setGroupFilteringEnabled(isGroupFilteringEnabled(context));
         }
     }
 
+    private boolean isGroupFilteringEnabled(Context context) {
+        // Use the default shared preferences file to be consistent with the PreferenceFragments.
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return sharedPreferences.getBoolean(
+                getString(R.string.pref_group_filtering_key),
+                getResources().getBoolean(R.bool.pref_group_filtering_def)
+        );
+    }
+
+    /**
+     * Loads the account list from the contacts, the current list stays visible meanwhile.
+     */
+    private void reload() {
+        mReloadHandler.removeCallbacks(mReloadRunnable);
+        mLoadChangeCount = AccountListSnapshot.getChangeCount();
+        LoaderManager.getInstance(this).restartLoader(0, null, this);
+    }
+
     private void saveBlacklist() {
         Activity activity = getActivity();
         if (mAdapter == null || activity == null) {
             return;
         }
         HashMap<Account, HashSet<String>> newBlacklist = mAdapter.getAccountBlacklist();
+        if (newBlacklist == null) {
+            return;
+        }
+        AccountListSnapshot.save(activity, mAdapter.getData(), isGroupFilteringEnabled(activity));
+
         Log.d(Constants.TAG, "Blacklist change detected, saving new blacklist");
-        ProviderHelper.setAccountBlacklist(activity, newBlacklist);
+        final Context appContext = activity.getApplicationContext();
+        ProviderHelper.setAccountBlacklistAsync(activity, newBlacklist, () -> {
+            // Unchanged contacts may be affected by the new blacklist, so all of them have to be scanned again
+            SyncWatermark.invalidate(appContext);
+
+            Log.d(Constants.TAG, "Blacklist has changed, triggering manual sync.");
+            AccountHelper accountHelper = new AccountHelper(appContext);
+            if (accountHelper.isAccountActivated()) {
+                accountHelper.differentialSync();
+            }
+        });
     }
 
     @NonNull
@@ -202,13 +318,7 @@ public class AccountListFragment extends Fragment implements
             // Return an empty loader if the activity or context is not available
             return new AccountListLoader(context, false);
         }
-        // Use the default shared preferences file to be consistent with the PreferenceFragments.
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(activity);
-        boolean groupFilteringEnabled = sharedPreferences.getBoolean(
-                getString(R.string.pref_group_filtering_key),
-                getResources().getBoolean(R.bool.pref_group_filtering_def)
-        );
-        return new AccountListLoader(activity, groupFilteringEnabled);
+        return new AccountListLoader(activity, isGroupFilteringEnabled(activity));
     }
 
     @Override
@@ -216,7 +326,20 @@ public class AccountListFragment extends Fragment implements
         if (!isAdded()) {
             return; // Fragment is not attached, do not update UI
         }
+        Context context = getContext();
+        if (data != null && context != null
+                && ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CONTACTS) == PackageManager.PERMISSION_GRANTED) {
+            AccountListSnapshot.save(context, data, ((AccountListLoader) loader).isGroupFilteringEnabled());
+            AccountListSnapshot.setValidated(mLoadChangeCount);
+        }
+        mLoaded = true;
+        showData(data, "loader");
+    }
+
+    private void showData(List<AccountListEntry> data, String source) {
         mAdapter.setData(data);
+        mHasData = data != null && !data.isEmpty();
+        logFirstFrame(source);
 
         if (data == null || data.isEmpty()) {
             mListView.setVisibility(View.GONE);
@@ -232,6 +355,25 @@ public class AccountListFragment extends Fragment implements
         }
     }
 
+    /**
+     * Logs the time from creating the view until the first frame which shows the accounts.
+     */
+    private void logFirstFrame(String source) {
+        if (mFirstFrameLogged || !mHasData) {
+            return;
+        }
+        mFirstFrameLogged = true;
+        mListView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                mListView.getViewTreeObserver().removeOnPreDrawListener(this);
+                Log.d(Constants.TAG, "Account list first frame after "
+                        + (SystemClock.elapsedRealtime() - mCreateViewTime) + " ms (" + source + ")");
+                return true;
+            }
+        });
+    }
+
     @Override
     public void onLoaderReset(@NonNull Loader<List<AccountListEntry>> loader) {
         if (isAdded()) {
@@ -38,6 +38,7 @@ import android.provider.Settings;
 import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
+import android.text.format.Formatter;
 import android.text.format.DateUtils;
 import android.view.View;
 import android.widget.Button;
@@ -67,16 +68,21 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import fr.heinisch.birthdayadapter.R;
+import fr.heinisch.birthdayadapter.provider.EventsMirrorHelper;
+import fr.heinisch.birthdayadapter.provider.SyncHistoryHelper;
 import fr.heinisch.birthdayadapter.util.AccountHelper;
 import fr.heinisch.birthdayadapter.util.Constants;
 import fr.heinisch.birthdayadapter.util.IPurchaseHelper;
 import fr.heinisch.birthdayadapter.util.PreferencesHelper;
 import fr.heinisch.birthdayadapter.util.PurchaseHelperFactory;
 import fr.heinisch.birthdayadapter.util.SyncStatusManager;
+import fr.heinisch.birthdayadapter.util.SyncWatermark;
 import fr.heinisch.birthdayadapter.util.VersionHelper;
 
 public class ExtendedPreferencesFragment extends PreferenceFragmentCompat {
@@ -85,6 +91,8 @@ public class ExtendedPreferencesFragment extends PreferenceFragmentCompat {
     private AccountHelper mAccountHelper;
     private Preference colorPref;
     private Preference forceSyncPref;
+    private Preference mSyncMetricsPref;
+    private Preference mWindowEstimatePref;
     private Preference mJubileeYearsPref;
     private PreferenceCategory remindersCategory;
     private SharedPreferences mSyncStatusPrefs;
@@ -93,11 +101,16 @@ public class ExtendedPreferencesFragment extends PreferenceFragmentCompat {
     private Set<String> mTitlePrefKeys;
 
     private final Handler mSyncUpdateHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutorService = Executors.newSingleThreadExecutor();
     private Runnable mSyncUpdateRunnable;
 
     private final SharedPreferences.OnSharedPreferenceChangeListener mSyncStatusListener = (sharedPreferences, key) -> {
         if (key != null && key.equals("last_sync_timestamp") && getActivity() != null) {
-            getActivity().runOnUiThread(this::updateSyncStatus);
+            getActivity().runOnUiThread(() -> {
+                updateSyncStatus();
+                updateSyncMetrics();
+                updateWindowEstimate();
+            });
         }
     };
 
@@ -121,6 +134,11 @@ public class ExtendedPreferencesFragment extends PreferenceFragmentCompat {
             }
         }
 
+        if (key.equals(getString(R.string.pref_window_past_years_key))
+                || key.equals(getString(R.string.pref_window_future_years_key))) {
+            updateWindowEstimate();
+        }
+
         if (key.equals(getString(R.string.pref_name_format_key))) {
             // Update all title preference summaries when the name format changes
             if (mTitlePrefKeys != null) {
@@ -192,7 +210,7 @@ public class ExtendedPreferencesFragment extends PreferenceFragmentCompat {
         }
 
         mAccountHelper = new AccountHelper(mActivity);
-        mSyncStatusPrefs = mActivity.getSharedPreferences("sync_status_prefs", Context.MODE_PRIVATE);
+        mSyncStatusPrefs = mActivity.getSharedPreferences(SyncWatermark.SYNC_STATUS_PREFS_NAME, Context.MODE_PRIVATE);
         mPurchaseHelper = PurchaseHelperFactory.create();
 
         if (getContext() != null && !isFullVersionUnlocked(getContext())) {
@@ -213,7 +231,7 @@ public class ExtendedPreferencesFragment extends PreferenceFragmentCompat {
                 if (reminderTypesPref != null) {
                     updateReminderEventTypesSummary(reminderTypesPref);
                     reminderTypesPref.setOnPreferenceChangeListener((preference, newValue) -> {
-                        mAccountHelper.triggerFullResync();
+                        // The sync itself is triggered by the preference change listener
                         // This cast is safe because the preference is a MultiSelectListPreference
                         @SuppressWarnings("unchecked")
                         Set<String> values = (Set<String>) newValue;
@@ -287,6 +305,9 @@ public class ExtendedPreferencesFragment extends PreferenceFragmentCompat {
             });
         }
 
+        mSyncMetricsPref = findPreference(getString(R.string.pref_sync_metrics_key));
+        mWindowEstimatePref = findPreference(getString(R.string.pref_window_estimate_key));
+
         colorPref = findPreference(getString(R.string.pref_color_key));
         if (colorPref != null) {
             updateColorPreferenceIcon();
@@ -540,6 +561,92 @@ public class ExtendedPreferencesFragment extends PreferenceFragmentCompat {
         forceSyncPref.setSummary(summary);
     }
 
+    private void updateSyncMetrics() {
+        if (!isAdded() || mSyncMetricsPref == null || mActivity == null) return;
+
+        Context context = mActivity.getApplicationContext();
+        mExecutorService.execute(() -> {
+            final List<SyncHistoryHelper.Run> runs = SyncHistoryHelper.getRecent(context, SyncHistoryHelper.MAX_RUNS);
+            mSyncUpdateHandler.post(() -> {
+                if (isAdded() && mSyncMetricsPref != null) {
+                    mSyncMetricsPref.setSummary(formatSyncMetrics(runs));
+                }
+            });
+        });
+    }
+
+    /**
+     * Estimates the number of events for the configured event window from the events of the
+     * window of the last sync.
+     */
+    private void updateWindowEstimate() {
+        if (!isAdded() || mWindowEstimatePref == null || mActivity == null) return;
+
+        Context context = mActivity.getApplicationContext();
+        int years = PreferencesHelper.getWindowPastYears(context) + PreferencesHelper.getWindowFutureYears(context) + 1;
+        mExecutorService.execute(() -> {
+            int[] window = SyncWatermark.getWindow(context);
+            long yearlyEvents = EventsMirrorHelper.countEvents(context, false);
+            long recurringEvents = EventsMirrorHelper.countEvents(context, true);
+            mSyncUpdateHandler.post(() -> {
+                if (!isAdded() || mWindowEstimatePref == null) {
+                    return;
+                }
+                if (window == null || yearlyEvents + recurringEvents == 0) {
+                    mWindowEstimatePref.setSummary(getString(R.string.window_estimate_none));
+                    return;
+                }
+                // Recurring events cover all years with a single event
+                long estimate = recurringEvents + yearlyEvents * years / Math.max(1, window[1] - window[0] + 1);
+                mWindowEstimatePref.setSummary(getString(R.string.window_estimate, estimate, years));
+            });
+        });
+    }
+
+    /**
+     * Describes the last run in detail and compares it with the average of the recent runs of
+     * the same kind, since full syncs take much longer than incremental ones.
+     */
+    private String formatSyncMetrics(List<SyncHistoryHelper.Run> runs) {
+        if (runs.isEmpty()) {
+            return getString(R.string.sync_metrics_none);
+        }
+
+        SyncHistoryHelper.Run last = runs.get(0);
+        StringBuilder summary = new StringBuilder(getString(last.fullScan
+                ? R.string.sync_metrics_last_full : R.string.sync_metrics_last_incremental, formatDuration(last.durationMs)));
+        summary.append('\n').append(getString(R.string.sync_metrics_phases,
+                formatDuration(last.groupLoadMs), formatDuration(last.contactScanMs), formatDuration(last.calendarLoadMs),
+                formatDuration(last.planningMs), formatDuration(last.batchApplyMs), formatDuration(last.deleteMs)));
+        summary.append('\n').append(getString(R.string.sync_metrics_volume, last.rowsRead, last.rowsKept,
+                last.operationsWritten, last.batches, Formatter.formatShortFileSize(requireContext(), last.peakHeap)));
+        if (!last.complete) {
+            summary.append('\n').append(getString(R.string.sync_metrics_incomplete));
+        }
+
+        long totalDurationMs = 0;
+        int count = 0;
+        for (SyncHistoryHelper.Run run : runs) {
+            if (run.fullScan == last.fullScan) {
+                totalDurationMs += run.durationMs;
+                count++;
+            }
+        }
+        if (count > 1) {
+            summary.append('\n').append(getString(last.fullScan
+                    ? R.string.sync_metrics_trend_full : R.string.sync_metrics_trend_incremental,
+                    count, formatDuration(totalDurationMs / count)));
+        }
+        return summary.toString();
+    }
+
+    private String formatDuration(long ms) {
+        if (ms < DateUtils.SECOND_IN_MILLIS) {
+            return getString(R.string.sync_metrics_milliseconds, ms);
+        }
+        return getString(R.string.sync_metrics_seconds, ms / (double) DateUtils.SECOND_IN_MILLIS);
+    }
+
     private void showColorPickerDialog() {
         View dialogView = getLayoutInflater().inflate(R.layout.dialog_color_picker, null);
         RecyclerView recyclerView = dialogView.findViewById(R.id.colorPicker);
@@ -664,6 +771,8 @@ public class ExtendedPreferencesFragment extends PreferenceFragmentCompat {
         };
         // Immediately run and start the cycle
         mSyncUpdateHandler.post(mSyncUpdateRunnable);
+        updateSyncMetrics();
+        updateWindowEstimate();
     }
 
     @Override
@@ -675,6 +784,12 @@ public class ExtendedPreferencesFragment extends PreferenceFragmentCompat {
         mSyncUpdateHandler.removeCallbacks(mSyncUpdateRunnable);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mExecutorService.shutdown();
+    }
+
     private void updatePermissionMonitoringPrefVisibility() {
         Preference disablePermissionMonitoringPref = findPreference(getString(R.string.pref_disable_permission_monitoring_key));
         if (disablePermissionMonitoringPref == null) {
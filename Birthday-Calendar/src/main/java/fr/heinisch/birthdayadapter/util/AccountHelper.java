@@ -30,11 +30,7 @@ import android.content.pm.PackageManager;
 import android.os.Bundle;
 
 import androidx.core.app.ActivityCompat;
-import androidx.work.Data;
 import androidx.work.ExistingPeriodicWorkPolicy;
-import androidx.work.ExistingWorkPolicy;
-import androidx.work.OneTimeWorkRequest;
-import androidx.work.OutOfQuotaPolicy;
 import androidx.work.PeriodicWorkRequest;
 import androidx.work.WorkManager;
 
@@ -42,6 +38,7 @@ import java.util.concurrent.TimeUnit;
 
 import fr.heinisch.birthdayadapter.R;
 import fr.heinisch.birthdayadapter.service.BirthdayWorker;
+import fr.heinisch.birthdayadapter.service.SyncScheduler;
 
 public class AccountHelper {
     private final Context mContext;
@@ -123,40 +120,24 @@ public class AccountHelper {
             WorkManager.getInstance(mContext).enqueueUniquePeriodicWork("periodic_sync", ExistingPeriodicWorkPolicy.UPDATE, periodicSyncRequest);
         }
 
-        // Trigger the immediate sync
-        syncWithAction("differential_sync", BirthdayWorker.ACTION_SYNC);
+        // Trigger the sync, merged with other requests arriving at the same time
+        SyncScheduler.getInstance(mContext).request(SyncScheduler.Request.SYNC);
     }
 
     /**
-     * Enqueues a worker to perform a full resync, which involves deleting the calendar and all events.
+     * Requests a worker to apply the reminder settings to the existing events.
      */
-    public void triggerFullResync() {
-        Log.i(Constants.TAG, "Full resync triggered.");
-        syncWithAction("full_resync", BirthdayWorker.ACTION_FORCE_RESYNC);
+    public void updateReminders() {
+        Log.i(Constants.TAG, "Reminder update triggered.");
+        SyncScheduler.getInstance(mContext).request(SyncScheduler.Request.UPDATE_REMINDERS);
     }
 
     /**
-     * Enqueues a one-time work request with a specific action and unique name.
-     *
-     * @param uniqueWorkName   A unique name for the work request.
-     * @param action           The action to be performed by the worker.
+     * Requests a worker to perform a full resync, which involves deleting the calendar and all events.
      */
-    private void syncWithAction(String uniqueWorkName, String action) {
-        Log.d(Constants.TAG, "Enqueuing one-time work with name '" + uniqueWorkName + "' and action '" + action + "'");
-
-        Data inputData = new Data.Builder()
-                .putString(BirthdayWorker.ACTION, action)
-                .build();
-
-        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(BirthdayWorker.class)
-                .setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST)
-                .setInputData(inputData)
-                .build();
-
-        WorkManager.getInstance(mContext).enqueueUniqueWork(
-                uniqueWorkName,
-                ExistingWorkPolicy.REPLACE,
-                workRequest);
+    public void triggerFullResync() {
+        Log.i(Constants.TAG, "Full resync triggered.");
+        SyncScheduler.getInstance(mContext).request(SyncScheduler.Request.FORCE_RESYNC);
     }
 
     /**
@@ -42,6 +42,7 @@ import com.google.android.material.checkbox.MaterialCheckBox;
 
 import fr.heinisch.birthdayadapter.R;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -76,6 +77,14 @@ public class AccountListAdapter extends ArrayAdapter<AccountListEntry> {
         }
     }
 
+    public List<AccountListEntry> getData() {
+        List<AccountListEntry> data = new ArrayList<>(getCount());
+        for (int i = 0; i < getCount(); i++) {
+            data.add(getItem(i));
+        }
+        return data;
+    }
+
     public HashMap<Account, HashSet<String>> getAccountBlacklist() {
         if (getCount() == 0) {
             return null;
@@ -23,9 +23,6 @@ package fr.heinisch.birthdayadapter.util;
 import android.accounts.Account;
 import android.accounts.AuthenticatorDescription;
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.res.Resources.NotFoundException;
 import android.graphics.drawable.Drawable;
 
 import androidx.annotation.NonNull;
@@ -53,21 +50,9 @@ public class AccountListEntry {
      * Load label and icon for this entry
      */
     public void init(Context context, AuthenticatorDescription description) {
-        PackageManager pm = context.getPackageManager();
-        label = description.packageName;
-        try {
-            label = pm.getResourcesForApplication(description.packageName).getString(
-                    description.labelId);
-        } catch (NotFoundException | NameNotFoundException e) {
-            Log.e(Constants.TAG, "Error retrieving label!", e);
-        }
-
-        try {
-            icon = pm.getDrawable(description.packageName, description.iconId, null);
-        } catch (Exception e) {
-            Log.e(Constants.TAG, "Error retrieving icon!", e);
-            icon = null;
-        }
+        AuthenticatorCache.Resources resources = AuthenticatorCache.get(context, description);
+        label = resources.getLabel();
+        icon = resources.newIcon();
     }
 
     public String getLabel() {
@@ -21,7 +21,6 @@
 package fr.heinisch.birthdayadapter.util;
 
 import android.accounts.Account;
-import android.accounts.AccountManager;
 import android.accounts.AuthenticatorDescription;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -33,6 +32,7 @@ import androidx.loader.content.AsyncTaskLoader;
 
 import fr.heinisch.birthdayadapter.BuildConfig;
 import fr.heinisch.birthdayadapter.R;
+import fr.heinisch.birthdayadapter.core.LongIntMap;
 import fr.heinisch.birthdayadapter.provider.ProviderHelper;
 
 import java.text.Collator;
@@ -57,6 +57,10 @@ public class AccountListLoader extends AsyncTaskLoader<List<AccountListEntry>> {
         mGroupFilteringEnabled = groupFilteringEnabled;
     }
 
+    public boolean isGroupFilteringEnabled() {
+        return mGroupFilteringEnabled;
+    }
+
     /**
      * Perform comparison of account entry objects, sorting by the sum of contacts and dates.
      */
@@ -78,55 +82,66 @@ public class AccountListLoader extends AsyncTaskLoader<List<AccountListEntry>> {
         }
     };
 
+    /**
+     * Counts of one account, collected by the scans over all accounts.
+     */
+    private static final class AccountCounts {
+        final Account account;
+        int contactCount;
+        int dateCount;
+        // Raw contacts in at least one group, and the dates of the raw contacts in none
+        int groupedContactCount;
+        int ungroupedDateCount;
+        // Titles of the groups, and their contact and date counts, by group id
+        final HashMap<Long, String> groupTitles = new HashMap<>();
+        final HashMap<Long, int[]> groupCounts = new HashMap<>();
+
+        AccountCounts(Account account) {
+            this.account = account;
+        }
+    }
+
     @Override
     public List<AccountListEntry> loadInBackground() {
-        AccountManager manager = AccountManager.get(getContext());
-        AuthenticatorDescription[] descriptions = manager.getAuthenticatorTypes();
+        HashMap<String, AuthenticatorDescription> descriptions = AuthenticatorCache.getDescriptions(getContext());
         ArrayList<AccountListEntry> entries = new ArrayList<>();
-        HashMap<Account, HashSet<String>> accountGroupBlacklist = ProviderHelper.getAccountBlacklist(getContext());
-
-        // Use a Set to store all unique accounts from ContactsContract
-        Set<Account> allDiscoveredAccounts = new HashSet<>();
+        Map<Account, Set<String>> accountGroupBlacklist = ProviderHelper.getAccountBlacklist(getContext());
+        ContentResolver resolver = getContext().getContentResolver();
 
-        // Get accounts from ContactsContract (guaranteed to have contacts)
-        final String[] projection = {ContactsContract.RawContacts.ACCOUNT_TYPE, ContactsContract.RawContacts.ACCOUNT_NAME};
-        try (Cursor cursor = getContext().getContentResolver().query(ContactsContract.RawContacts.CONTENT_URI, projection, null, null, null)) {
-            if (cursor != null) {
-                int accountTypeCol = cursor.getColumnIndex(ContactsContract.RawContacts.ACCOUNT_TYPE);
-                int accountNameCol = cursor.getColumnIndex(ContactsContract.RawContacts.ACCOUNT_NAME);
-                while (cursor.moveToNext()) {
-                    String type = cursor.getString(accountTypeCol);
-                    String name = cursor.getString(accountNameCol);
-                    if (!TextUtils.isEmpty(type) && !TextUtils.isEmpty(name)) {
-                        allDiscoveredAccounts.add(new Account(name, type));
-                    }
-                }
-            }
+        // One pass over each table for all accounts, the rows are bucketed by account
+        ArrayList<AccountCounts> accounts = new ArrayList<>();
+        LongIntMap rawContactAccounts = loadRawContacts(resolver, accounts);
+        if (mGroupFilteringEnabled) {
+            loadGroups(resolver, accounts);
         }
+        loadData(resolver, accounts, rawContactAccounts);
 
-        // Process the combined list of unique accounts
-        for (Account account : allDiscoveredAccounts) {
+        for (AccountCounts counts : accounts) {
+            Account account = counts.account;
             if (account.type.startsWith(BuildConfig.APPLICATION_ID)) {
                 continue;
             }
 
-            for (AuthenticatorDescription description : descriptions) {
-                if (description.type.equals(account.type)) {
-                    HashSet<String> blacklistedGroups = accountGroupBlacklist.get(account);
-                    boolean accountFullyBlacklisted = (blacklistedGroups != null && blacklistedGroups.contains(null));
-                    boolean enabled = !accountFullyBlacklisted;
-
-                    AccountListEntry entry = new AccountListEntry(getContext(), account, description, enabled);
-                    loadAccountDetails(entry, blacklistedGroups);
-
-                    if (enabled && blacklistedGroups != null && !blacklistedGroups.isEmpty()) {
-                        entry.setIndeterminate(true);
-                    }
+            AuthenticatorDescription description = descriptions.get(account.type);
+            if (description == null) {
+                continue;
+            }
+            Set<String> blacklistedGroups = accountGroupBlacklist.get(account);
+            boolean accountFullyBlacklisted = (blacklistedGroups != null && blacklistedGroups.contains(null));
+            boolean enabled = !accountFullyBlacklisted;
+
+            AccountListEntry entry = new AccountListEntry(getContext(), account, description, enabled);
+            entry.setContactCount(counts.contactCount);
+            entry.setDateCount(counts.dateCount);
+            if (mGroupFilteringEnabled) {
+                entry.setGroups(buildGroupEntries(counts, blacklistedGroups));
+            }
 
-                    entries.add(entry);
-                    break;
-                }
+            if (enabled && blacklistedGroups != null && !blacklistedGroups.isEmpty()) {
+                entry.setIndeterminate(true);
             }
+
+            entries.add(entry);
         }
 
         entries.sort(TOTAL_COUNT_COMPARATOR);
@@ -134,136 +149,174 @@ public class AccountListLoader extends AsyncTaskLoader<List<AccountListEntry>> {
         return entries;
     }
 
-    private void loadAccountDetails(AccountListEntry entry, HashSet<String> blacklistedGroups) {
-        Account account = entry.getAccount();
-        ContentResolver resolver = getContext().getContentResolver();
-
-        Map<String, String> groupTitleMap = new HashMap<>();
-        if (mGroupFilteringEnabled) {
-            final String[] groupProjection = {ContactsContract.Groups._ID, ContactsContract.Groups.TITLE};
-            final String groupSelection = ContactsContract.Groups.ACCOUNT_TYPE + " = ? AND " +
-                    ContactsContract.Groups.ACCOUNT_NAME + " = ? AND " +
-                    ContactsContract.Groups.DELETED + " = 0";
-            final String[] groupSelectionArgs = {account.type, account.name};
-
-            try (Cursor groupCursor = resolver.query(ContactsContract.Groups.CONTENT_URI, groupProjection, groupSelection, groupSelectionArgs, null)) {
-                if (groupCursor != null) {
-                    int idColumn = groupCursor.getColumnIndex(ContactsContract.Groups._ID);
-                    int titleColumn = groupCursor.getColumnIndex(ContactsContract.Groups.TITLE);
-                    while (groupCursor.moveToNext()) {
-                        String id = groupCursor.getString(idColumn);
-                        String title = groupCursor.getString(titleColumn);
-                        if (!TextUtils.isEmpty(title) && !title.startsWith("System Group:")) {
-                            groupTitleMap.put(id, title);
-                        }
+    /**
+     * Collects the accounts of all raw contacts and counts their raw contacts.
+     *
+     * @return index of the account of each raw contact by raw contact id
+     */
+    private LongIntMap loadRawContacts(ContentResolver resolver, ArrayList<AccountCounts> accounts) {
+        LongIntMap rawContactAccounts = new LongIntMap();
+        // Accounts by type and name, so the rows don't allocate an Account each
+        HashMap<String, HashMap<String, Integer>> accountIndices = new HashMap<>();
+
+        final String[] projection = {ContactsContract.RawContacts._ID, ContactsContract.RawContacts.ACCOUNT_TYPE,
+                ContactsContract.RawContacts.ACCOUNT_NAME};
+        try (Cursor cursor = resolver.query(ContactsContract.RawContacts.CONTENT_URI, projection, null, null, null)) {
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    String type = cursor.getString(1);
+                    String name = cursor.getString(2);
+                    if (TextUtils.isEmpty(type) || TextUtils.isEmpty(name)) {
+                        continue;
+                    }
+                    HashMap<String, Integer> names = accountIndices.computeIfAbsent(type, k -> new HashMap<>());
+                    Integer index = names.get(name);
+                    if (index == null) {
+                        index = accounts.size();
+                        names.put(name, index);
+                        accounts.add(new AccountCounts(new Account(name, type)));
                     }
+                    accounts.get(index).contactCount++;
+                    rawContactAccounts.put(cursor.getLong(0), index);
                 }
             }
         }
+        return rawContactAccounts;
+    }
 
-        Set<String> allRawContactIds = new HashSet<>();
-        final String[] rawContactsProjection = {ContactsContract.RawContacts._ID};
-        final String rawContactsSelection = ContactsContract.RawContacts.ACCOUNT_TYPE + " = ? AND " + ContactsContract.RawContacts.ACCOUNT_NAME + " = ?";
-        final String[] rawContactsSelectionArgs = {account.type, account.name};
-        try (Cursor rawContactsCursor = resolver.query(ContactsContract.RawContacts.CONTENT_URI, rawContactsProjection, rawContactsSelection, rawContactsSelectionArgs, null)) {
-            if (rawContactsCursor != null) {
-                int idColumn = rawContactsCursor.getColumnIndex(ContactsContract.RawContacts._ID);
-                while (rawContactsCursor.moveToNext()) {
-                    allRawContactIds.add(rawContactsCursor.getString(idColumn));
+    /**
+     * Reads the groups of all accounts together with their number of contacts.
+     */
+    private void loadGroups(ContentResolver resolver, ArrayList<AccountCounts> accounts) {
+        HashMap<Account, AccountCounts> countsByAccount = new HashMap<>();
+        for (AccountCounts counts : accounts) {
+            countsByAccount.put(counts.account, counts);
+        }
+
+        final String[] groupProjection = {ContactsContract.Groups._ID, ContactsContract.Groups.TITLE,
+                ContactsContract.Groups.ACCOUNT_TYPE, ContactsContract.Groups.ACCOUNT_NAME,
+                ContactsContract.Groups.SUMMARY_COUNT};
+        final String groupSelection = ContactsContract.Groups.DELETED + " = 0";
+
+        // The summary counts the contacts of each group, so memberships only have to be read for the dates
+        try (Cursor groupCursor = resolver.query(ContactsContract.Groups.CONTENT_SUMMARY_URI, groupProjection, groupSelection, null, null)) {
+            if (groupCursor != null) {
+                while (groupCursor.moveToNext()) {
+                    String title = groupCursor.getString(1);
+                    String type = groupCursor.getString(2);
+                    String name = groupCursor.getString(3);
+                    if (TextUtils.isEmpty(title) || title.startsWith("System Group:")
+                            || TextUtils.isEmpty(type) || TextUtils.isEmpty(name)) {
+                        continue;
+                    }
+                    AccountCounts counts = countsByAccount.get(new Account(name, type));
+                    if (counts != null) {
+                        long id = groupCursor.getLong(0);
+                        counts.groupTitles.put(id, title);
+                        counts.groupCounts.put(id, new int[]{groupCursor.getInt(4), 0});
+                    }
                 }
             }
         }
-        entry.setContactCount(allRawContactIds.size());
+    }
 
+    /**
+     * Counts the dates of all accounts and, with group filtering, adds them to the groups of their
+     * raw contacts.
+     */
+    private void loadData(ContentResolver resolver, ArrayList<AccountCounts> accounts, LongIntMap rawContactAccounts) {
         final String[] dataProjection = {
                 ContactsContract.Data.RAW_CONTACT_ID,
                 ContactsContract.Data.MIMETYPE,
                 ContactsContract.CommonDataKinds.GroupMembership.GROUP_ROW_ID
         };
-        final String dataSelection = ContactsContract.RawContacts.ACCOUNT_TYPE + " = ? AND " +
-                ContactsContract.RawContacts.ACCOUNT_NAME + " = ? AND " +
-                "(" + ContactsContract.Data.MIMETYPE + " = ? OR " +
-                ContactsContract.Data.MIMETYPE + " = ?)";
-        final String[] dataSelectionArgs = {
-                account.type,
-                account.name,
-                ContactsContract.CommonDataKinds.Event.CONTENT_ITEM_TYPE,
-                ContactsContract.CommonDataKinds.GroupMembership.CONTENT_ITEM_TYPE
-        };
-
-        Map<String, Set<String>> contactToGroupsMap = new HashMap<>();
-        Map<String, Integer> contactDateCounts = new HashMap<>();
+        String dataSelection = ContactsContract.Data.MIMETYPE + " = ?";
+        String[] dataSelectionArgs = {ContactsContract.CommonDataKinds.Event.CONTENT_ITEM_TYPE};
+        if (mGroupFilteringEnabled) {
+            dataSelection = "(" + ContactsContract.Data.MIMETYPE + " = ? OR " + ContactsContract.Data.MIMETYPE + " = ?)";
+            dataSelectionArgs = new String[]{
+                    ContactsContract.CommonDataKinds.Event.CONTENT_ITEM_TYPE,
+                    ContactsContract.CommonDataKinds.GroupMembership.CONTENT_ITEM_TYPE
+            };
+        }
 
-        try (Cursor dataCursor = resolver.query(ContactsContract.Data.CONTENT_URI, dataProjection, dataSelection, dataSelectionArgs, null)) {
+        // Rows are ordered by raw contact, so only the rows of the current one are collected
+        try (Cursor dataCursor = resolver.query(ContactsContract.Data.CONTENT_URI, dataProjection, dataSelection,
+                dataSelectionArgs, ContactsContract.Data.RAW_CONTACT_ID)) {
             if (dataCursor == null) {
-                entry.setDateCount(0);
                 return;
             }
-            int rawContactIdCol = dataCursor.getColumnIndex(ContactsContract.Data.RAW_CONTACT_ID);
-            int mimeTypeCol = dataCursor.getColumnIndex(ContactsContract.Data.MIMETYPE);
-            int groupIdCol = dataCursor.getColumnIndex(ContactsContract.CommonDataKinds.GroupMembership.GROUP_ROW_ID);
-
+            long currentRawContactId = -1;
+            int currentDateCount = 0;
+            HashSet<Long> currentGroupIds = new HashSet<>();
             while (dataCursor.moveToNext()) {
-                String rawContactId = dataCursor.getString(rawContactIdCol);
-                String mimeType = dataCursor.getString(mimeTypeCol);
-
-                if (ContactsContract.CommonDataKinds.GroupMembership.CONTENT_ITEM_TYPE.equals(mimeType)) {
-                    String groupId = dataCursor.getString(groupIdCol);
-                    contactToGroupsMap.computeIfAbsent(rawContactId, k -> new HashSet<>()).add(groupId);
-                } else if (ContactsContract.CommonDataKinds.Event.CONTENT_ITEM_TYPE.equals(mimeType)) {
-                    contactDateCounts.merge(rawContactId, 1, Integer::sum);
+                long rawContactId = dataCursor.getLong(0);
+                if (rawContactId != currentRawContactId) {
+                    addRawContactCounts(accounts, rawContactAccounts, currentRawContactId, currentDateCount, currentGroupIds);
+                    currentRawContactId = rawContactId;
+                    currentDateCount = 0;
+                    currentGroupIds.clear();
                 }
-            }
-        }
-        entry.setDateCount(contactDateCounts.values().stream().mapToInt(Integer::intValue).sum());
 
-        if (mGroupFilteringEnabled) {
-            Map<String, int[]> groupStats = new HashMap<>();
-
-            for (String rawContactId : allRawContactIds) {
-                Set<String> groupIds = contactToGroupsMap.get(rawContactId);
-                Integer dateCountInt = contactDateCounts.get(rawContactId);
-                int dateCount = (dateCountInt == null) ? 0 : dateCountInt;
-
-                if (groupIds != null && !groupIds.isEmpty()) {
-                    for (String groupId : groupIds) {
-                        int[] stats = groupStats.computeIfAbsent(groupId, k -> new int[2]);
-                        stats[0]++;
-                        stats[1] += dateCount;
-                    }
+                if (ContactsContract.CommonDataKinds.GroupMembership.CONTENT_ITEM_TYPE.equals(dataCursor.getString(1))) {
+                    currentGroupIds.add(dataCursor.getLong(2));
                 } else {
-                    int[] stats = groupStats.computeIfAbsent(Constants.GROUP_TITLE_NO_GROUP, k -> new int[2]);
-                    stats[0]++;
-                    stats[1] += dateCount;
+                    currentDateCount++;
                 }
             }
+            addRawContactCounts(accounts, rawContactAccounts, currentRawContactId, currentDateCount, currentGroupIds);
+        }
+    }
 
-            List<GroupListEntry> groupEntries = new ArrayList<>();
-            for (Map.Entry<String, int[]> statsEntry : groupStats.entrySet()) {
-                String groupId = statsEntry.getKey();
-                String groupTitle = groupTitleMap.get(groupId);
-
-                if (groupId.equals(Constants.GROUP_TITLE_NO_GROUP)) {
-                    if (statsEntry.getValue()[0] > 0) {
-                        groupTitle = getContext().getString(R.string.account_list_no_group);
-                    }
-                }
+    private void addRawContactCounts(ArrayList<AccountCounts> accounts, LongIntMap rawContactAccounts,
+                                     long rawContactId, int dateCount, Set<Long> groupIds) {
+        int index = rawContactAccounts.get(rawContactId, -1);
+        if (index < 0) {
+            return;
+        }
+        AccountCounts counts = accounts.get(index);
+        counts.dateCount += dateCount;
+        if (groupIds.isEmpty()) {
+            counts.ungroupedDateCount += dateCount;
+            return;
+        }
+        counts.groupedContactCount++;
+        for (long groupId : groupIds) {
+            int[] groupCounts = counts.groupCounts.get(groupId);
+            if (groupCounts != null) {
+                groupCounts[1] += dateCount;
+            }
+        }
+    }
 
-                if (groupTitle != null) {
-                    int[] counts = statsEntry.getValue();
-                    GroupListEntry groupEntry = new GroupListEntry(groupTitle, counts[0], counts[1]);
-                    if (blacklistedGroups != null && blacklistedGroups.contains(groupTitle)) {
-                        groupEntry.setSelected(false);
-                    }
-                    groupEntries.add(groupEntry);
-                }
+    private List<GroupListEntry> buildGroupEntries(AccountCounts counts, Set<String> blacklistedGroups) {
+        List<GroupListEntry> groupEntries = new ArrayList<>();
+        for (Map.Entry<Long, int[]> groupCounts : counts.groupCounts.entrySet()) {
+            int[] values = groupCounts.getValue();
+            if (values[0] > 0) {
+                groupEntries.add(buildGroupEntry(counts.groupTitles.get(groupCounts.getKey()), values[0], values[1],
+                        blacklistedGroups));
             }
-            groupEntries.sort(Comparator.comparing(GroupListEntry::getTitle));
+        }
 
-            entry.setGroups(groupEntries);
+        // Raw contacts without any group membership
+        int ungroupedContactCount = counts.contactCount - counts.groupedContactCount;
+        if (ungroupedContactCount > 0) {
+            groupEntries.add(buildGroupEntry(getContext().getString(R.string.account_list_no_group),
+                    ungroupedContactCount, counts.ungroupedDateCount, blacklistedGroups));
         }
+        groupEntries.sort(Comparator.comparing(GroupListEntry::getTitle));
+        return groupEntries;
     }
 
+    private static GroupListEntry buildGroupEntry(String title, int contactCount, int dateCount,
+                                                  Set<String> blacklistedGroups) {
+        GroupListEntry groupEntry = new GroupListEntry(title, contactCount, dateCount);
+        if (blacklistedGroups != null && blacklistedGroups.contains(title)) {
+            groupEntry.setSelected(false);
+        }
+        return groupEntry;
+    }
 
     @Override
     public void deliverResult(List<AccountListEntry> accounts) {
@@ -0,0 +1,186 @@
+package fr.heinisch.birthdayadapter.util;
+
+import android.accounts.Account;
+import android.accounts.AuthenticatorDescription;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Keeps the last account list computed by {@link AccountListLoader}, including counts and the
+ * selection, so the account list can be shown right away instead of after a scan of all contacts.
+ * <p>
+ * A {@link ContentObserver} on the contacts provider tracks whether the snapshot may be out of
+ * date. It is registered for the lifetime of the process, so the snapshot is always revalidated
+ * once after the process started, as contacts may have changed in the meantime. All methods have
+ * to be called on the main thread.
+ */
+public class AccountListSnapshot {
+
+    /**
+     * Notified when the contacts changed, while a list based on the snapshot is shown.
+     */
+    public interface OnStaleListener {
+        void onSnapshotStale();
+    }
+
+    private static final String PREFS_NAME = "account_list_snapshot_prefs";
+    private static final String KEY_SNAPSHOT = "snapshot";
+    private static final String KEY_GROUP_FILTERING = "group_filtering";
+
+    private static final String JSON_TYPE = "type";
+    private static final String JSON_NAME = "name";
+    private static final String JSON_SELECTED = "selected";
+    private static final String JSON_CONTACTS = "contacts";
+    private static final String JSON_DATES = "dates";
+    private static final String JSON_GROUPS = "groups";
+    private static final String JSON_TITLE = "title";
+
+    private static ContentObserver sObserver;
+    private static OnStaleListener sListener;
+    // Number of contact changes seen, and the number the snapshot was last computed after
+    private static int sChangeCount = 0;
+    private static int sValidatedChangeCount = -1;
+
+    /**
+     * Starts observing the contacts provider, if this has not happened yet in this process.
+     */
+    public static void watch(Context context) {
+        if (sObserver != null) {
+            return;
+        }
+        sObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                sChangeCount++;
+                if (sListener != null) {
+                    sListener.onSnapshotStale();
+                }
+            }
+        };
+        context.getApplicationContext().getContentResolver()
+                .registerContentObserver(ContactsContract.AUTHORITY_URI, true, sObserver);
+    }
+
+    public static void setOnStaleListener(OnStaleListener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * Returns whether the contacts may have changed since the snapshot was last computed.
+     */
+    public static boolean isStale() {
+        return sValidatedChangeCount != sChangeCount;
+    }
+
+    /**
+     * Returns the number of contact changes seen so far, to be passed to {@link #setValidated}
+     * when a list loaded from now on is finished.
+     */
+    public static int getChangeCount() {
+        return sChangeCount;
+    }
+
+    /**
+     * Marks the snapshot as up to date with the contacts as of the given change count. Changes
+     * seen while the list was loaded keep it stale.
+     */
+    public static void setValidated(int changeCount) {
+        sValidatedChangeCount = changeCount;
+    }
+
+    /**
+     * Stores the account list as the snapshot, e.g. after it was loaded or its selection changed.
+     */
+    public static void save(Context context, List<AccountListEntry> entries, boolean groupFilteringEnabled) {
+        JSONArray accounts = new JSONArray();
+        try {
+            for (AccountListEntry entry : entries) {
+                JSONArray groups = new JSONArray();
+                for (GroupListEntry group : entry.getGroups()) {
+                    groups.put(new JSONObject()
+                            .put(JSON_TITLE, group.getTitle())
+                            .put(JSON_SELECTED, group.isSelected())
+                            .put(JSON_CONTACTS, group.getContactCount())
+                            .put(JSON_DATES, group.getDateCount()));
+                }
+                accounts.put(new JSONObject()
+                        .put(JSON_TYPE, entry.getAccount().type)
+                        .put(JSON_NAME, entry.getAccount().name)
+                        .put(JSON_SELECTED, !entry.isNotSelected())
+                        .put(JSON_CONTACTS, entry.getContactCount())
+                        .put(JSON_DATES, entry.getDateCount())
+                        .put(JSON_GROUPS, groups));
+            }
+        } catch (JSONException e) {
+            Log.e(Constants.TAG, "Error writing account list snapshot!", e);
+            return;
+        }
+        getPrefs(context).edit()
+                .putString(KEY_SNAPSHOT, accounts.toString())
+                .putBoolean(KEY_GROUP_FILTERING, groupFilteringEnabled)
+                .apply();
+    }
+
+    /**
+     * Returns the stored account list, or null if there is none for the group filtering setting.
+     * Accounts whose authenticator has been removed since are left out.
+     */
+    public static List<AccountListEntry> load(Context context, boolean groupFilteringEnabled) {
+        SharedPreferences prefs = getPrefs(context);
+        String snapshot = prefs.getString(KEY_SNAPSHOT, null);
+        if (snapshot == null || prefs.getBoolean(KEY_GROUP_FILTERING, false) != groupFilteringEnabled) {
+            return null;
+        }
+
+        HashMap<String, AuthenticatorDescription> descriptions = AuthenticatorCache.getDescriptions(context);
+
+        List<AccountListEntry> entries = new ArrayList<>();
+        try {
+            JSONArray accounts = new JSONArray(snapshot);
+            for (int i = 0; i < accounts.length(); i++) {
+                JSONObject account = accounts.getJSONObject(i);
+                AuthenticatorDescription description = descriptions.get(account.getString(JSON_TYPE));
+                if (description == null) {
+                    continue;
+                }
+                AccountListEntry entry = new AccountListEntry(context,
+                        new Account(account.getString(JSON_NAME), account.getString(JSON_TYPE)), description,
+                        account.getBoolean(JSON_SELECTED));
+                entry.setContactCount(account.getInt(JSON_CONTACTS));
+                entry.setDateCount(account.getInt(JSON_DATES));
+
+                JSONArray groups = account.getJSONArray(JSON_GROUPS);
+                List<GroupListEntry> groupEntries = new ArrayList<>(groups.length());
+                for (int j = 0; j < groups.length(); j++) {
+                    JSONObject group = groups.getJSONObject(j);
+                    GroupListEntry groupEntry = new GroupListEntry(group.getString(JSON_TITLE),
+                            group.getInt(JSON_CONTACTS), group.getInt(JSON_DATES));
+                    groupEntry.setSelected(group.getBoolean(JSON_SELECTED));
+                    groupEntries.add(groupEntry);
+                }
+                entry.setGroups(groupEntries);
+                entries.add(entry);
+            }
+        } catch (JSONException e) {
+            Log.e(Constants.TAG, "Error reading account list snapshot!", e);
+            return null;
+        }
+        return entries;
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,121 @@
+package fr.heinisch.birthdayadapter.util;
+
+import android.accounts.AccountManager;
+import android.accounts.AuthenticatorDescription;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Resources.NotFoundException;
+import android.graphics.drawable.Drawable;
+
+import java.util.HashMap;
+
+/**
+ * Process-wide cache of the labels and icons of the account authenticators. Loading them reads
+ * the resources of another app, which is only done once per version of that app.
+ */
+public class AuthenticatorCache {
+
+    /**
+     * Label and icon of an authenticator. The icon is kept as its constant state, so every entry
+     * gets a drawable of its own.
+     */
+    public static final class Resources {
+        private final String mLabel;
+        private final Drawable.ConstantState mIcon;
+
+        private Resources(String label, Drawable.ConstantState icon) {
+            mLabel = label;
+            mIcon = icon;
+        }
+
+        public String getLabel() {
+            return mLabel;
+        }
+
+        /**
+         * @return a new drawable of the icon, or null if it could not be loaded
+         */
+        public Drawable newIcon() {
+            return mIcon != null ? mIcon.newDrawable() : null;
+        }
+    }
+
+    /**
+     * Resources of the authenticators of one package, valid for one version of it.
+     */
+    private static final class PackageResources {
+        final long versionCode;
+        // By label and icon resource id of the authenticator
+        final HashMap<Long, Resources> resources = new HashMap<>();
+
+        PackageResources(long versionCode) {
+            this.versionCode = versionCode;
+        }
+    }
+
+    private static final HashMap<String, PackageResources> sPackages = new HashMap<>();
+
+    /**
+     * Returns the authenticators of all account types by type, so accounts can be matched to
+     * their authenticator without searching.
+     */
+    public static HashMap<String, AuthenticatorDescription> getDescriptions(Context context) {
+        AuthenticatorDescription[] descriptions = AccountManager.get(context).getAuthenticatorTypes();
+        HashMap<String, AuthenticatorDescription> descriptionsByType = new HashMap<>(descriptions.length * 2);
+        for (AuthenticatorDescription description : descriptions) {
+            descriptionsByType.put(description.type, description);
+        }
+        return descriptionsByType;
+    }
+
+    /**
+     * Returns the label and icon of the authenticator, loading them only if the package has been
+     * updated since they were cached.
+     */
+    public static synchronized Resources get(Context context, AuthenticatorDescription description) {
+        PackageManager pm = context.getPackageManager();
+        long versionCode;
+        try {
+            versionCode = pm.getPackageInfo(description.packageName, 0).getLongVersionCode();
+        } catch (NameNotFoundException e) {
+            // Removed meanwhile, load() falls back to the package name
+            sPackages.remove(description.packageName);
+            return load(pm, description);
+        }
+
+        PackageResources packageResources = sPackages.get(description.packageName);
+        if (packageResources == null || packageResources.versionCode != versionCode) {
+            packageResources = new PackageResources(versionCode);
+            sPackages.put(description.packageName, packageResources);
+        }
+        long resourceIds = ((long) description.labelId << 32) | (description.iconId & 0xffffffffL);
+        Resources resources = packageResources.resources.get(resourceIds);
+        if (resources == null) {
+            resources = load(pm, description);
+            packageResources.resources.put(resourceIds, resources);
+        }
+        return resources;
+    }
+
+    private static Resources load(PackageManager pm, AuthenticatorDescription description) {
+        String label = description.packageName;
+        try {
+            label = pm.getResourcesForApplication(description.packageName).getString(
+                    description.labelId);
+        } catch (NotFoundException | NameNotFoundException e) {
+            Log.e(Constants.TAG, "Error retrieving label!", e);
+        }
+
+        Drawable.ConstantState icon = null;
+        try {
+            Drawable drawable = pm.getDrawable(description.packageName, description.iconId, null);
+            if (drawable != null) {
+                icon = drawable.getConstantState();
+            }
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Error retrieving icon!", e);
+        }
+        return new Resources(label, icon);
+    }
+}
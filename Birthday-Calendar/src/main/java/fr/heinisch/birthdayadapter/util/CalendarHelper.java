@@ -3,6 +3,7 @@ package fr.heinisch.birthdayadapter.util;
 import android.Manifest;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
@@ -13,17 +14,35 @@ import androidx.core.content.ContextCompat;
 
 import fr.heinisch.birthdayadapter.BuildConfig;
 import fr.heinisch.birthdayadapter.R;
+import fr.heinisch.birthdayadapter.provider.EventsMirrorHelper;
 
 import java.util.ArrayList;
 
 public class CalendarHelper {
 
+    private static final String CALENDAR_NAME = "birthday_adapter";
+    // Hidden calendar a full resync builds the new events in, see getShadowCalendar()
+    private static final String SHADOW_CALENDAR_NAME = "birthday_adapter_shadow";
+
     /**
      * Gets calendar id, when no calendar is present, create one!
      */
     public static long getCalendar(Context context) {
         Log.d(Constants.TAG, "getCalendar Method...");
 
+        return findOrCreateCalendar(context, false);
+    }
+
+    /**
+     * Gets the id of the hidden calendar a full resync builds the new events in, and creates it
+     * if there is none. Calendar apps don't show it until it replaces the birthday calendar in
+     * {@link #swapShadowCalendar}.
+     */
+    public static long getShadowCalendar(Context context) {
+        return findOrCreateCalendar(context, true);
+    }
+
+    private static long findOrCreateCalendar(Context context, boolean shadow) {
         if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CALENDAR) != PackageManager.PERMISSION_GRANTED ||
                 ContextCompat.checkSelfPermission(context, Manifest.permission.WRITE_CALENDAR) != PackageManager.PERMISSION_GRANTED) {
             Log.e(Constants.TAG, "Missing calendar permissions to get or create calendar!");
@@ -35,11 +54,17 @@ public class CalendarHelper {
         // Find the calendar if we've got one
         Uri calenderUri = getBirthdayAdapterUri(context, CalendarContract.Calendars.CONTENT_URI);
 
+        // Calendars of older versions may not have a name
+        String nameSelection = shadow ? CalendarContract.Calendars.NAME + " = ?"
+                : "(" + CalendarContract.Calendars.NAME + " IS NULL OR " + CalendarContract.Calendars.NAME + " != ?)";
+
         // be sure to select the birthday calendar only (additionally to appendQueries in
         // getBirthdayAdapterUri for Android < 4)
         try (Cursor cursor = contentResolver.query(calenderUri, new String[]{BaseColumns._ID},
-                CalendarContract.Calendars.ACCOUNT_NAME + " = ? AND " + CalendarContract.Calendars.ACCOUNT_TYPE + " = ?",
-                new String[]{Constants.getAccountName(context), context.getString(R.string.account_type)}, null)) {
+                CalendarContract.Calendars.ACCOUNT_NAME + " = ? AND " + CalendarContract.Calendars.ACCOUNT_TYPE + " = ? AND "
+                        + nameSelection,
+                new String[]{Constants.getAccountName(context), context.getString(R.string.account_type), SHADOW_CALENDAR_NAME},
+                null)) {
             if (cursor != null && cursor.moveToNext()) {
                 return cursor.getLong(0);
             } else {
@@ -49,8 +74,7 @@ public class CalendarHelper {
                         .newInsert(calenderUri);
                 builder.withValue(CalendarContract.Calendars.ACCOUNT_NAME, Constants.getAccountName(context));
                 builder.withValue(CalendarContract.Calendars.ACCOUNT_TYPE, context.getString(R.string.account_type));
-                String CALENDAR_COLUMN_NAME = "birthday_adapter";
-                builder.withValue(CalendarContract.Calendars.NAME, CALENDAR_COLUMN_NAME);
+                builder.withValue(CalendarContract.Calendars.NAME, shadow ? SHADOW_CALENDAR_NAME : CALENDAR_NAME);
                 builder.withValue(CalendarContract.Calendars.CALENDAR_DISPLAY_NAME,
                         context.getString(R.string.calendar_display_name));
                 builder.withValue(CalendarContract.Calendars.CALENDAR_COLOR, PreferencesHelper.getColor(context));
@@ -61,7 +85,7 @@ public class CalendarHelper {
                 }
                 builder.withValue(CalendarContract.Calendars.OWNER_ACCOUNT, Constants.getAccountName(context));
                 builder.withValue(CalendarContract.Calendars.SYNC_EVENTS, 1);
-                builder.withValue(CalendarContract.Calendars.VISIBLE, 1);
+                builder.withValue(CalendarContract.Calendars.VISIBLE, shadow ? 0 : 1);
                 operationList.add(builder.build());
                 try {
                     android.content.ContentProviderResult[] results = contentResolver.applyBatch(CalendarContract.AUTHORITY, operationList);
@@ -80,7 +104,56 @@ public class CalendarHelper {
     }
 
     /**
-     * Deletes the birthday calendar and all its events.
+     * Replaces the birthday calendar by the shadow calendar. The old calendar is deleted and the
+     * shadow calendar is made visible in one batch, which the calendar provider applies in one
+     * transaction, so calendar apps never see the birthday calendar without events.
+     * <p>
+     * The shadow calendar takes on the current color, which may have changed during the rebuild.
+     *
+     * @return false if the calendars could not be swapped, the old calendar is kept then
+     */
+    public static boolean swapShadowCalendar(Context context, long shadowCalendarId) {
+        Uri calendarUri = getBirthdayAdapterUri(context, CalendarContract.Calendars.CONTENT_URI);
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<>();
+        operationList.add(ContentProviderOperation.newDelete(calendarUri)
+                .withSelection(CalendarContract.Calendars._ID + " != ?", new String[]{String.valueOf(shadowCalendarId)})
+                .build());
+        operationList.add(ContentProviderOperation.newUpdate(getBirthdayAdapterUri(context,
+                        ContentUris.withAppendedId(CalendarContract.Calendars.CONTENT_URI, shadowCalendarId)))
+                .withValue(CalendarContract.Calendars.NAME, CALENDAR_NAME)
+                .withValue(CalendarContract.Calendars.CALENDAR_DISPLAY_NAME, context.getString(R.string.calendar_display_name))
+                .withValue(CalendarContract.Calendars.CALENDAR_COLOR, PreferencesHelper.getColor(context))
+                .withValue(CalendarContract.Calendars.VISIBLE, 1)
+                .withExpectedCount(1)
+                .build());
+        try {
+            context.getContentResolver().applyBatch(CalendarContract.AUTHORITY, operationList);
+            return true;
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Unable to swap in the rebuilt calendar!", e);
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the shadow calendar and its events, e.g. if it was left behind by a resync which
+     * did not complete.
+     *
+     * @return whether there was a shadow calendar
+     */
+    public static boolean deleteShadowCalendar(Context context) {
+        Uri calendarUri = getBirthdayAdapterUri(context, CalendarContract.Calendars.CONTENT_URI);
+        int deletedRows = context.getContentResolver().delete(calendarUri,
+                CalendarContract.Calendars.NAME + " = ?", new String[]{SHADOW_CALENDAR_NAME});
+        if (deletedRows > 0) {
+            Log.d(Constants.TAG, "Deleted shadow calendar.");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Deletes the birthday calendar and all its events, including a shadow calendar.
      */
     public static void deleteCalendar(Context context) {
         Log.d(Constants.TAG, "Deleting birthday calendar...");
@@ -95,6 +168,10 @@ public class CalendarHelper {
 
         int deletedRows = contentResolver.delete(calendarUri, null, null);
 
+        // All events are gone, the next sync has to recreate the events of all contacts
+        EventsMirrorHelper.clear(context);
+        SyncWatermark.invalidate(context);
+
         if (deletedRows > 0) {
             Log.i(Constants.TAG, "Successfully deleted birthday calendar.");
         } else {
@@ -119,6 +196,10 @@ public class CalendarHelper {
         // A selection is required when using CALLER_IS_SYNCADAPTER=true
         int deletedRows = contentResolver.delete(eventsUri, "1", null);
 
+        // All events are gone, the next sync has to recreate the events of all contacts
+        EventsMirrorHelper.clear(context);
+        SyncWatermark.invalidate(context);
+
         if (deletedRows > 0) {
             Log.i(Constants.TAG, "Successfully cleared " + deletedRows + " old events.");
         } else {
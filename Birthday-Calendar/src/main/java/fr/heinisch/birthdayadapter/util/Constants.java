@@ -23,6 +23,7 @@ package fr.heinisch.birthdayadapter.util;
 import android.content.Context;
 
 import fr.heinisch.birthdayadapter.R;
+import fr.heinisch.birthdayadapter.core.AccountBlacklist;
 
 public class Constants {
     public static final String TAG = "Birthday Adapter";
@@ -35,5 +36,5 @@ public class Constants {
 
     public static final int SYNC_INTERVAL_DAYS = 5;
 
-    public static final String GROUP_TITLE_NO_GROUP = "NO_GROUP";
+    public static final String GROUP_TITLE_NO_GROUP = AccountBlacklist.NO_GROUP;
 }
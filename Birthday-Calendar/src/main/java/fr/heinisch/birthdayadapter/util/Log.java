@@ -27,6 +27,13 @@ import fr.heinisch.birthdayadapter.BuildConfig;
  */
 public final class Log {
 
+    /**
+     * Returns true if verbose messages are logged. Check it before building expensive messages.
+     */
+    public static boolean isVerboseEnabled() {
+        return BuildConfig.DEBUG;
+    }
+
     public static void v(String tag, String msg) {
         if (BuildConfig.DEBUG) {
             android.util.Log.v(tag, msg);
@@ -3,41 +3,15 @@ package fr.heinisch.birthdayadapter.util;
 import android.content.Context;
 import android.content.SharedPreferences;
 
-import androidx.work.Data;
-import androidx.work.OneTimeWorkRequest;
-import androidx.work.WorkManager;
-
 import fr.heinisch.birthdayadapter.R;
-import fr.heinisch.birthdayadapter.service.BirthdayWorker;
-
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import fr.heinisch.birthdayadapter.service.SyncScheduler;
 
 public class MySharedPreferenceChangeListener implements SharedPreferences.OnSharedPreferenceChangeListener {
     private final Context mContext;
-    private final Set<String> mFullResyncKeys;
 
     public MySharedPreferenceChangeListener(Context context) {
         super();
         mContext = context.getApplicationContext();
-
-        // Initialize the set of preference keys that trigger a full resync
-        mFullResyncKeys = new HashSet<>(Arrays.asList(
-                mContext.getString(R.string.pref_title_enable_key),
-                mContext.getString(R.string.pref_title_birthday_without_age_key),
-                mContext.getString(R.string.pref_title_birthday_with_age_key),
-                mContext.getString(R.string.pref_title_anniversary_without_age_key),
-                mContext.getString(R.string.pref_title_anniversary_with_age_key),
-                mContext.getString(R.string.pref_title_other_without_age_key),
-                mContext.getString(R.string.pref_title_other_with_age_key),
-                mContext.getString(R.string.pref_title_custom_without_age_key),
-                mContext.getString(R.string.pref_title_custom_with_age_key),
-                mContext.getString(R.string.pref_jubilee_years_key),
-                mContext.getString(R.string.pref_name_format_key),
-                // mContext.getString(R.string.pref_group_filtering_key),
-                mContext.getString(R.string.pref_reminders_key)
-        ));
     }
 
     @Override
@@ -51,7 +25,8 @@ public class MySharedPreferenceChangeListener implements SharedPreferences.OnSha
         // Special case: Color change is a lightweight action
         String colorKey = mContext.getString(R.string.pref_color_key);
         if (key.equals(colorKey)) {
-            enqueueColorChangeWork();
+            Log.d(Constants.TAG, "Triggering color change for key: " + key);
+            SyncScheduler.getInstance(mContext).request(SyncScheduler.Request.CHANGE_COLOR);
             return;
         }
 
@@ -62,32 +37,28 @@ public class MySharedPreferenceChangeListener implements SharedPreferences.OnSha
             return;
         }
 
-        // Keys that trigger a full resync
-        if (mFullResyncKeys.contains(key)) {
-            Log.d(Constants.TAG, "Triggering full resync for key: " + key);
-            new AccountHelper(mContext).triggerFullResync();
+        // Reminders are updated on the existing events, without scanning the contacts
+        if (key.equals(mContext.getString(R.string.pref_reminders_key))
+                || key.equals(mContext.getString(R.string.pref_reminder_event_types))) {
+            Log.d(Constants.TAG, "Triggering reminder update for key: " + key);
+            new AccountHelper(mContext).updateReminders();
+            return;
+        }
+
+        // Moving the event window only changes the years entering or leaving it, the sync
+        // plans just these years if the other ones are up to date
+        if (key.equals(mContext.getString(R.string.pref_window_past_years_key))
+                || key.equals(mContext.getString(R.string.pref_window_future_years_key))) {
+            Log.d(Constants.TAG, "Triggering differential sync for event window key: " + key);
+            new AccountHelper(mContext).differentialSync();
             return;
         }
 
-        // For all other changes, trigger a normal manual sync
+        // For all other changes, including titles, trigger a normal manual sync. It only updates
+        // the events whose content changed. The setting may change the events of contacts which
+        // have not been modified, so all contacts have to be scanned again.
         Log.d(Constants.TAG, "Triggering differential sync for key: " + key);
+        SyncWatermark.invalidate(mContext);
         new AccountHelper(mContext).differentialSync();
     }
-
-    /**
-     * Enqueues a worker to handle the color change preference.
-     */
-    private void enqueueColorChangeWork() {
-        if (mContext == null) return;
-
-        Data inputData = new Data.Builder()
-                .putString(BirthdayWorker.ACTION, BirthdayWorker.ACTION_CHANGE_COLOR)
-                .build();
-
-        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(BirthdayWorker.class)
-                .setInputData(inputData)
-                .build();
-
-        WorkManager.getInstance(mContext).enqueue(workRequest);
-    }
 }
@@ -180,6 +180,24 @@ public class PreferencesHelper {
                 context.getResources().getBoolean(R.bool.pref_name_format_def));
     }
 
+    public static boolean getRecurringEvents(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getBoolean(context.getString(R.string.pref_recurring_events_key),
+                context.getResources().getBoolean(R.bool.pref_recurring_events_def));
+    }
+
+    public static int getWindowPastYears(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getInt(context.getString(R.string.pref_window_past_years_key),
+                context.getResources().getInteger(R.integer.pref_window_past_years_def));
+    }
+
+    public static int getWindowFutureYears(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getInt(context.getString(R.string.pref_window_future_years_key),
+                context.getResources().getInteger(R.integer.pref_window_future_years_def));
+    }
+
     public static String getJubileeYears(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getString(context.getString(R.string.pref_jubilee_years_key),
@@ -0,0 +1,90 @@
+package fr.heinisch.birthdayadapter.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.provider.ContactsContract;
+
+/**
+ * Keeps track of the point in time up to which contact changes have been synchronized into the
+ * calendar. Syncs started after a valid watermark only need to look at contacts that were changed
+ * or deleted since then.
+ */
+public class SyncWatermark {
+
+    public static final String SYNC_STATUS_PREFS_NAME = "sync_status_prefs";
+
+    private static final String KEY_CONTACTS_WATERMARK = "contacts_watermark";
+    // Written by older versions, which only knew the current year of the window
+    private static final String KEY_WINDOW_YEAR = "contacts_watermark_window_year";
+    private static final String KEY_WINDOW_FIRST_YEAR = "contacts_watermark_window_first_year";
+    private static final String KEY_WINDOW_LAST_YEAR = "contacts_watermark_window_last_year";
+
+    /**
+     * Returns the watermark of the last complete sync or 0 if the next sync has to scan all
+     * contacts. The events of the watermark are only up to date for the years of its window, see
+     * {@link #getWindow}.
+     *
+     * @param now the start time of the upcoming sync
+     */
+    public static long getValidWatermark(Context context, long now) {
+        SharedPreferences prefs = getPrefs(context);
+        long watermark = prefs.getLong(KEY_CONTACTS_WATERMARK, 0);
+        if (watermark <= 0 || watermark > now || getWindow(context) == null) {
+            return 0;
+        }
+
+        // The contacts provider only keeps deleted contacts for a limited time, older deletions would be missed
+        if (now - watermark >= ContactsContract.DeletedContacts.DAYS_KEPT_MILLISECONDS) {
+            return 0;
+        }
+
+        return watermark;
+    }
+
+    /**
+     * Returns the first and last year of the event window of the watermark, or null if it is
+     * unknown.
+     */
+    public static int[] getWindow(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        if (!prefs.contains(KEY_WINDOW_FIRST_YEAR) || !prefs.contains(KEY_WINDOW_LAST_YEAR)) {
+            return null;
+        }
+        return new int[]{prefs.getInt(KEY_WINDOW_FIRST_YEAR, 0), prefs.getInt(KEY_WINDOW_LAST_YEAR, 0)};
+    }
+
+    /**
+     * Stores the watermark after a sync has successfully written all its changes.
+     *
+     * @param watermark the start time of the sync, changes after that are picked up by the next sync
+     * @param firstYear first year of the event window the calendar is up to date for
+     * @param lastYear  last year of the event window
+     */
+    public static void set(Context context, long watermark, int firstYear, int lastYear) {
+        getPrefs(context).edit()
+                .putLong(KEY_CONTACTS_WATERMARK, watermark)
+                .putInt(KEY_WINDOW_FIRST_YEAR, firstYear)
+                .putInt(KEY_WINDOW_LAST_YEAR, lastYear)
+                .remove(KEY_WINDOW_YEAR)
+                .apply();
+    }
+
+    /**
+     * Forces the next sync to scan all contacts, e.g. after settings changed which influence the
+     * events of unchanged contacts or after events were removed from the calendar.
+     */
+    public static void invalidate(Context context) {
+        Log.d(Constants.TAG, "Invalidating contacts watermark, next sync will scan all contacts.");
+        getPrefs(context).edit()
+                .remove(KEY_CONTACTS_WATERMARK)
+                .remove(KEY_WINDOW_YEAR)
+                .remove(KEY_WINDOW_FIRST_YEAR)
+                .remove(KEY_WINDOW_LAST_YEAR)
+                .apply();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        // Stored next to the last sync timestamp to avoid triggering the settings listeners
+        return context.getSharedPreferences(SYNC_STATUS_PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
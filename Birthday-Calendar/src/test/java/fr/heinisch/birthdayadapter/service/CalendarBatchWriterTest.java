@@ -0,0 +1,40 @@
+package fr.heinisch.birthdayadapter.service;
+
+import android.content.OperationApplicationException;
+import android.database.sqlite.SQLiteException;
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+
+import org.junit.Test;
+
+import fr.heinisch.birthdayadapter.core.BatchBisection;
+
+import static org.junit.Assert.assertEquals;
+
+public class CalendarBatchWriterTest {
+
+    /**
+     * Rolled back or never sent batches are split and retried, batches which may have been
+     * committed are not.
+     */
+    @Test
+    public void failuresMapToOutcomes() {
+        assertEquals(BatchBisection.Outcome.REJECTED,
+                CalendarBatchWriter.outcomeOf(new OperationApplicationException("expected count 1, got 0")));
+        assertEquals(BatchBisection.Outcome.REJECTED,
+                CalendarBatchWriter.outcomeOf(new OperationApplicationException(
+                        "Too many content provider operations between yield points", 0)));
+        assertEquals(BatchBisection.Outcome.REJECTED,
+                CalendarBatchWriter.outcomeOf(new TransactionTooLargeException()));
+        assertEquals(BatchBisection.Outcome.REJECTED,
+                CalendarBatchWriter.outcomeOf(new SQLiteException("constraint failed")));
+        assertEquals(BatchBisection.Outcome.REJECTED,
+                CalendarBatchWriter.outcomeOf(new IllegalArgumentException("unknown column")));
+
+        assertEquals(BatchBisection.Outcome.UNKNOWN,
+                CalendarBatchWriter.outcomeOf(new DeadObjectException()));
+        assertEquals(BatchBisection.Outcome.UNKNOWN,
+                CalendarBatchWriter.outcomeOf(new RemoteException()));
+    }
+}
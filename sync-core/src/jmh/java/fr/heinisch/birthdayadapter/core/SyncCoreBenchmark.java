@@ -0,0 +1,208 @@
+package fr.heinisch.birthdayadapter.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the sync stages on synthetic address books. Every invocation processes all events
+ * of the address book, like a full sync does, so the score is in syncs per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class SyncCoreBenchmark {
+
+    // Same window as the sync: three years back and five years ahead
+    private static final int CURRENT_YEAR = 2026;
+    private static final int FIRST_YEAR = CURRENT_YEAR - 3;
+    private static final int LAST_YEAR = CURRENT_YEAR + 5;
+
+    @Param({"1000", "10000", "100000"})
+    public int contacts;
+
+    private SyntheticContacts.Event[] mEvents;
+    private AccountBlacklist mBlacklist;
+    private GroupExclusionIndex mGroupExclusion;
+    private HashMap<String, Integer> mExistingUids;
+    private TitleTemplate mTemplateWithAge;
+    private TitleTemplate mTemplateWithoutAge;
+
+    // Existing and planned UIDs in the order of the merge diff, sorted like the sync reads them
+    private List<Map.Entry<String, Integer>> mSortedExistingUids;
+    private String[] mSortedPlannedUids;
+
+    // Copy of mExistingUids for the diff, which consumes the existing events
+    private HashMap<String, Integer> mDiffInput;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mEvents = SyntheticContacts.generate(contacts, 42);
+        mBlacklist = SyntheticContacts.blacklist(true);
+        mGroupExclusion = SyntheticContacts.groupExclusion(mEvents, mBlacklist);
+        mExistingUids = SyntheticContacts.existingUids(mEvents, FIRST_YEAR, LAST_YEAR, 43);
+        mTemplateWithAge = TitleTemplate.compile("{NAME} ({AGE})");
+        mTemplateWithoutAge = TitleTemplate.compile("{NAME}");
+
+        mSortedExistingUids = new ArrayList<>(mExistingUids.entrySet());
+        mSortedExistingUids.sort((a, b) -> MergeDiff.compare(a.getKey(), b.getKey()));
+        ArrayList<String> plannedUids = new ArrayList<>();
+        StringBuilder builder = new StringBuilder();
+        for (SyntheticContacts.Event event : mEvents) {
+            int prefixLength = buildUidPrefix(builder, event);
+            for (int year = FIRST_YEAR; year <= LAST_YEAR; year++) {
+                plannedUids.add(EventUid.forYear(builder, prefixLength, year));
+            }
+        }
+        mSortedPlannedUids = plannedUids.toArray(new String[0]);
+        Arrays.sort(mSortedPlannedUids, MergeDiff::compare);
+    }
+
+    @Setup(Level.Invocation)
+    public void copyExistingUids() {
+        mDiffInput = new HashMap<>(mExistingUids);
+    }
+
+    @Benchmark
+    public void parseDates(Blackhole blackhole) {
+        // A new parser per sync, so its memo starts empty like in the app
+        ContactDateParser parser = new ContactDateParser(false);
+        for (SyntheticContacts.Event event : mEvents) {
+            blackhole.consume(parser.parse(event.startDate));
+        }
+    }
+
+    @Benchmark
+    public void buildUids(Blackhole blackhole) {
+        StringBuilder builder = new StringBuilder();
+        for (SyntheticContacts.Event event : mEvents) {
+            int prefixLength = buildUidPrefix(builder, event);
+            for (int year = FIRST_YEAR; year <= LAST_YEAR; year++) {
+                blackhole.consume(EventUid.forYear(builder, prefixLength, year));
+            }
+        }
+    }
+
+    @Benchmark
+    public void evaluateBlacklist(Blackhole blackhole) {
+        for (SyntheticContacts.Event event : mEvents) {
+            blackhole.consume(mBlacklist.isBlacklisted(event.accountType, event.accountName, event.groups));
+        }
+    }
+
+    /**
+     * Like {@link #evaluateBlacklist}, with the group memberships evaluated during setup like the
+     * sync does before reading the events.
+     */
+    @Benchmark
+    public void evaluateGroupExclusion(Blackhole blackhole) {
+        for (SyntheticContacts.Event event : mEvents) {
+            int accountId = mBlacklist.getAccountId(event.accountType, event.accountName);
+            blackhole.consume(mGroupExclusion.isBlacklisted(event.contactId, accountId));
+        }
+    }
+
+    @Benchmark
+    public void renderTitles(Blackhole blackhole) {
+        StringBuilder builder = new StringBuilder();
+        for (SyntheticContacts.Event event : mEvents) {
+            TitleTemplate.Bound title = mTemplateWithAge.bind(event.displayName, null, null, true, builder);
+            for (int year = FIRST_YEAR; year <= LAST_YEAR; year++) {
+                blackhole.consume(title.render(null, year - 1970, builder));
+            }
+        }
+    }
+
+    @Benchmark
+    public void diff(Blackhole blackhole) {
+        EventDiff<Integer> diff = new EventDiff<>(mDiffInput);
+        StringBuilder builder = new StringBuilder();
+        for (SyntheticContacts.Event event : mEvents) {
+            int prefixLength = buildUidPrefix(builder, event);
+            for (int year = FIRST_YEAR; year <= LAST_YEAR; year++) {
+                blackhole.consume(diff.match(EventUid.forYear(builder, prefixLength, year)));
+            }
+        }
+        blackhole.consume(diff.getUnmatched().size());
+    }
+
+    /**
+     * Like {@link #diff}, but as a merge join of the sorted existing and planned UIDs. The UIDs are
+     * built and sorted during setup.
+     */
+    @Benchmark
+    public void mergeDiff(Blackhole blackhole) {
+        int[] unmatched = new int[1];
+        MergeDiff<Integer> diff = new MergeDiff<>(mSortedExistingUids.iterator(), (uid, existing) -> unmatched[0]++);
+        for (String uid : mSortedPlannedUids) {
+            blackhole.consume(diff.match(uid));
+        }
+        diff.finish();
+        blackhole.consume(unmatched[0]);
+    }
+
+    /**
+     * All stages together, in the order of the sync.
+     */
+    @Benchmark
+    public void planSync(Blackhole blackhole) {
+        ContactDateParser parser = new ContactDateParser(false);
+        EventDiff<Integer> diff = new EventDiff<>(mDiffInput);
+        StringBuilder uidBuilder = new StringBuilder();
+        StringBuilder titleBuilder = new StringBuilder();
+        for (SyntheticContacts.Event event : mEvents) {
+            if (mBlacklist.isBlacklisted(event.accountType, event.accountName, event.groups)) {
+                continue;
+            }
+            int date = parser.parse(event.startDate);
+            if (date == ContactDateParser.INVALID) {
+                continue;
+            }
+            int eventYear = ContactDateParser.year(date);
+            boolean hasYear = eventYear >= 1800;
+            int prefixLength = buildUidPrefix(uidBuilder, event);
+            TitleTemplate.Bound titleWithAge = null;
+            String titleWithoutAge = null;
+            for (int year = Math.max(FIRST_YEAR, hasYear ? eventYear : FIRST_YEAR); year <= LAST_YEAR; year++) {
+                if (diff.match(EventUid.forYear(uidBuilder, prefixLength, year)) != null) {
+                    continue;
+                }
+                String title;
+                if (hasYear) {
+                    if (titleWithAge == null) {
+                        titleWithAge = mTemplateWithAge.bind(event.displayName, null, null, true, titleBuilder);
+                    }
+                    title = titleWithAge.render(null, year - eventYear, titleBuilder);
+                } else {
+                    if (titleWithoutAge == null) {
+                        titleWithoutAge = mTemplateWithoutAge.bind(event.displayName, null, null, false, titleBuilder)
+                                .render(null, 0, titleBuilder);
+                    }
+                    title = titleWithoutAge;
+                }
+                long dtstart = ContactDateParser.daysFromCivil(year, ContactDateParser.month(date), ContactDateParser.day(date));
+                blackhole.consume(EventContent.fingerprint(title, dtstart));
+            }
+        }
+        blackhole.consume(diff.getUnmatched().size());
+    }
+
+    private static int buildUidPrefix(StringBuilder builder, SyntheticContacts.Event event) {
+        return EventUid.buildPrefix(builder, event.lookupKey, event.startDate, event.type,
+                event.type == SyntheticContacts.TYPE_CUSTOM ? event.label : null);
+    }
+}
@@ -0,0 +1,162 @@
+package fr.heinisch.birthdayadapter.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Reproducible address book for the benchmarks, shaped like the event rows the sync reads from
+ * the contacts provider.
+ */
+final class SyntheticContacts {
+
+    // Values of ContactsContract.CommonDataKinds.Event.TYPE_*
+    static final int TYPE_CUSTOM = 0;
+    static final int TYPE_ANNIVERSARY = 1;
+    static final int TYPE_BIRTHDAY = 3;
+
+    static final String[] ACCOUNT_TYPES = {"com.google", "com.google", "org.dmfs.carddav.account", "com.whatsapp"};
+    static final String[] ACCOUNT_NAMES = {"alice@example.com", "work@example.com", "nextcloud", "WhatsApp"};
+    static final String[] GROUPS = {"Family", "Friends", "Coworkers", "Starred"};
+
+    private static final String[] FIRST_NAMES = {"Anna", "Ben", "Chloé", "David", "Emma", "Felix", "Greta", "Hugo",
+            "Ines", "Jonas", "Klara", "Lukas", "Mia", "Noah", "Olivia", "Paul"};
+    private static final String[] LAST_NAMES = {"Schmidt", "Müller", "Martin", "Bernard", "Rossi", "García",
+            "Smith", "Johnson", "Nowak", "Novák", "Kowalski", "Jensen"};
+
+    static final class Event {
+        final long contactId;
+        final String lookupKey;
+        final String displayName;
+        final String startDate;
+        final int type;
+        final String label;
+        final String accountType;
+        final String accountName;
+        final List<String> groups;
+
+        Event(long contactId, String lookupKey, String displayName, String startDate, int type, String label,
+              String accountType, String accountName, List<String> groups) {
+            this.contactId = contactId;
+            this.lookupKey = lookupKey;
+            this.displayName = displayName;
+            this.startDate = startDate;
+            this.type = type;
+            this.label = label;
+            this.accountType = accountType;
+            this.accountName = accountName;
+            this.groups = groups;
+        }
+    }
+
+    private SyntheticContacts() {
+    }
+
+    /**
+     * Generates the events of the given number of contacts. Every contact has a birthday, some
+     * also an anniversary or a custom event, in the date formats found in real address books.
+     */
+    static Event[] generate(int contactCount, long seed) {
+        Random random = new Random(seed);
+        ArrayList<Event> events = new ArrayList<>(contactCount * 3 / 2);
+        for (int contactId = 1; contactId <= contactCount; contactId++) {
+            String displayName = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                    + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+            String lookupKey = "0r" + contactId + "-" + Long.toHexString(random.nextLong());
+            int account = random.nextInt(ACCOUNT_TYPES.length);
+            List<String> groups = randomGroups(random);
+
+            events.add(new Event(contactId, lookupKey, displayName, randomDate(random), TYPE_BIRTHDAY, null,
+                    ACCOUNT_TYPES[account], ACCOUNT_NAMES[account], groups));
+            if (random.nextInt(5) == 0) {
+                events.add(new Event(contactId, lookupKey, displayName, randomDate(random), TYPE_ANNIVERSARY, null,
+                        ACCOUNT_TYPES[account], ACCOUNT_NAMES[account], groups));
+            }
+            if (random.nextInt(20) == 0) {
+                events.add(new Event(contactId, lookupKey, displayName, randomDate(random), TYPE_CUSTOM, "Name day",
+                        ACCOUNT_TYPES[account], ACCOUNT_NAMES[account], groups));
+            }
+        }
+        return events.toArray(new Event[0]);
+    }
+
+    /**
+     * Blacklists one account completely and two groups of another one.
+     */
+    static AccountBlacklist blacklist(boolean groupFilteringEnabled) {
+        AccountBlacklist blacklist = new AccountBlacklist(groupFilteringEnabled);
+        blacklist.add(ACCOUNT_TYPES[3], ACCOUNT_NAMES[3], null);
+        blacklist.add(ACCOUNT_TYPES[1], ACCOUNT_NAMES[1], GROUPS[2]);
+        blacklist.add(ACCOUNT_TYPES[1], ACCOUNT_NAMES[1], AccountBlacklist.NO_GROUP);
+        return blacklist;
+    }
+
+    /**
+     * Indexes the group memberships of the events, with the contact id as raw contact id and the
+     * position of the group title as group id.
+     */
+    static GroupExclusionIndex groupExclusion(Event[] events, AccountBlacklist blacklist) {
+        GroupExclusionIndex groupExclusion = new GroupExclusionIndex(blacklist);
+        for (int groupId = 0; groupId < GROUPS.length; groupId++) {
+            groupExclusion.addGroup(groupId, GROUPS[groupId]);
+        }
+        for (Event event : events) {
+            int accountId = blacklist.getAccountId(event.accountType, event.accountName);
+            for (String group : event.groups) {
+                groupExclusion.addMembership(event.contactId, accountId, Arrays.asList(GROUPS).indexOf(group));
+            }
+        }
+        return groupExclusion;
+    }
+
+    /**
+     * Returns the UIDs of the events a previous sync would have written for the given window,
+     * with a small share of the contacts changed since then, as existing events for the diff.
+     */
+    static HashMap<String, Integer> existingUids(Event[] events, int firstYear, int lastYear, long seed) {
+        Random random = new Random(seed);
+        HashMap<String, Integer> uids = new HashMap<>();
+        StringBuilder builder = new StringBuilder();
+        for (Event event : events) {
+            // Events whose date was edited get new UIDs, their old events are outdated
+            String startDate = random.nextInt(50) == 0 ? "--01-01" : event.startDate;
+            int prefixLength = EventUid.buildPrefix(builder, event.lookupKey, startDate, event.type,
+                    event.type == TYPE_CUSTOM ? event.label : null);
+            for (int year = firstYear; year <= lastYear; year++) {
+                uids.put(EventUid.forYear(builder, prefixLength, year), uids.size());
+            }
+        }
+        return uids;
+    }
+
+    private static String randomDate(Random random) {
+        int year = 1940 + random.nextInt(80);
+        int month = 1 + random.nextInt(12);
+        int day = 1 + random.nextInt(28);
+        switch (random.nextInt(10)) {
+            case 0:
+                return String.format(Locale.ROOT, "--%02d-%02d", month, day);
+            case 1:
+                return String.format(Locale.ROOT, "%02d/%02d/%d", month, day, year);
+            case 2:
+                return String.format(Locale.ROOT, "%d%02d%02d", year, month, day);
+            default:
+                return String.format(Locale.ROOT, "%d-%02d-%02d", year, month, day);
+        }
+    }
+
+    private static List<String> randomGroups(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return Collections.emptyList();
+            case 1:
+                return Collections.singletonList(GROUPS[random.nextInt(GROUPS.length)]);
+            default:
+                return Arrays.asList(GROUPS[random.nextInt(GROUPS.length)], GROUPS[random.nextInt(GROUPS.length)]);
+        }
+    }
+}
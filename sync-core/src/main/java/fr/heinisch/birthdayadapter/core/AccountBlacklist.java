@@ -0,0 +1,153 @@
+package fr.heinisch.birthdayadapter.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Decides which contacts are excluded from the sync. Either a whole account is blacklisted, or,
+ * with group filtering, single groups of an account.
+ * <p>
+ * Accounts are interned to ids when they are added, so the accounts of the rows read by a sync
+ * can be resolved once and checked by id.
+ */
+public final class AccountBlacklist {
+
+    /**
+     * Group title standing for the contacts of an account which are in no group.
+     */
+    public static final String NO_GROUP = "NO_GROUP";
+
+    /**
+     * Id of all accounts without blacklisted groups.
+     */
+    public static final int UNLISTED = -1;
+
+    // Ids of the accounts with blacklisted groups, by account type and name
+    private final HashMap<String, HashMap<String, Integer>> mAccountIds = new HashMap<>();
+    // Account type and name by id
+    private final ArrayList<String[]> mAccounts = new ArrayList<>();
+    // Blacklisted groups by account id, a null group blacklists the whole account
+    private final ArrayList<HashSet<String>> mGroups = new ArrayList<>();
+    private final boolean mGroupFilteringEnabled;
+
+    public AccountBlacklist(boolean groupFilteringEnabled) {
+        mGroupFilteringEnabled = groupFilteringEnabled;
+    }
+
+    /**
+     * @param group title of the blacklisted group, null to blacklist the whole account
+     */
+    public void add(String accountType, String accountName, String group) {
+        HashMap<String, Integer> accounts = mAccountIds.computeIfAbsent(accountType, k -> new HashMap<>());
+        Integer accountId = accounts.get(accountName);
+        if (accountId == null) {
+            accountId = mGroups.size();
+            accounts.put(accountName, accountId);
+            mAccounts.add(new String[]{accountType, accountName});
+            mGroups.add(new HashSet<>());
+        }
+        mGroups.get(accountId).add(group);
+    }
+
+    /**
+     * Returns the id of the account, or {@link #UNLISTED} if none of its groups is blacklisted.
+     */
+    public int getAccountId(String accountType, String accountName) {
+        if (accountType == null || accountType.isEmpty() || accountName == null || accountName.isEmpty()) {
+            return UNLISTED;
+        }
+        HashMap<String, Integer> accounts = mAccountIds.get(accountType);
+        Integer accountId = accounts != null ? accounts.get(accountName) : null;
+        return accountId != null ? accountId : UNLISTED;
+    }
+
+    /**
+     * Returns the type and name of the accounts which are blacklisted as a whole, so their rows
+     * can be excluded by the query instead of being read and dropped.
+     */
+    public List<String[]> getBlacklistedAccounts() {
+        List<String[]> blacklistedAccounts = new ArrayList<>();
+        for (int accountId = 0; accountId < mGroups.size(); accountId++) {
+            String[] account = mAccounts.get(accountId);
+            if (mGroups.get(accountId).contains(null) && getAccountId(account[0], account[1]) != UNLISTED) {
+                blacklistedAccounts.add(account);
+            }
+        }
+        return blacklistedAccounts;
+    }
+
+    /**
+     * Returns whether a group of the account is blacklisted, either by itself or together with
+     * the whole account.
+     *
+     * @param accountId id of the account returned by {@link #getAccountId}
+     */
+    public boolean isGroupBlacklisted(int accountId, String groupTitle) {
+        if (accountId == UNLISTED) {
+            return false;
+        }
+        HashSet<String> blacklistedGroups = mGroups.get(accountId);
+        return blacklistedGroups.contains(null) || mGroupFilteringEnabled && blacklistedGroups.contains(groupTitle);
+    }
+
+    /**
+     * Returns true if {@link #isBlacklisted} needs the groups of the contacts, i.e. if a group of
+     * an otherwise synced account is blacklisted.
+     */
+    public boolean needsGroups() {
+        if (!mGroupFilteringEnabled) {
+            return false;
+        }
+        for (HashSet<String> groups : mGroups) {
+            if (!groups.contains(null) && !groups.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the raw contact is excluded from the sync.
+     *
+     * @param contactGroups titles of the groups of the raw contact, null or empty if it is in none
+     */
+    public boolean isBlacklisted(String accountType, String accountName, List<String> contactGroups) {
+        return isBlacklisted(getAccountId(accountType, accountName), contactGroups);
+    }
+
+    /**
+     * Like {@link #isBlacklisted(String, String, List)}, for an account id returned by
+     * {@link #getAccountId}.
+     */
+    public boolean isBlacklisted(int accountId, List<String> contactGroups) {
+        if (accountId == UNLISTED) {
+            return false;
+        }
+        HashSet<String> blacklistedGroups = mGroups.get(accountId);
+
+        // Check for full account blacklist first (applies always)
+        if (blacklistedGroups.contains(null)) {
+            return true;
+        }
+
+        if (!mGroupFilteringEnabled || blacklistedGroups.isEmpty()) {
+            return false;
+        }
+
+        // If not fully blacklisted, check group-based blacklist (only if feature is enabled)
+        if (contactGroups != null && !contactGroups.isEmpty()) {
+            // A contact is only blacklisted if ALL of its groups are blacklisted
+            for (String groupTitle : contactGroups) {
+                if (!blacklistedGroups.contains(groupTitle)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Contact has no group, check if "No Group" is blacklisted
+        return blacklistedGroups.contains(NO_GROUP);
+    }
+}
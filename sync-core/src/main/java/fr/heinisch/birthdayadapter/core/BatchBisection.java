@@ -0,0 +1,76 @@
+package fr.heinisch.birthdayadapter.core;
+
+import java.util.List;
+
+/**
+ * Applies units of work as one batch, and isolates the units a batch fails on by splitting it in
+ * halves until the failing unit is applied on its own.
+ * <p>
+ * Splitting only retries parts of a batch which were not written, so every batch has to be
+ * applied in a single transaction: a rejected batch must not have committed any of its units. A
+ * batch whose outcome is unknown is not retried, as that could apply its units twice.
+ */
+public final class BatchBisection {
+
+    public enum Outcome {
+        // All units were written
+        COMMITTED,
+        // Nothing was written, the batch can be split and retried
+        REJECTED,
+        // The batch may or may not have been written
+        UNKNOWN
+    }
+
+    /**
+     * Writes the batches.
+     *
+     * @param <U> a unit of work, applied completely or not at all
+     */
+    public interface Target<U> {
+        /**
+         * Applies the units in one transaction and reports the applied units itself.
+         *
+         * @param isRetry whether the units are part of a batch which failed before
+         */
+        Outcome apply(List<U> units, boolean isRetry);
+
+        /**
+         * The unit could not be written, even on its own.
+         */
+        void onRejected(U unit);
+
+        /**
+         * The units may have been written, they are not retried.
+         */
+        void onUnknown(List<U> units);
+    }
+
+    private BatchBisection() {
+    }
+
+    public static <U> void apply(List<U> units, Target<U> target) {
+        apply(units, target, false);
+    }
+
+    private static <U> void apply(List<U> units, Target<U> target, boolean isRetry) {
+        if (units.isEmpty()) {
+            return;
+        }
+        switch (target.apply(units, isRetry)) {
+            case COMMITTED:
+                return;
+            case UNKNOWN:
+                target.onUnknown(units);
+                return;
+            case REJECTED:
+                if (units.size() == 1) {
+                    target.onRejected(units.get(0));
+                } else {
+                    int middle = units.size() / 2;
+                    apply(units.subList(0, middle), target, true);
+                    apply(units.subList(middle, units.size()), target, true);
+                }
+                return;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package fr.heinisch.birthdayadapter.core;
+
+/**
+ * Operation limit of the batches written to a content provider, which adapts to the measured
+ * latency of the batches.
+ * <p>
+ * The limit stays below the number of operations SQLiteContentProvider allows between two yield
+ * points. Batches are written without yield points, so that number applies to the whole batch,
+ * and a batch reaching it is rejected.
+ */
+public final class BatchSizeLimit {
+
+    // SQLiteContentProvider.applyBatch rejects batches with more operations between yield points
+    public static final int PROVIDER_MAX_OPERATIONS = 500;
+
+    public static final int MIN_OPERATIONS = 16;
+    public static final int INITIAL_OPERATIONS = 100;
+    public static final int MAX_OPERATIONS = 400;
+
+    private final long mTargetLatencyMs;
+    private int mMaxOperations = INITIAL_OPERATIONS;
+
+    /**
+     * @param targetLatencyMs batches taking longer than this block the provider noticeably
+     */
+    public BatchSizeLimit(long targetLatencyMs) {
+        mTargetLatencyMs = targetLatencyMs;
+    }
+
+    public int get() {
+        return mMaxOperations;
+    }
+
+    /**
+     * Returns whether a unit of operations can be added to a batch without exceeding the limit.
+     * An empty batch takes any unit, units are never split.
+     */
+    public boolean fits(int batchOperations, int unitOperations) {
+        return batchOperations == 0 || batchOperations + unitOperations <= mMaxOperations;
+    }
+
+    /**
+     * Adapts the limit to a batch which has been applied on its first attempt.
+     */
+    public void onApplied(int operationCount, long elapsedMs) {
+        // Only full batches say something about the limit
+        if (operationCount < mMaxOperations / 2) {
+            return;
+        }
+        if (elapsedMs > mTargetLatencyMs) {
+            mMaxOperations = Math.max(MIN_OPERATIONS, mMaxOperations / 2);
+        } else if (elapsedMs < mTargetLatencyMs / 2) {
+            mMaxOperations = Math.min(MAX_OPERATIONS, mMaxOperations * 3 / 2);
+        }
+    }
+
+    /**
+     * Lowers the limit after a batch was rejected.
+     */
+    public void onRejected() {
+        mMaxOperations = Math.max(MIN_OPERATIONS, mMaxOperations / 2);
+    }
+}
@@ -0,0 +1,278 @@
+package fr.heinisch.birthdayadapter.core;
+
+import java.util.HashMap;
+
+/**
+ * Parses the date strings of contact events into year, month and day.
+ * <p>
+ * Accepted are the formats written by the common contacts apps: "yyyy-MM-dd", "--MM-dd" (no year),
+ * "yyyyMMdd", "MM/dd/yyyy" and "MM/dd", or with the "dd/MM" preference "dd.MM.yyyy", "yyyy.MM.dd",
+ * "dd/MM/yyyy" and "dd/MM" instead of the US formats. A plain number is interpreted as a timestamp
+ * in milliseconds. Out of range months and days roll over into the following months like they did
+ * with the lenient SimpleDateFormat.
+ * <p>
+ * Dates are returned packed into an int, see {@link #year}, {@link #month} and {@link #day}.
+ * Parsing itself does not allocate; results are memoized per string because most address books
+ * only use a few distinct date strings.
+ */
+public final class ContactDateParser {
+
+    /**
+     * Returned for strings which are not a date.
+     */
+    public static final int INVALID = -1;
+
+    /**
+     * Year of dates given without one.
+     */
+    public static final int NO_YEAR = 0;
+
+    private static final int MAX_YEAR = 9999;
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private final boolean mPreferDDSlashMM;
+    private final HashMap<String, Integer> mMemo = new HashMap<>();
+
+    // State of the current match, kept in fields to avoid allocations
+    private int mNumber;
+    private int mPos;
+    private int mYear;
+    private int mMonth;
+    private int mDay;
+
+    /**
+     * @param preferDDSlashMM read ambiguous dates as day before month
+     */
+    public ContactDateParser(boolean preferDDSlashMM) {
+        mPreferDDSlashMM = preferDDSlashMM;
+    }
+
+    public static int year(int packedDate) {
+        return packedDate / 10000;
+    }
+
+    public static int month(int packedDate) {
+        return packedDate / 100 % 100;
+    }
+
+    public static int day(int packedDate) {
+        return packedDate % 100;
+    }
+
+    /**
+     * Returns the packed date or {@link #INVALID}.
+     */
+    public int parse(String input) {
+        if (input == null || input.isEmpty()) {
+            return INVALID;
+        }
+        Integer memo = mMemo.get(input);
+        if (memo != null) {
+            return memo;
+        }
+        int result = parseUncached(input);
+        mMemo.put(input, result);
+        return result;
+    }
+
+    private int parseUncached(String s) {
+        // yyyy-MM-dd, trailing characters like a time are ignored
+        if (matchNumber(s, 0) && matchLiteral(s, '-')) {
+            int year = mNumber;
+            if (matchNumber(s, mPos) && matchLiteral(s, '-')) {
+                int month = mNumber;
+                if (matchNumber(s, mPos)) {
+                    return pack(year, month, mNumber, false);
+                }
+            }
+        }
+
+        // --MM-dd
+        if (s.startsWith("--") && matchNumber(s, 2) && matchLiteral(s, '-')) {
+            int month = mNumber;
+            if (matchNumber(s, mPos)) {
+                return pack(NO_YEAR, month, mNumber, true);
+            }
+        }
+
+        // yyyyMMdd
+        if (s.length() == 8 && countDigits(s, 0) == 8) {
+            return pack(digits(s, 0, 4), digits(s, 4, 6), digits(s, 6, 8), false);
+        }
+
+        if (mPreferDDSlashMM) {
+            // dd.MM.yyyy or yyyy.MM.dd, told apart by the length of the first number
+            int firstDigits = countDigits(s, 0);
+            if (matchDotted(s)) {
+                return firstDigits == 4 ? pack(mYear, mMonth, mDay, false) : pack(mDay, mMonth, mYear, false);
+            }
+            // dd/MM/yyyy or dd/MM
+            if (matchSlashed(s)) {
+                return mYear == NO_YEAR ? pack(NO_YEAR, mDay, mMonth, true) : pack(mYear, mDay, mMonth, false);
+            }
+        } else {
+            // MM/dd/yyyy or MM/dd
+            if (matchSlashed(s)) {
+                return mYear == NO_YEAR ? pack(NO_YEAR, mMonth, mDay, true) : pack(mYear, mMonth, mDay, false);
+            }
+        }
+
+        // If all other formats fail, try to parse as a raw timestamp
+        return parseTimestamp(s);
+    }
+
+    /**
+     * Matches "a.b.c", stores a, b and c in mYear, mMonth and mDay.
+     */
+    private boolean matchDotted(String s) {
+        if (!matchNumber(s, 0) || !matchLiteral(s, '.')) {
+            return false;
+        }
+        int first = mNumber;
+        if (!matchNumber(s, mPos) || !matchLiteral(s, '.')) {
+            return false;
+        }
+        int second = mNumber;
+        if (!matchNumber(s, mPos)) {
+            return false;
+        }
+        int third = mNumber;
+        mYear = first;
+        mMonth = second;
+        mDay = third;
+        return true;
+    }
+
+    /**
+     * Matches "a/b" optionally followed by "/year". Stores a in mMonth, b in mDay and the year in
+     * mYear, which is {@link #NO_YEAR} if missing.
+     */
+    private boolean matchSlashed(String s) {
+        if (!matchNumber(s, 0) || !matchLiteral(s, '/')) {
+            return false;
+        }
+        int first = mNumber;
+        if (!matchNumber(s, mPos)) {
+            return false;
+        }
+        int second = mNumber;
+        int year = NO_YEAR;
+        if (matchLiteral(s, '/')) {
+            if (!matchNumber(s, mPos)) {
+                return false;
+            }
+            year = mNumber;
+        }
+        mMonth = first;
+        mDay = second;
+        mYear = year;
+        return true;
+    }
+
+    /**
+     * Reads an unsigned number starting at the given position into mNumber and moves mPos behind it.
+     */
+    private boolean matchNumber(String s, int start) {
+        int digits = countDigits(s, start);
+        // More digits cannot be a valid date field
+        if (digits == 0 || digits > 9) {
+            return false;
+        }
+        mNumber = digits(s, start, start + digits);
+        mPos = start + digits;
+        return true;
+    }
+
+    private boolean matchLiteral(String s, char literal) {
+        if (mPos < s.length() && s.charAt(mPos) == literal) {
+            mPos++;
+            return true;
+        }
+        return false;
+    }
+
+    private static int countDigits(String s, int start) {
+        int i = start;
+        while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+            i++;
+        }
+        return i - start;
+    }
+
+    private static int digits(String s, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (s.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    private static int parseTimestamp(String s) {
+        int start = s.charAt(0) == '-' || s.charAt(0) == '+' ? 1 : 0;
+        int digits = countDigits(s, start);
+        // Long.parseLong accepts at most 18 digits without risking an overflow
+        if (digits == 0 || start + digits != s.length() || digits > 18) {
+            return INVALID;
+        }
+        long millis = 0;
+        for (int i = start; i < s.length(); i++) {
+            millis = millis * 10 + (s.charAt(i) - '0');
+        }
+        if (s.charAt(0) == '-') {
+            millis = -millis;
+        }
+        return packEpochDay(Math.floorDiv(millis, MILLIS_PER_DAY), false);
+    }
+
+    /**
+     * Packs the date, rolling over out of range months and days.
+     *
+     * @param noYear keep the year {@link #NO_YEAR}, only month and day are meaningful
+     */
+    private static int pack(int year, int month, int day, boolean noYear) {
+        if (year > MAX_YEAR) {
+            return INVALID;
+        }
+        if (month >= 1 && month <= 12 && day >= 1 && day <= 28) {
+            // Always valid, no need for the calendar arithmetic
+            return year * 10000 + month * 100 + day;
+        }
+        int monthIndex = month - 1;
+        int normalizedYear = year + Math.floorDiv(monthIndex, 12);
+        int normalizedMonth = Math.floorMod(monthIndex, 12) + 1;
+        return packEpochDay(daysFromCivil(normalizedYear, normalizedMonth, 1) + day - 1, noYear);
+    }
+
+    private static int packEpochDay(long epochDay, boolean noYear) {
+        // Civil date from days since 1970-01-01, see http://howardhinnant.github.io/date_algorithms.html
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        if (noYear) {
+            year = NO_YEAR;
+        }
+        if (year < 0 || year > MAX_YEAR) {
+            return INVALID;
+        }
+        return (int) year * 10000 + month * 100 + day;
+    }
+
+    /**
+     * Days since 1970-01-01 of the given date in the proleptic Gregorian calendar.
+     */
+    public static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153L * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+}
@@ -0,0 +1,48 @@
+package fr.heinisch.birthdayadapter.core;
+
+import java.util.Arrays;
+
+/**
+ * Normalized forms of the event content, compared between syncs to find outdated events.
+ */
+public final class EventContent {
+
+    private EventContent() {
+    }
+
+    /**
+     * Hash over the title and start of an event. Reminders and the alarm flag are compared
+     * separately via {@link #formatReminders}, so they can be changed without touching the event.
+     */
+    public static long fingerprint(String title, long dtstart) {
+        // 64 bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        if (title != null) {
+            for (int i = 0; i < title.length(); i++) {
+                hash ^= title.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash ^= (dtstart >>> shift) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Formats reminder minutes sorted and comma separated, empty if there are none.
+     */
+    public static String formatReminders(int[] minutes) {
+        int[] sorted = minutes.clone();
+        Arrays.sort(sorted);
+        StringBuilder reminders = new StringBuilder();
+        for (int minute : sorted) {
+            if (reminders.length() > 0) {
+                reminders.append(',');
+            }
+            reminders.append(minute);
+        }
+        return reminders.toString();
+    }
+}
@@ -0,0 +1,34 @@
+package fr.heinisch.birthdayadapter.core;
+
+import java.util.Map;
+
+/**
+ * Diff between the events in the calendar and the events planned by a sync. Every planned event
+ * is matched against the existing events by UID; existing events which were never matched are
+ * outdated and have to be deleted.
+ *
+ * @param <E> state of an existing event
+ */
+public final class EventDiff<E> implements EventMatcher<E> {
+
+    private final Map<String, E> mUnmatched;
+
+    /**
+     * @param existingEvents existing events keyed by UID, taken over and modified by the diff
+     */
+    public EventDiff(Map<String, E> existingEvents) {
+        mUnmatched = existingEvents;
+    }
+
+    @Override
+    public E match(String uid) {
+        return mUnmatched.remove(uid);
+    }
+
+    /**
+     * Returns the existing events which did not match any planned event so far.
+     */
+    public Map<String, E> getUnmatched() {
+        return mUnmatched;
+    }
+}
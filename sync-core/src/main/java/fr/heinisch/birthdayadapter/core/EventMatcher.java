@@ -0,0 +1,15 @@
+package fr.heinisch.birthdayadapter.core;
+
+/**
+ * Matches planned events against the existing events of the calendar.
+ *
+ * @param <E> state of an existing event
+ */
+public interface EventMatcher<E> {
+
+    /**
+     * Returns the existing event with the UID of a planned event, or null if the planned event
+     * is new. Each existing event is only returned once.
+     */
+    E match(String uid);
+}
@@ -0,0 +1,67 @@
+package fr.heinisch.birthdayadapter.core;
+
+/**
+ * Builds the UIDs of the calendar events. A UID identifies a contact event independent of its
+ * content, so it stays the same between syncs and when the contact is renamed, and ends with the
+ * year of the event instance.
+ */
+public final class EventUid {
+
+    /**
+     * Takes the place of the year in the UIDs of recurring events.
+     */
+    public static final String RECURRING_SUFFIX = "yearly";
+
+    private EventUid() {
+    }
+
+    /**
+     * Resets the builder to the part of the UID shared by all years of a contact event.
+     *
+     * @param customLabel label of custom events, null for other event types
+     * @return length of the prefix, to be passed to {@link #forYear}
+     */
+    public static int buildPrefix(StringBuilder builder, String lookupKey, String dateString, int type,
+                                  String customLabel) {
+        builder.setLength(0);
+        builder.append(lookupKey).append(':').append(dateString).append(':').append(type);
+        if (customLabel != null) {
+            builder.append(':').append(customLabel);
+        }
+        builder.append(':');
+        return builder.length();
+    }
+
+    /**
+     * Like {@link #buildPrefix}, but for the UIDs written by older versions, which also contained
+     * the hash of the display name. Only used to adopt these events instead of recreating them.
+     */
+    public static int buildLegacyPrefix(StringBuilder builder, String lookupKey, String dateString, int type,
+                                        String displayName, String customLabel) {
+        builder.setLength(0);
+        builder.append(lookupKey).append(':').append(dateString).append(':')
+                .append(type).append(':').append(displayName.hashCode());
+        if (customLabel != null) {
+            builder.append(':').append(customLabel);
+        }
+        builder.append(':');
+        return builder.length();
+    }
+
+    /**
+     * Returns the UID of the event instance in the given year.
+     */
+    public static String forYear(StringBuilder builder, int prefixLength, int year) {
+        builder.setLength(prefixLength);
+        return builder.append(year).toString();
+    }
+
+    /**
+     * Returns the UID of a single event recurring every year, which replaces the instances of
+     * all years.
+     */
+    public static String forRecurring(StringBuilder builder, int prefixLength) {
+        builder.setLength(prefixLength);
+        return builder.append(RECURRING_SUFFIX).toString();
+    }
+}
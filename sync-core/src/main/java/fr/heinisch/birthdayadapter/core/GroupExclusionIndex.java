@@ -0,0 +1,125 @@
+package fr.heinisch.birthdayadapter.core;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Group blacklist of the raw contacts of one sync, computed while the group memberships are read.
+ * Afterwards checking a raw contact is a bit test by its id, without its group titles.
+ * <p>
+ * A raw contact is excluded if it is in at least one group and all of its groups are blacklisted
+ * for its account, like {@link AccountBlacklist#isBlacklisted(int, java.util.List)} decides.
+ */
+public final class GroupExclusionIndex {
+
+    private static final int NO_TITLE = -1;
+
+    private final AccountBlacklist mBlacklist;
+
+    // Interned title by group id, titles by title id
+    private final LongIntMap mGroupTitles = new LongIntMap();
+    private final HashMap<String, Integer> mTitleIds = new HashMap<>();
+    private final ArrayList<String> mTitles = new ArrayList<>();
+    // Blacklisted title ids by account id, built when the account is first seen
+    private final ArrayList<BitSet> mBlacklistedTitles = new ArrayList<>();
+
+    // Raw contacts in at least one group, and in at least one group which is not blacklisted
+    private final BitSet mGrouped = new BitSet();
+    private final BitSet mAllowed = new BitSet();
+    // Raw contact ids are row ids and fit into an int in practice, larger ones are kept in sets
+    private final HashSet<Long> mLargeGrouped = new HashSet<>();
+    private final HashSet<Long> mLargeAllowed = new HashSet<>();
+
+    public GroupExclusionIndex(AccountBlacklist blacklist) {
+        mBlacklist = blacklist;
+    }
+
+    /**
+     * Adds a group. All groups have to be added before the memberships.
+     */
+    public void addGroup(long groupId, String title) {
+        Integer titleId = mTitleIds.get(title);
+        if (titleId == null) {
+            titleId = mTitles.size();
+            mTitleIds.put(title, titleId);
+            mTitles.add(title);
+        }
+        mGroupTitles.put(groupId, titleId);
+    }
+
+    /**
+     * Adds the membership of a raw contact in a group. Memberships in groups which were not
+     * added, e.g. system groups, are ignored.
+     *
+     * @param accountId id of the account of the raw contact returned by {@link AccountBlacklist#getAccountId}
+     */
+    public void addMembership(long rawContactId, int accountId, long groupId) {
+        int titleId = mGroupTitles.get(groupId, NO_TITLE);
+        if (titleId == NO_TITLE) {
+            return;
+        }
+        boolean allowed = accountId == AccountBlacklist.UNLISTED || !getBlacklistedTitles(accountId).get(titleId);
+        if (rawContactId >= 0 && rawContactId <= Integer.MAX_VALUE) {
+            mGrouped.set((int) rawContactId);
+            if (allowed) {
+                mAllowed.set((int) rawContactId);
+            }
+        } else {
+            mLargeGrouped.add(rawContactId);
+            if (allowed) {
+                mLargeAllowed.add(rawContactId);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the raw contact is excluded from the sync.
+     *
+     * @param accountId id of the account of the raw contact returned by {@link AccountBlacklist#getAccountId}
+     */
+    public boolean isBlacklisted(long rawContactId, int accountId) {
+        if (accountId == AccountBlacklist.UNLISTED) {
+            return false;
+        }
+        boolean grouped;
+        boolean allowed;
+        if (rawContactId >= 0 && rawContactId <= Integer.MAX_VALUE) {
+            grouped = mGrouped.get((int) rawContactId);
+            allowed = mAllowed.get((int) rawContactId);
+        } else {
+            grouped = mLargeGrouped.contains(rawContactId);
+            allowed = mLargeAllowed.contains(rawContactId);
+        }
+        if (grouped) {
+            return !allowed;
+        }
+        // Contacts without a group are decided by the account alone
+        return mBlacklist.isBlacklisted(accountId, null);
+    }
+
+    /**
+     * Returns the number of distinct group titles.
+     */
+    public int getTitleCount() {
+        return mTitles.size();
+    }
+
+    private BitSet getBlacklistedTitles(int accountId) {
+        while (mBlacklistedTitles.size() <= accountId) {
+            mBlacklistedTitles.add(null);
+        }
+        BitSet titles = mBlacklistedTitles.get(accountId);
+        if (titles == null) {
+            titles = new BitSet(mTitles.size());
+            for (int titleId = 0; titleId < mTitles.size(); titleId++) {
+                if (mBlacklist.isGroupBlacklisted(accountId, mTitles.get(titleId))) {
+                    titles.set(titleId);
+                }
+            }
+            mBlacklistedTitles.set(accountId, titles);
+        }
+        return titles;
+    }
+}
@@ -0,0 +1,86 @@
+package fr.heinisch.birthdayadapter.core;
+
+/**
+ * Map from long to int keys with open addressing, without boxing keys or values.
+ */
+public final class LongIntMap {
+
+    private static final float MAX_LOAD = 0.5f;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private boolean[] mUsed;
+    private int mSize = 0;
+
+    public LongIntMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize number of entries which fit without resizing
+     */
+    public LongIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / MAX_LOAD)) * 2 - 1);
+        allocate(capacity);
+    }
+
+    /**
+     * Returns the value of the key, or the default value if it has none.
+     */
+    public int get(long key, int defaultValue) {
+        int mask = mKeys.length - 1;
+        for (int slot = hash(key) & mask; mUsed[slot]; slot = (slot + 1) & mask) {
+            if (mKeys[slot] == key) {
+                return mValues[slot];
+            }
+        }
+        return defaultValue;
+    }
+
+    public void put(long key, int value) {
+        int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mUsed[slot]) {
+            if (mKeys[slot] == key) {
+                mValues[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mUsed[slot] = true;
+        if (++mSize > mKeys.length * MAX_LOAD) {
+            resize();
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    private void resize() {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        boolean[] used = mUsed;
+        allocate(keys.length * 2);
+        mSize = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                put(keys[i], values[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mUsed = new boolean[capacity];
+    }
+
+    private static int hash(long key) {
+        // Row ids are sequential, spread them over the table
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
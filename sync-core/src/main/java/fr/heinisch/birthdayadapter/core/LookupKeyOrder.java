@@ -0,0 +1,86 @@
+package fr.heinisch.birthdayadapter.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Reorders rows read sorted by lookup key into the order of the UIDs of their events, which start
+ * with the lookup key followed by ':'.
+ * <p>
+ * Both orders only differ if a lookup key is a prefix of another one, and the longer key continues
+ * with a character sorting before ':', like "1234i5" and "1234i56" or the joined key "X" and
+ * "X.Y": the longer key comes last by lookup key but first by UID. Such keys are held back until
+ * no longer key can follow which has to go before them. Only the rows of a chain of keys which
+ * are prefixes of each other are held, not those of all keys starting with them.
+ * <p>
+ * Lookup keys are URI-encoded and never contain ':' themselves.
+ *
+ * @param <T> a row with a lookup key
+ */
+public final class LookupKeyOrder<T> {
+
+    private final Function<T, String> mLookupKey;
+
+    // Rows in UID order, ready to be taken
+    private final ArrayDeque<T> mReady = new ArrayDeque<>();
+    // Keys held back, each one a prefix of the next, with their rows
+    private final ArrayList<String> mHeldKeys = new ArrayList<>();
+    private final ArrayList<ArrayList<T>> mHeldRows = new ArrayList<>();
+
+    public LookupKeyOrder(Function<T, String> lookupKey) {
+        mLookupKey = lookupKey;
+    }
+
+    /**
+     * Adds the next row. Rows have to be added sorted by lookup key as defined by
+     * {@link MergeDiff#compare}, which is the order of SQLite's BINARY collation.
+     */
+    public void add(T row) {
+        String lookupKey = mLookupKey.apply(row);
+        int top = mHeldKeys.size() - 1;
+        if (top >= 0 && Objects.equals(mHeldKeys.get(top), lookupKey)) {
+            mHeldRows.get(top).add(row);
+            return;
+        }
+        // Keys which the new key doesn't have to go before are complete, no later key can either
+        while (top >= 0 && !goesBefore(lookupKey, mHeldKeys.get(top))) {
+            release(top--);
+        }
+        ArrayList<T> rows = new ArrayList<>();
+        rows.add(row);
+        mHeldKeys.add(lookupKey);
+        mHeldRows.add(rows);
+    }
+
+    /**
+     * Releases all held rows. To be called once all rows have been added.
+     */
+    public void finish() {
+        for (int top = mHeldKeys.size() - 1; top >= 0; top--) {
+            release(top);
+        }
+    }
+
+    /**
+     * Returns the next row in UID order, or null if no row is ready yet.
+     */
+    public T poll() {
+        return mReady.poll();
+    }
+
+    /**
+     * Returns whether UIDs starting with the key come before those starting with the held key,
+     * although the key comes after it.
+     */
+    private static boolean goesBefore(String lookupKey, String heldKey) {
+        return lookupKey != null && heldKey != null && lookupKey.length() > heldKey.length()
+                && lookupKey.startsWith(heldKey) && lookupKey.charAt(heldKey.length()) < ':';
+    }
+
+    private void release(int index) {
+        mReady.addAll(mHeldRows.remove(index));
+        mHeldKeys.remove(index);
+    }
+}
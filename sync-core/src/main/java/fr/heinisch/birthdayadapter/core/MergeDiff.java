@@ -0,0 +1,137 @@
+package fr.heinisch.birthdayadapter.core;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Diff between the events in the calendar and the events planned by a sync, computed by a merge
+ * join of both in UID order. Unlike {@link EventDiff}, only the current existing event is held in
+ * memory: existing events are streamed, and every existing event passed over by a planned UID is
+ * reported as outdated right away.
+ * <p>
+ * UIDs are ordered by code point, which is the order of SQLite's BINARY collation on UTF-8 text,
+ * so existing events can be streamed from the database with "ORDER BY uid". Input out of order
+ * is an error: the existing events passed over by then have already been reported as unmatched,
+ * so the diff can't be trusted any more.
+ *
+ * @param <E> state of an existing event
+ */
+public final class MergeDiff<E> implements EventMatcher<E> {
+
+    /**
+     * Thrown if planned or existing UIDs are not in ascending order.
+     */
+    public static final class OutOfOrderException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        OutOfOrderException(String uid, String previousUid) {
+            super("UID " + uid + " after " + previousUid);
+        }
+    }
+
+    /**
+     * Receives the existing events which do not match any planned event.
+     */
+    public interface Listener<E> {
+        void onUnmatched(String uid, E existing);
+    }
+
+    private final Iterator<? extends Map.Entry<String, E>> mExisting;
+    private final Listener<E> mListener;
+
+    // Next existing event, null once all have been read
+    private String mCurrentUid;
+    private E mCurrent;
+    private String mLastPlannedUid;
+
+    /**
+     * @param existing existing events sorted by UID as defined by {@link #compare}, events with
+     *                 equal UIDs are duplicates and only the first of them can match
+     */
+    public MergeDiff(Iterator<? extends Map.Entry<String, E>> existing, Listener<E> listener) {
+        mExisting = existing;
+        mListener = listener;
+        advance();
+    }
+
+    /**
+     * Returns the existing event with the UID of a planned event, or null if the planned event is
+     * new. Planned UIDs have to be passed in ascending order, a repeated UID is never matched.
+     *
+     * @throws OutOfOrderException if the UID comes before the previous one, its existing event may
+     *                             already have been reported as unmatched
+     */
+    @Override
+    public E match(String uid) {
+        if (mLastPlannedUid != null) {
+            int order = compare(uid, mLastPlannedUid);
+            if (order < 0) {
+                throw new OutOfOrderException(uid, mLastPlannedUid);
+            } else if (order == 0) {
+                return null;
+            }
+        }
+        mLastPlannedUid = uid;
+
+        while (mCurrentUid != null && compare(mCurrentUid, uid) < 0) {
+            mListener.onUnmatched(mCurrentUid, mCurrent);
+            advance();
+        }
+        if (mCurrentUid != null && mCurrentUid.equals(uid)) {
+            E matched = mCurrent;
+            advance();
+            return matched;
+        }
+        return null;
+    }
+
+    /**
+     * Reports all remaining existing events as unmatched. To be called once all events have been
+     * planned.
+     *
+     * @throws OutOfOrderException if the existing events are not in ascending order
+     */
+    public void finish() {
+        while (mCurrentUid != null) {
+            mListener.onUnmatched(mCurrentUid, mCurrent);
+            advance();
+        }
+    }
+
+    private void advance() {
+        String previousUid = mCurrentUid;
+        if (mExisting.hasNext()) {
+            Map.Entry<String, E> next = mExisting.next();
+            mCurrentUid = next.getKey();
+            mCurrent = next.getValue();
+            if (previousUid != null && compare(mCurrentUid, previousUid) < 0) {
+                throw new OutOfOrderException(mCurrentUid, previousUid);
+            }
+        } else {
+            mCurrentUid = null;
+            mCurrent = null;
+        }
+    }
+
+    /**
+     * Compares two UIDs by code point. Unlike {@link String#compareTo}, which compares UTF-16
+     * units, this agrees with the byte order of their UTF-8 encoding.
+     */
+    public static int compare(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(i);
+            if (ca != cb) {
+                // Surrogates encode code points above all other UTF-16 units
+                boolean sa = Character.isSurrogate(ca);
+                boolean sb = Character.isSurrogate(cb);
+                if (sa != sb) {
+                    return sa ? 1 : -1;
+                }
+                return ca - cb;
+            }
+        }
+        return a.length() - b.length();
+    }
+}
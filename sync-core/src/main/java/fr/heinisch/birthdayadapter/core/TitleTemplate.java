@@ -0,0 +1,152 @@
+package fr.heinisch.birthdayadapter.core;
+
+import java.util.ArrayList;
+
+/**
+ * An event title template like "{NAME} ({AGE})", compiled into literals and placeholder tokens so
+ * titles can be rendered in a single pass.
+ */
+public final class TitleTemplate {
+
+    private static final int TOKEN_NAME = 0;
+    private static final int TOKEN_FIRSTNAME = 1;
+    private static final int TOKEN_AGE = 2;
+    private static final int TOKEN_LABEL = 3;
+
+    private static final String[] PLACEHOLDERS = {"{NAME}", "{FIRSTNAME}", "{AGE}", "{LABEL}"};
+
+    // mLiterals[i] precedes mTokens[i], the last literal follows the last token
+    private final String[] mLiterals;
+    private final int[] mTokens;
+    private final boolean mUsesName;
+    private final boolean mUsesFirstName;
+    private final boolean mUsesAge;
+
+    private TitleTemplate(String[] literals, int[] tokens) {
+        mLiterals = literals;
+        mTokens = tokens;
+        boolean usesName = false;
+        boolean usesFirstName = false;
+        boolean usesAge = false;
+        for (int token : tokens) {
+            usesName |= token == TOKEN_NAME;
+            usesFirstName |= token == TOKEN_FIRSTNAME;
+            usesAge |= token == TOKEN_AGE;
+        }
+        mUsesName = usesName;
+        mUsesFirstName = usesFirstName;
+        mUsesAge = usesAge;
+    }
+
+    public static TitleTemplate compile(String template) {
+        ArrayList<String> literals = new ArrayList<>();
+        ArrayList<Integer> tokens = new ArrayList<>();
+        int literalStart = 0;
+        int i = template.indexOf('{');
+        while (i >= 0) {
+            int token = -1;
+            for (int t = 0; t < PLACEHOLDERS.length; t++) {
+                if (template.startsWith(PLACEHOLDERS[t], i)) {
+                    token = t;
+                    break;
+                }
+            }
+            if (token >= 0) {
+                literals.add(template.substring(literalStart, i));
+                tokens.add(token);
+                literalStart = i + PLACEHOLDERS[token].length();
+                i = template.indexOf('{', literalStart);
+            } else {
+                i = template.indexOf('{', i + 1);
+            }
+        }
+        literals.add(template.substring(literalStart));
+
+        int[] tokenArray = new int[tokens.size()];
+        for (int t = 0; t < tokenArray.length; t++) {
+            tokenArray[t] = tokens.get(t);
+        }
+        return new TitleTemplate(literals.toArray(new String[0]), tokenArray);
+    }
+
+    public boolean usesName() {
+        return mUsesName;
+    }
+
+    public boolean usesFirstName() {
+        return mUsesFirstName;
+    }
+
+    public boolean usesAge() {
+        return mUsesAge;
+    }
+
+    /**
+     * Renders everything except the age, which is the only part differing between the years of
+     * an event.
+     *
+     * @param label          replaces {LABEL}, the placeholder is kept if null
+     * @param substituteAge  whether {AGE} is a slot for {@link Bound#render}, otherwise it is kept
+     * @param builder        reused for rendering
+     */
+    public Bound bind(String name, String firstName, String label, boolean substituteAge, StringBuilder builder) {
+        ArrayList<String> segments = new ArrayList<>(2);
+        builder.setLength(0);
+        for (int t = 0; t < mTokens.length; t++) {
+            builder.append(mLiterals[t]);
+            switch (mTokens[t]) {
+                case TOKEN_NAME:
+                    builder.append(name);
+                    break;
+                case TOKEN_FIRSTNAME:
+                    builder.append(firstName);
+                    break;
+                case TOKEN_LABEL:
+                    builder.append(label != null ? label : PLACEHOLDERS[TOKEN_LABEL]);
+                    break;
+                case TOKEN_AGE:
+                    if (substituteAge) {
+                        segments.add(builder.toString());
+                        builder.setLength(0);
+                    } else {
+                        builder.append(PLACEHOLDERS[TOKEN_AGE]);
+                    }
+                    break;
+            }
+        }
+        builder.append(mLiterals[mLiterals.length - 1]);
+        segments.add(builder.toString());
+        return new Bound(segments.toArray(new String[0]));
+    }
+
+    /**
+     * A template bound to a contact event, waiting for the age.
+     */
+    public static final class Bound {
+        private final String[] mSegments;
+
+        private Bound(String[] segments) {
+            mSegments = segments;
+        }
+
+        /**
+         * Renders the title for the given age.
+         *
+         * @param prefix prepended to the title, may be null
+         */
+        public String render(String prefix, int age, StringBuilder builder) {
+            if (mSegments.length == 1 && prefix == null) {
+                return mSegments[0];
+            }
+            builder.setLength(0);
+            if (prefix != null) {
+                builder.append(prefix);
+            }
+            builder.append(mSegments[0]);
+            for (int s = 1; s < mSegments.length; s++) {
+                builder.append(age).append(mSegments[s]);
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package fr.heinisch.birthdayadapter.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchBisectionTest {
+
+    /**
+     * Stands in for the calendar provider: a batch is applied in one transaction, which a failing
+     * operation rolls back completely.
+     */
+    private static final class Store {
+        final Map<String, Integer> writes = new HashMap<>();
+        final Set<String> failing = new HashSet<>();
+        // The connection is lost after committing the batch containing this unit
+        String lostAfter;
+        int batches = 0;
+
+        BatchBisection.Outcome apply(List<String> units) {
+            batches++;
+            for (String unit : units) {
+                if (failing.contains(unit)) {
+                    return BatchBisection.Outcome.REJECTED;
+                }
+            }
+            for (String unit : units) {
+                writes.merge(unit, 1, Integer::sum);
+            }
+            return units.contains(lostAfter) ? BatchBisection.Outcome.UNKNOWN : BatchBisection.Outcome.COMMITTED;
+        }
+    }
+
+    private static final class RecordingTarget implements BatchBisection.Target<String> {
+        final Store store;
+        final List<String> applied = new ArrayList<>();
+        final List<String> rejected = new ArrayList<>();
+        final List<String> unknown = new ArrayList<>();
+
+        RecordingTarget(Store store) {
+            this.store = store;
+        }
+
+        @Override
+        public BatchBisection.Outcome apply(List<String> units, boolean isRetry) {
+            BatchBisection.Outcome outcome = store.apply(units);
+            if (outcome == BatchBisection.Outcome.COMMITTED) {
+                applied.addAll(units);
+            }
+            return outcome;
+        }
+
+        @Override
+        public void onRejected(String unit) {
+            rejected.add(unit);
+        }
+
+        @Override
+        public void onUnknown(List<String> units) {
+            unknown.addAll(units);
+        }
+    }
+
+    private static List<String> units(int count) {
+        List<String> units = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            units.add("unit" + i);
+        }
+        return units;
+    }
+
+    @Test
+    public void committedBatchIsAppliedOnce() {
+        Store store = new Store();
+        RecordingTarget target = new RecordingTarget(store);
+        BatchBisection.apply(units(100), target);
+
+        assertEquals(1, store.batches);
+        assertEquals(units(100), target.applied);
+        for (int count : store.writes.values()) {
+            assertEquals(1, count);
+        }
+    }
+
+    @Test
+    public void failingUnitIsIsolated() {
+        Store store = new Store();
+        store.failing.add("unit37");
+        store.failing.add("unit80");
+        RecordingTarget target = new RecordingTarget(store);
+        BatchBisection.apply(units(100), target);
+
+        assertEquals(Arrays.asList("unit37", "unit80"), target.rejected);
+        assertEquals(98, target.applied.size());
+        assertEquals(98, store.writes.size());
+        assertTrue(target.unknown.isEmpty());
+        // Retried parts only contain units which were not written, nothing is written twice
+        for (Map.Entry<String, Integer> write : store.writes.entrySet()) {
+            assertEquals(write.getKey(), 1, (int) write.getValue());
+        }
+        assertEquals(new HashSet<>(target.applied), store.writes.keySet());
+    }
+
+    /**
+     * The batch may have been written before the connection was lost. It is not retried, so its
+     * units are not written a second time.
+     */
+    @Test
+    public void unknownOutcomeIsNotRetried() {
+        Store store = new Store();
+        store.lostAfter = "unit70";
+        RecordingTarget target = new RecordingTarget(store);
+        BatchBisection.apply(units(100), target);
+
+        assertEquals(1, store.batches);
+        for (int count : store.writes.values()) {
+            assertEquals(1, count);
+        }
+        assertEquals(units(100), target.unknown);
+        assertTrue(target.applied.isEmpty());
+        assertTrue(target.rejected.isEmpty());
+    }
+
+    @Test
+    public void emptyBatchIsNotApplied() {
+        Store store = new Store();
+        BatchBisection.apply(new ArrayList<>(), new RecordingTarget(store));
+        assertEquals(0, store.batches);
+    }
+}
@@ -0,0 +1,64 @@
+package fr.heinisch.birthdayadapter.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchSizeLimitTest {
+
+    private static final long TARGET_LATENCY_MS = 200;
+
+    /**
+     * On a fast device the limit grows, but batches of units with an event and its reminders
+     * never reach the number of operations the provider rejects.
+     */
+    @Test
+    public void batchesStayBelowProviderLimit() {
+        BatchSizeLimit limit = new BatchSizeLimit(TARGET_LATENCY_MS);
+        Random random = new Random(42);
+        int batchOperations = 0;
+        int largestBatch = 0;
+        for (int i = 0; i < 100000; i++) {
+            int unitOperations = 1 + random.nextInt(6);
+            if (!limit.fits(batchOperations, unitOperations)) {
+                limit.onApplied(batchOperations, 10);
+                batchOperations = 0;
+            }
+            batchOperations += unitOperations;
+            largestBatch = Math.max(largestBatch, batchOperations);
+        }
+        assertEquals(BatchSizeLimit.MAX_OPERATIONS, limit.get());
+        assertTrue(largestBatch <= BatchSizeLimit.MAX_OPERATIONS);
+        assertTrue(largestBatch < BatchSizeLimit.PROVIDER_MAX_OPERATIONS);
+    }
+
+    @Test
+    public void unitCrossingTheLimitStartsANewBatch() {
+        BatchSizeLimit limit = new BatchSizeLimit(TARGET_LATENCY_MS);
+        int max = limit.get();
+        assertTrue(limit.fits(max - 3, 3));
+        assertFalse(limit.fits(max - 2, 3));
+        // A unit is never split
+        assertTrue(limit.fits(0, max + 1));
+    }
+
+    @Test
+    public void slowOrRejectedBatchesLowerTheLimit() {
+        BatchSizeLimit limit = new BatchSizeLimit(TARGET_LATENCY_MS);
+        limit.onApplied(BatchSizeLimit.INITIAL_OPERATIONS, TARGET_LATENCY_MS + 1);
+        assertEquals(BatchSizeLimit.INITIAL_OPERATIONS / 2, limit.get());
+
+        // Small batches don't say anything about the limit
+        limit.onApplied(1, 10 * TARGET_LATENCY_MS);
+        assertEquals(BatchSizeLimit.INITIAL_OPERATIONS / 2, limit.get());
+
+        for (int i = 0; i < 10; i++) {
+            limit.onRejected();
+        }
+        assertEquals(BatchSizeLimit.MIN_OPERATIONS, limit.get());
+    }
+}
@@ -0,0 +1,165 @@
+package fr.heinisch.birthdayadapter.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Corpus of the date strings accepted by the contacts apps, with the dates they are read as.
+ */
+public class ContactDateParserTest {
+
+    private static final int INVALID = ContactDateParser.INVALID;
+
+    // Formats read the same regardless of the dd/MM preference
+    private static final Object[][] COMMON = {
+            {"1990-05-15", 19900515},
+            {"1990-5-7", 19900507},
+            {"0001-01-01", 10101},
+            // Trailing characters like a time are ignored
+            {"1990-05-15T10:30:00Z", 19900515},
+            {"1990-05-15 00:00:00", 19900515},
+            // No year
+            {"--05-15", 515},
+            {"--12-31", 1231},
+            {"19900515", 19900515},
+
+            // Out of range fields roll over like with the lenient SimpleDateFormat
+            {"2001-02-29", 20010301},
+            {"2000-02-29", 20000229},
+            {"1990-13-01", 19910101},
+            {"1990-00-10", 19891210},
+            {"1990-05-00", 19900430},
+            {"1990-04-31", 19900501},
+            {"1990-12-32", 19910101},
+            // Yearless February 29 stays February 29
+            {"--02-29", 229},
+            {"--02-30", 301},
+            {"--13-01", 101},
+
+            // Plain numbers are timestamps in milliseconds
+            {"0", 19700101},
+            {"172800000", 19700103},
+            // Eight digits are read as yyyyMMdd first
+            {"86400000", 86391130},
+            {"+86400000", 19700102},
+            {"-1", 19691231},
+            {"-86400000", 19691231},
+            {"946684800000", 20000101},
+            {"951782400000", 20000229},
+            // Long numbers are not split into yyyyMMdd fields
+            {"199005151", 19700103},
+            {"1990051500", 19700124},
+
+            // Garbage
+            {null, INVALID},
+            {"", INVALID},
+            {"abc", INVALID},
+            {"1990-", INVALID},
+            {"1990-05", INVALID},
+            {"--05", INVALID},
+            {"--05-", INVALID},
+            {"-", INVALID},
+            {"+", INVALID},
+            {"12/", INVALID},
+            {"/05/1990", INVALID},
+            {"May 15, 1990", INVALID},
+            {"15 mai 1990", INVALID},
+            {"1990-05-15x", 19900515},
+            {"x1990-05-15", INVALID},
+            {"86400000ms", INVALID},
+            // Beyond the range of the calendar
+            {"10000-01-01", INVALID},
+            {"9999-12-32", INVALID},
+            {"1234567890123456789", INVALID},
+            {"-99999999999999999", INVALID},
+            // Fields with more digits than any date can have
+            {"1234567890-01-01", INVALID},
+    };
+
+    // dd/MM preference
+    private static final Object[][] DAY_FIRST = {
+            {"15.05.1990", 19900515},
+            {"5.7.1990", 19900705},
+            {"1990.05.15", 19900515},
+            {"15/05/1990", 19900515},
+            {"15/05", 515},
+            // Ambiguous, day first
+            {"05/06/1990", 19900605},
+            {"05/06", 605},
+            // Rollover of a month-first date read day first
+            {"05/15/1990", 19910305},
+            {"31.02.1990", 19900303},
+            {"29/02", 229},
+            {"15.05", INVALID},
+            {"15/05/", INVALID},
+    };
+
+    // Default, US formats
+    private static final Object[][] MONTH_FIRST = {
+            {"05/15/1990", 19900515},
+            {"5/7/1990", 19900507},
+            {"05/15", 515},
+            // Ambiguous, month first
+            {"05/06/1990", 19900506},
+            {"05/06", 506},
+            {"02/29", 229},
+            {"13/01/1990", 19910101},
+            // Dotted dates are only read with the dd/MM preference
+            {"15.05.1990", INVALID},
+            {"1990.05.15", INVALID},
+            {"05/15/", INVALID},
+    };
+
+    @Test
+    public void commonFormats() {
+        assertCorpus(new ContactDateParser(false), COMMON);
+        assertCorpus(new ContactDateParser(true), COMMON);
+    }
+
+    @Test
+    public void dayFirstFormats() {
+        assertCorpus(new ContactDateParser(true), DAY_FIRST);
+    }
+
+    @Test
+    public void monthFirstFormats() {
+        assertCorpus(new ContactDateParser(false), MONTH_FIRST);
+    }
+
+    @Test
+    public void memoizedResultsAreStable() {
+        ContactDateParser parser = new ContactDateParser(true);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(19900515, parser.parse("15.05.1990"));
+            assertEquals(INVALID, parser.parse("abc"));
+        }
+    }
+
+    @Test
+    public void unpacksFields() {
+        int date = new ContactDateParser(false).parse("1990-05-15");
+        assertEquals(1990, ContactDateParser.year(date));
+        assertEquals(5, ContactDateParser.month(date));
+        assertEquals(15, ContactDateParser.day(date));
+
+        int yearless = new ContactDateParser(false).parse("--02-29");
+        assertEquals(ContactDateParser.NO_YEAR, ContactDateParser.year(yearless));
+        assertEquals(2, ContactDateParser.month(yearless));
+        assertEquals(29, ContactDateParser.day(yearless));
+    }
+
+    @Test
+    public void daysFromCivilMatchesEpoch() {
+        assertEquals(0, ContactDateParser.daysFromCivil(1970, 1, 1));
+        assertEquals(-1, ContactDateParser.daysFromCivil(1969, 12, 31));
+        assertEquals(10957, ContactDateParser.daysFromCivil(2000, 1, 1));
+        assertEquals(11016, ContactDateParser.daysFromCivil(2000, 2, 29));
+    }
+
+    private static void assertCorpus(ContactDateParser parser, Object[][] corpus) {
+        for (Object[] entry : corpus) {
+            assertEquals(String.valueOf(entry[0]), (int) (Integer) entry[1], parser.parse((String) entry[0]));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package fr.heinisch.birthdayadapter.core;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The arithmetic of the per-year planning loop: UIDs reuse the prefix of their contact event, and
+ * dtstart is computed from the epoch day instead of Calendar instances. Their allocations per
+ * planned event are measured by the buildUids and renderTitles benchmarks with the gc profiler.
+ */
+public class EventPlanningTest {
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final int FIRST_YEAR = 2023;
+    private static final int LAST_YEAR = 2031;
+
+    @Test
+    public void uidsForYearsReuseThePrefix() {
+        StringBuilder builder = new StringBuilder();
+        int prefixLength = EventUid.buildPrefix(builder, "0r1-2A3B", "1990-05-15", 3, null);
+        for (int year = FIRST_YEAR; year <= LAST_YEAR; year++) {
+            assertEquals("0r1-2A3B:1990-05-15:3:" + year, EventUid.forYear(builder, prefixLength, year));
+        }
+        assertEquals("0r1-2A3B:1990-05-15:3:" + EventUid.RECURRING_SUFFIX, EventUid.forRecurring(builder, prefixLength));
+
+        prefixLength = EventUid.buildPrefix(builder, "0r1-2A3B", "--02-29", 0, "Wedding");
+        assertEquals("0r1-2A3B:--02-29:0:Wedding:2024", EventUid.forYear(builder, prefixLength, 2024));
+    }
+
+    @Test
+    public void dtstartMatchesUtcCalendar() {
+        // Lenient like the Calendar instances the planner used before, February 29 falls on
+        // March 1 in other years
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        for (int year = 1900; year <= 2100; year += 7) {
+            for (int month = 1; month <= 12; month++) {
+                for (int day : new int[]{1, 15, 28, 29, 30, 31}) {
+                    calendar.clear();
+                    calendar.set(year, month - 1, day);
+                    assertEquals(year + "-" + month + "-" + day, calendar.getTimeInMillis(),
+                            ContactDateParser.daysFromCivil(year, month, day) * MILLIS_PER_DAY);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package fr.heinisch.birthdayadapter.core;
+
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Contacts are read sorted by lookup key, but merged with the existing events by UID. Both orders
+ * differ for lookup keys which are prefixes of each other.
+ */
+public class LookupKeyOrderTest {
+
+    private static final String[] PREFIX_RELATED_KEYS = {
+            "1234i5", "1234i56", "1234i57", "1234i5a", "1234i6",
+            "X", "X.Y", "X.Y.Z", "X.Z", "XA", "Xa",
+            "0r1-2A3B", "0r1-2A3B.0r12-4C5D", "0r12-4C5D"
+    };
+
+    @Test
+    public void prefixRelatedKeysAreInUidOrder() {
+        List<String> keys = sortedByLookupKey(PREFIX_RELATED_KEYS);
+        assertEquals(Arrays.asList(
+                "0r1-2A3B.0r12-4C5D", "0r1-2A3B", "0r12-4C5D",
+                "1234i56", "1234i57", "1234i5", "1234i5a", "1234i6",
+                "X.Y.Z", "X.Y", "X.Z", "X", "XA", "Xa"), reorder(keys));
+    }
+
+    @Test
+    public void randomKeysAreInUidOrder() {
+        Random random = new Random(42);
+        String alphabet = "0123456789.-:;iAa";
+        for (int round = 0; round < 200; round++) {
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                StringBuilder key = new StringBuilder();
+                int length = 1 + random.nextInt(4);
+                for (int j = 0; j < length; j++) {
+                    // Lookup keys are URI-encoded and don't contain ':'
+                    char c;
+                    do {
+                        c = alphabet.charAt(random.nextInt(alphabet.length()));
+                    } while (c == ':');
+                    key.append(c);
+                }
+                keys.add(key.toString());
+            }
+            List<String> reordered = reorder(sortedByLookupKey(keys.toArray(new String[0])));
+
+            List<String> expected = new ArrayList<>(keys);
+            expected.sort((a, b) -> MergeDiff.compare(a + ":", b + ":"));
+            assertEquals(expected, reordered);
+        }
+    }
+
+    @Test
+    public void rowsOfAKeyStayTogether() {
+        LookupKeyOrder<String[]> order = new LookupKeyOrder<>(row -> row[0]);
+        order.add(new String[]{"X", "birthday"});
+        order.add(new String[]{"X", "anniversary"});
+        assertNull(order.poll());
+        order.add(new String[]{"X.Y", "birthday"});
+        order.add(new String[]{"Y", "birthday"});
+        assertEquals("X.Y", order.poll()[0]);
+        assertEquals("birthday", order.poll()[1]);
+        assertEquals("anniversary", order.poll()[1]);
+        assertNull(order.poll());
+        order.finish();
+        assertEquals("Y", order.poll()[0]);
+        assertNull(order.poll());
+    }
+
+    /**
+     * All existing events of prefix-related lookup keys match their planned events, none is
+     * deleted and inserted again.
+     */
+    @Test
+    public void mergeMatchesAllExistingEvents() {
+        List<String> keys = reorder(sortedByLookupKey(PREFIX_RELATED_KEYS));
+        StringBuilder builder = new StringBuilder();
+        List<String> plannedUids = new ArrayList<>();
+        for (String key : keys) {
+            int prefixLength = EventUid.buildPrefix(builder, key, "1990-05-15", 3, null);
+            for (int year = 2024; year <= 2026; year++) {
+                plannedUids.add(EventUid.forYear(builder, prefixLength, year));
+            }
+        }
+
+        List<Map.Entry<String, Integer>> existing = new ArrayList<>();
+        for (String uid : plannedUids) {
+            existing.add(new AbstractMap.SimpleEntry<>(uid, existing.size()));
+        }
+        // Like "ORDER BY uid"
+        existing.sort((a, b) -> MergeDiff.compare(a.getKey(), b.getKey()));
+
+        List<String> unmatched = new ArrayList<>();
+        MergeDiff<Integer> diff = new MergeDiff<>(existing.iterator(), (uid, event) -> unmatched.add(uid));
+        for (String uid : plannedUids) {
+            assertTrue(uid, diff.match(uid) != null);
+        }
+        diff.finish();
+        assertEquals(Collections.emptyList(), unmatched);
+    }
+
+    @Test
+    public void plannedUidsOutOfOrderAreAnError() {
+        List<Map.Entry<String, Integer>> existing = Arrays.asList(
+                new AbstractMap.SimpleEntry<>("X.Y:1990-05-15:3:2024", 0),
+                new AbstractMap.SimpleEntry<>("X:1990-05-15:3:2024", 1));
+        MergeDiff<Integer> diff = new MergeDiff<>(existing.iterator(), (uid, event) -> {
+        });
+        // Sorted by lookup key instead of UID
+        assertEquals(1, (int) diff.match("X:1990-05-15:3:2024"));
+        try {
+            diff.match("X.Y:1990-05-15:3:2024");
+            fail();
+        } catch (MergeDiff.OutOfOrderException expected) {
+        }
+    }
+
+    @Test
+    public void existingUidsOutOfOrderAreAnError() {
+        List<Map.Entry<String, Integer>> existing = Arrays.asList(
+                new AbstractMap.SimpleEntry<>("X:1990-05-15:3:2024", 0),
+                new AbstractMap.SimpleEntry<>("X.Y:1990-05-15:3:2024", 1));
+        MergeDiff<Integer> diff = new MergeDiff<>(existing.iterator(), (uid, event) -> {
+        });
+        try {
+            diff.finish();
+            fail();
+        } catch (MergeDiff.OutOfOrderException expected) {
+        }
+    }
+
+    private static List<String> sortedByLookupKey(String[] keys) {
+        List<String> sorted = new ArrayList<>(Arrays.asList(keys));
+        sorted.sort(MergeDiff::compare);
+        return sorted;
+    }
+
+    private static List<String> reorder(List<String> keys) {
+        LookupKeyOrder<String> order = new LookupKeyOrder<>(key -> key);
+        List<String> reordered = new ArrayList<>();
+        for (String key : keys) {
+            order.add(key);
+            for (String ready = order.poll(); ready != null; ready = order.poll()) {
+                reordered.add(ready);
+            }
+        }
+        order.finish();
+        for (String ready = order.poll(); ready != null; ready = order.poll()) {
+            reordered.add(ready);
+        }
+        return reordered;
+    }
+}